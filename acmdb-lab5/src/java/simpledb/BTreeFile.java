@@ -2,7 +2,10 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpledb.Predicate.Op;
 
@@ -12,6 +15,21 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * The search for a leaf takes no transactional lock on the root pointer and
+ * the internal pages, so that a transaction does not keep others from
+ * splitting or merging the pages it passed until it commits: it reads them
+ * optimistically and checks their versions once the leaf is locked. Inserts
+ * and deletes that change the structure lock the pages they change as before.
+ * <p>
+ * Searches of an index predicate lock the keys they read, and the key after
+ * them, rather than the leaf pages: they lock each leaf only while reading
+ * it, and the next one before letting it go. Inserts lock the key after the
+ * one they insert for an instant, so that they wait for the searches whose
+ * range they would change. Writers still lock the leaf pages they change
+ * until they commit, as an abort rolls back whole pages. A transaction that
+ * has locked {@link #KEY_LOCKS_BEFORE_ESCALATION} keys searches with page
+ * locks from then on, as do scans of the whole tree.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -22,10 +40,26 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final DbFileChannel channel;
+	private volatile boolean memoryMapped;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
 
+	/** Optimistic searches for a leaf that may fail before one locks its way down. */
+	private static final int OPTIMISTIC_DESCENTS = 4;
+
+	/** Keys a transaction locks before its searches keep the leaf pages locked instead. */
+	static final int KEY_LOCKS_BEFORE_ESCALATION = 1024;
+
+	/**
+	 * Versions of the pages a search for a leaf passes without locking them,
+	 * the root pointer and the internal pages, by page number. A version is
+	 * odd while an insert or delete changes the page; it grows by one when
+	 * the change starts and when the operation ends.
+	 */
+	private final ConcurrentHashMap<Integer, AtomicLong> structureVersions = new ConcurrentHashMap<>();
+
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
 	 * 
@@ -36,6 +70,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.channel = new DbFileChannel(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -79,14 +114,12 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				int retval = channel.read(pageBuf, 0);
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -98,47 +131,88 @@ public class BTreeFile implements DbFile {
 				return p;
 			}
 			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				ByteBuffer pageBuf = readPageData(pageOffset(id.pageNumber()));
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+				return newPage(id, pageBuf);
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public List<Page> readPages(List<PageId> pids) {
+		if (memoryMapped) return DbFile.super.readPages(pids);
+		SortedMap<Long, byte[]> blocks = new TreeMap<>();
+		for (PageId pid : pids) {
+			BTreePageId id = (BTreePageId) pid;
+			if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+				blocks.put(0L, new byte[BTreeRootPtrPage.getPageSize()]);
+				continue;
 			}
+			if (pageOffset(id.pageNumber()) + BufferPool.getPageSize() > f.length()) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			blocks.put(pageOffset(id.pageNumber()), new byte[BufferPool.getPageSize()]);
+		}
+		List<Page> pages = new ArrayList<>();
+		try {
+			channel.read(blocks);
+			for (PageId pid : pids) {
+				BTreePageId id = (BTreePageId) pid;
+				if (id.pgcateg() == BTreePageId.ROOT_PTR)
+					pages.add(new BTreeRootPtrPage(id, blocks.get(0L)));
+				else
+					pages.add(newPage(id, ByteBuffer.wrap(blocks.get(pageOffset(id.pageNumber())))));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return pages;
+	}
+
+	/** @return the internal, leaf or header page with the given data */
+	private Page newPage(BTreePageId id, ByteBuffer pageBuf) throws IOException {
+		if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, pageBuf, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, pageBuf, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, pageBuf);
 		}
 	}
 
+	/**
+	 * Read the data of a page other than the root pointer page, or map it if
+	 * this file is memory mapped.
+	 */
+	private ByteBuffer readPageData(long offset) throws IOException {
+		long available = f.length() - offset;
+		if (available <= 0) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (available < BufferPool.getPageSize()) {
+			throw new IllegalArgumentException("Unable to read "
+					+ BufferPool.getPageSize() + " bytes from BTreeFile");
+		}
+		if (memoryMapped) {
+			return channel.map(offset, BufferPool.getPageSize());
+		}
+		byte pageBuf[] = new byte[BufferPool.getPageSize()];
+		channel.read(pageBuf, offset);
+		return ByteBuffer.wrap(pageBuf);
+	}
+
+	/**
+	 * Returns the offset in the file of the page with the given number; page 0
+	 * is the root pointer page.
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo-1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -149,17 +223,45 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(data, 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(data, pageOffset(page.getId().pageNumber()));
 		}
 	}
+
+	// see DbFile.java for javadocs
+	public void writePages(List<Page> pages) throws IOException {
+		SortedMap<Long, byte[]> blocks = new TreeMap<>();
+		for (Page page : pages) {
+			BTreePageId id = (BTreePageId) page.getId();
+			long offset = id.pgcateg() == BTreePageId.ROOT_PTR ? 0 : pageOffset(id.pageNumber());
+			blocks.put(offset, page.getPageData());
+		}
+		channel.write(blocks);
+		channel.force();
+	}
+
+	// see DbFile.java for javadocs
+	public void force() throws IOException {
+		channel.force();
+	}
+
+	// see DbFile.java for javadocs
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	// see DbFile.java for javadocs
+	public void setMemoryMapped(boolean mapped) {
+		this.memoryMapped = mapped;
+	}
+
+	// see DbFile.java for javadocs
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
 	
 	/**
 	 * Returns the number of pages in this BTreeFile.
@@ -199,23 +301,159 @@ public class BTreeFile implements DbFile {
         if(pid.pgcateg() == BTreePageId.LEAF) return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
         else if(pid.pgcateg() == BTreePageId.INTERNAL){
 			BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-			Iterator<BTreeEntry> iter = internalPage.iterator();
-			if(f == null){
-				return findLeafPage(tid, dirtypages, iter.next().getLeftChild(), perm, null);
+			return findLeafPage(tid, dirtypages, childFor(internalPage, f), perm, f);
+		}
+        else throw new DbException("Unexpected pid, which is neither a leaf page nor an internal one.");
+	}
+
+	/**
+	 * @return the child of an internal page whose subtree holds the left-most
+	 * tuple with key field f, or the left-most child if f is null
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> iter = page.iterator();
+		if(f == null) return iter.next().getLeftChild();
+		BTreeEntry curEntry = null;
+		while(iter.hasNext()){
+			curEntry = iter.next();
+			if(f.compare(Op.LESS_THAN_OR_EQ, curEntry.getKey()))
+				return curEntry.getLeftChild();
+		}
+		assert curEntry != null;
+		return curEntry.getRightChild();
+	}
+
+	/**
+	 * Find and lock the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, starting from the root pointer. Unlike
+	 * {@link #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)} it
+	 * keeps no lock on the root pointer and the internal pages. It reads them without
+	 * locks, and once the leaf is locked makes sure that none of them changed or was
+	 * put back by an abort in the meantime, or searches again. Should that fail a few
+	 * times, e.g. while a split holds the pages, it crabs down the tree instead,
+	 * releasing the read lock of each page once the lock of its child is granted.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree has no root page yet
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, dirtypages, perm, f, null);
+	}
+
+	/**
+	 * findLeafPage, which also adds the leaf pages it locked that tid held no lock
+	 * on before to newlyLocked, unless that is null, so that they may be released.
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm, Field f,
+			Set<PageId> newlyLocked) throws DbException, TransactionAbortedException {
+		for(int attempt = 0; attempt < OPTIMISTIC_DESCENTS; attempt++) {
+			BTreeLeafPage leaf = findLeafPageOptimistically(tid, dirtypages, perm, f, newlyLocked);
+			if(leaf != null) return leaf;
+			Thread.yield();
+		}
+		return crabToLeafPage(tid, dirtypages, perm, f, newlyLocked);
+	}
+
+	/**
+	 * One optimistic search of findLeafPage.
+	 * 
+	 * @return the leaf page, or null if a page on the way changed or the tree has no root page
+	 */
+	private BTreeLeafPage findLeafPageOptimistically(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Permissions perm, Field f, Set<PageId> newlyLocked) throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		ArrayList<Page> path = new ArrayList<>();
+		ArrayList<Long> versions = new ArrayList<>();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		do {
+			AtomicLong version = structureVersion(pid);
+			long before = version.get();
+			if((before & 1) != 0) return null; // being changed
+			Page page = pool.getPageUnlocked(tid, pid);
+			BTreePageId child;
+			try {
+				child = pid.pgcateg() == BTreePageId.ROOT_PTR
+						? ((BTreeRootPtrPage) page).getRootId()
+						: childFor((BTreeInternalPage) page, f);
+			} catch(RuntimeException e) {
+				return null; // read half way through a change
 			}
-			else{
-				BTreeEntry curEntry = null;
-				while(iter.hasNext()){
-					curEntry = iter.next();
-					IndexPredicate fieldPredicate = new IndexPredicate(Op.LESS_THAN_OR_EQ, f);
-					if(fieldPredicate.equals(new IndexPredicate(Op.LESS_THAN_OR_EQ, curEntry.getKey())))
-						return findLeafPage(tid, dirtypages, curEntry.getLeftChild(), perm, f);
-				}
-				assert curEntry != null;
-				return findLeafPage(tid, dirtypages, curEntry.getRightChild(), perm, f);
+			// follow the child only if it was read from a page that did not change meanwhile
+			if(version.get() != before) return null;
+			path.add(page);
+			versions.add(before);
+			pid = child;
+		} while(pid != null && pid.pgcateg() != BTreePageId.LEAF);
+		if(pid == null) return null;
+
+		if(newlyLocked != null && !pool.holdsLock(tid, pid)) newlyLocked.add(pid);
+		BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		// the pages on the way may have changed while the lock was waited for
+		for(int i = 0; i < path.size(); i++) {
+			PageId passed = path.get(i).getId();
+			if(structureVersion(passed).get() != versions.get(i) || pool.cachedPage(passed) != path.get(i))
+				return null;
+		}
+		return leaf;
+	}
+
+	/**
+	 * Find the leaf page of findLeafPage by locking the pages on the way, each only
+	 * until its child is locked unless the transaction held its lock already.
+	 * 
+	 * @return the leaf page, or null if the tree has no root page yet
+	 */
+	private BTreeLeafPage crabToLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Permissions perm, Field f, Set<PageId> newlyLocked) throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		boolean held = pool.holdsLock(tid, pid);
+		Page page = getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		BTreePageId child = ((BTreeRootPtrPage) page).getRootId();
+		while(true) {
+			if(child == null) {
+				if(!held) pool.releasePage(tid, pid);
+				return null;
 			}
+			boolean childHeld = pool.holdsLock(tid, child);
+			Page childPage = getPage(tid, dirtypages, child,
+					child.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY);
+			if(!held) pool.releasePage(tid, pid);
+			if(child.pgcateg() == BTreePageId.LEAF) {
+				if(newlyLocked != null && !childHeld) newlyLocked.add(child);
+				return (BTreeLeafPage) childPage;
+			}
+			pid = child;
+			held = childHeld;
+			child = childFor((BTreeInternalPage) childPage, f);
+		}
+	}
+
+	/** @return the version of a page that searches for a leaf pass without locking it */
+	private AtomicLong structureVersion(PageId pid) {
+		return structureVersions.computeIfAbsent(pid.pageNumber(), pageNo -> new AtomicLong());
+	}
+
+	private static boolean isStructural(PageId pid) {
+		int pgcateg = ((BTreePageId) pid).pgcateg();
+		return pgcateg == BTreePageId.ROOT_PTR || pgcateg == BTreePageId.INTERNAL;
+	}
+
+	/**
+	 * Tell searches for a leaf that the pages an insert or delete changed may be
+	 * passed again, once it is done with them.
+	 */
+	private void endStructureChanges(HashMap<PageId, Page> dirtypages) {
+		for(PageId pid : dirtypages.keySet()) {
+			if(!isStructural(pid)) continue;
+			AtomicLong version = structureVersion(pid);
+			if((version.get() & 1) != 0) version.incrementAndGet();
 		}
-        else throw new DbException("Unexpected pid, which is neither a leaf page nor an internal one.");
 	}
 	
 	/**
@@ -507,6 +745,11 @@ public class BTreeFile implements DbFile {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				if(isStructural(pid)) {
+					// keep searches for a leaf off the page until the operation ends
+					AtomicLong version = structureVersion(pid);
+					if((version.get() & 1) == 0) version.incrementAndGet();
+				}
 			}
 			return p;
 		}
@@ -524,33 +767,119 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		BufferPool pool = Database.getBufferPool();
+		createIfEmpty();
+		Field key = t.getField(keyField);
+		IndexKey inserted = new IndexKey(tableid, key);
+		// a transaction that has changed the key already owns the gap after it, see below
+		boolean ownsGap = pool.holdsKeyLock(tid, inserted, Permissions.READ_WRITE);
+		Set<IndexKey> waitedFor = new HashSet<IndexKey>();
+		try {
+			while(true) {
+				HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+				Set<PageId> newlyLocked = new HashSet<PageId>();
+				try {
+					// find and lock the left-most leaf page corresponding to the key field
+					BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, key, newlyLocked);
+					if(leafPage == null) { // the root has just been created, so set the root pointer to point to it
+						BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+								BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+						BTreePageId rootId = rootPtr.getRootId();
+						if(rootId == null) {
+							rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+							rootPtr.setRootId(rootId);
+						}
+						leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, key);
+					}
+
+					// Lock the key, and the key after it for an instant, so that the insert waits
+					// for the searches whose range it falls into: they lock the keys they read
+					// and the one after them. The owner of the gap skips the next key, as a search
+					// of another transaction that covers the gap would have locked the key itself.
+					if(!lockKeyForChange(tid, dirtypages, newlyLocked, inserted)) continue;
+					if(!ownsGap) {
+						IndexKey next = new IndexKey(tableid, nextKey(tid, dirtypages, leafPage, key));
+						boolean held = pool.holdsKeyLock(tid, next, Permissions.READ_ONLY);
+						if(!lockKeyForChange(tid, dirtypages, newlyLocked, next)) {
+							if(!held) waitedFor.add(next);
+							continue;
+						}
+						if(!held) pool.releaseKey(tid, next);
+					}
+
+					// split the leaf page if there are no more slots available
+					if(leafPage.getNumEmptySlots() == 0) {
+						leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+					}
+
+					// insert the tuple into the leaf page
+					leafPage.insertTuple(t);
+				} finally {
+					endStructureChanges(dirtypages);
+				}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+				ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+				dirtyPagesArr.addAll(dirtypages.values());
+				return dirtyPagesArr;
+			}
+		} finally {
+			for(IndexKey next : waitedFor) pool.releaseKey(tid, next);
 		}
+	}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+	/**
+	 * Lock a key exclusively for a change to a leaf page. The lock is not waited for
+	 * while holding the pages the operation has locked, if it may let them go: if they
+	 * are those in dirtypages, none of them was locked by the transaction before and
+	 * none has been changed yet. It then releases them and waits for the key alone, as
+	 * a search that holds one of them may be waiting for the key as well.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the operation has locked for writing
+	 * @param newlyLocked - the pages the operation has locked that tid held no lock on before
+	 * @param key - the key to lock
+	 * @return true if the key is locked and the pages still are, false if the pages were
+	 * released and the operation has to start over
+	 */
+	private boolean lockKeyForChange(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Set<PageId> newlyLocked, IndexKey key) throws TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		if(pool.holdsKeyLock(tid, key, Permissions.READ_WRITE) || pool.tryLockKey(tid, key, Permissions.READ_WRITE))
+			return true;
+		if(!newlyLocked.containsAll(dirtypages.keySet())) {
+			pool.lockKey(tid, key, Permissions.READ_WRITE);
+			return true;
 		}
+		for(PageId pid : dirtypages.keySet())
+			pool.releasePage(tid, pid);
+		pool.lockKey(tid, key, Permissions.READ_WRITE);
+		return false;
+	}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+	/**
+	 * @return the least key greater than key in the leaf page or the pages to its right,
+	 * or null if there is none
+	 */
+	private Field nextKey(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage leaf, Field key)
+			throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		BTreeLeafPage page = leaf;
+		boolean held = true;
+		while(true) {
+			Field next = null;
+			for(Iterator<Tuple> it = page.iterator(); it.hasNext() && next == null; ) {
+				Field candidate = it.next().getField(keyField);
+				if(candidate.compare(Op.GREATER_THAN, key)) next = candidate;
+			}
+			BTreePageId rightId = page.getRightSiblingId();
+			if(!held) pool.releasePage(tid, page.getId());
+			if(next != null || rightId == null) return next;
+			// read the sibling under a lock held just as long
+			held = dirtypages.containsKey(rightId) || pool.holdsLock(tid, rightId);
+			page = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_ONLY);
+		}
 	}
-	
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -1021,18 +1350,36 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
-				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		HashMap<PageId, Page> dirtypages;
+		Set<PageId> newlyLocked;
+		BTreeLeafPage page;
+		IndexKey deleted = new IndexKey(tableid, t.getField(keyField));
+		do {
+			dirtypages = new HashMap<PageId, Page>();
+			newlyLocked = new HashSet<PageId>();
+			BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
+					BTreePageId.LEAF);
+			page = null;
+			if(Database.getBufferPool().holdsLock(tid, pageId)) {
+				page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+				if(!holdsTuple(page, t)) page = null;
+			}
+			if(page == null) {
+				// t was read by a search that locked its key, and may have moved since
+				page = leafHolding(tid, dirtypages, newlyLocked, t);
+			}
+		} while(!lockKeyForChange(tid, dirtypages, newlyLocked, deleted));
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+			} finally {
+				endStructureChanges(dirtypages);
+			}
 		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
@@ -1040,6 +1387,60 @@ public class BTreeFile implements DbFile {
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * @return whether the slot of the leaf page the record id of t names holds a tuple with
+	 * the fields of t
+	 */
+	private static boolean holdsTuple(BTreeLeafPage page, Tuple t) {
+		int slot = t.getRecordId().tupleno();
+		if(slot < 0 || slot >= page.getMaxTuples() || !page.isSlotUsed(slot)) return false;
+		return sameFields(page.getTuple(slot), t);
+	}
+
+	private static boolean sameFields(Tuple t1, Tuple t2) {
+		for(int i = 0; i < t1.getTupleDesc().numFields(); i++) {
+			if(!t1.getField(i).equals(t2.getField(i))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find and lock the leaf page that holds a tuple with the fields of t, searching by
+	 * its key, and point the record id of t at that tuple.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param newlyLocked - the leaf pages locked that tid held no lock on before are added to it
+	 * @param t - the tuple to look for
+	 * @return the leaf page holding the tuple, locked with READ_WRITE permission
+	 * @throws DbException if no tuple of the tree has the fields of t
+	 */
+	private BTreeLeafPage leafHolding(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Set<PageId> newlyLocked, Tuple t) throws DbException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		BTreeLeafPage page = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, key, newlyLocked);
+		if(page != null && page.getId().equals(t.getRecordId().getPageId()) && holdsTuple(page, t))
+			return page; // it has not moved
+		while(page != null) {
+			boolean past = false;
+			for(int i = 0; i < page.getMaxTuples() && !past; i++) {
+				if(!page.isSlotUsed(i)) continue;
+				Tuple candidate = page.getTuple(i);
+				Field candidateKey = candidate.getField(keyField);
+				if(candidateKey.equals(key) && sameFields(candidate, t)) {
+					t.setRecordId(new RecordId(page.getId(), i));
+					return page;
+				}
+				past = candidateKey.compare(Op.GREATER_THAN, key);
+			}
+			BTreePageId rightId = page.getRightSiblingId();
+			if(past || rightId == null) break;
+			if(!Database.getBufferPool().holdsLock(tid, rightId)) newlyLocked.add(rightId);
+			page = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+		}
+		throw new DbException("tried to delete a tuple that is not in the tree");
+	}
+
 	/**
 	 * Get a read lock on the root pointer page. Create the root pointer page and root page
 	 * if necessary.
@@ -1052,23 +1453,22 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/** Create the root pointer page and the root page if the file is empty. */
+	private synchronized void createIfEmpty() throws IOException {
+		if(f.length() == 0) {
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			channel.write(emptyRootPtrData, 0);
+			channel.write(emptyLeafData, emptyRootPtrData.length);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1117,11 +1517,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.write(emptyData, f.length());
 				emptyPageNo = numPages();
 			}
 		}
@@ -1152,10 +1549,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(BTreePage.createEmptyPageData(), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1264,6 +1658,11 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/** @return whether the searches of tid lock keys rather than leaf pages */
+	boolean locksKeys(TransactionId tid) {
+		return Database.getBufferPool().keyLockCount(tid) < KEY_LOCKS_BEFORE_ESCALATION;
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1303,11 +1702,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		Database.getBufferPool().hintSequentialScan(tid, f.getId());
+		curp = f.findLeafPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY, null);
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1360,7 +1757,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File. It reads a leaf page at a time: it locks the keys of the
+ * tuples that match and the first key past the range, and keeps the leaf
+ * locked only until the keys of the next one are locked, unless the
+ * transaction has locked too many keys already.
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
@@ -1370,6 +1770,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	boolean lockKeys;
+	/** Leaf pages locked by this search that the transaction held no lock on before */
+	Set<PageId> ownLocks = new HashSet<PageId>();
 
 	/**
 	 * Constructor for this iterator
@@ -1388,61 +1791,98 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		Database.getBufferPool().hintIndexScan(tid, f.getId(), ipred);
+		lockKeys = f.locksKeys(tid);
+		Field start = null;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
-		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			start = ipred.getField();
 		}
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY, start,
+				lockKeys ? ownLocks : null);
+		it = null;
+		if(curp == null && lockKeys) lockKey(null); // the tree is empty
 	}
 
 	/**
-	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * Read the next tuple either from the tuples of the current page matching the
+	 * predicate or from the next page by following the right sibling pointer.
 	 * 
 	 * @return the next tuple matching the predicate, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
-		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
-			}
+		while(it == null || !it.hasNext()) {
+			if(curp == null) return null;
+			readPage();
+		}
+		return it.next();
+	}
 
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
-				return null;
+	/**
+	 * Collect the tuples of the current page that match the predicate and lock their
+	 * keys, then move on to the next page if the range goes on past this one.
+	 */
+	private void readPage() throws TransactionAbortedException, DbException {
+		ArrayList<Tuple> matching = new ArrayList<Tuple>();
+		boolean ended = false;
+		Iterator<Tuple> pageIt = curp.iterator();
+		while(pageIt.hasNext()) {
+			Tuple t = pageIt.next();
+			Field key = t.getField(f.keyField());
+			if(key.compare(ipred.getOp(), ipred.getField())) {
+				lockKey(key);
+				matching.add(t);
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+			else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ
+					|| (ipred.getOp() == Op.EQUALS && key.compare(Op.GREATER_THAN, ipred.getField()))) {
+				// the range ends here: lock the key past it, which an insert into the range locks
+				lockKey(key);
+				ended = true;
+				break;
 			}
 		}
+		it = matching.iterator();
+
+		BTreePageId nextp = ended ? null : curp.getRightSiblingId();
+		if(nextp == null && !ended) lockKey(null);
+		// the keys up to those of this page are locked, so the pages before it may go
+		releaseOwnLocks(curp.getId());
+		if(lockKeys && !f.locksKeys(tid)) {
+			// escalate: keep the pages locked from now on
+			lockKeys = false;
+			ownLocks.clear();
+		}
 
-		return null;
+		if(nextp == null) {
+			releaseOwnLocks(null);
+			curp = null;
+		}
+		else {
+			if(lockKeys && !Database.getBufferPool().holdsLock(tid, nextp)) ownLocks.add(nextp);
+			curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					nextp, Permissions.READ_ONLY);
+		}
+	}
+
+	/** Lock a key read by the search, or the end of the tree if key is null. */
+	private void lockKey(Field key) throws TransactionAbortedException {
+		if(lockKeys) Database.getBufferPool().lockKey(tid, new IndexKey(f.getId(), key), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Release the page locks this search took, but that of keep and those the
+	 * transaction has upgraded since to change the page.
+	 */
+	private void releaseOwnLocks(PageId keep) {
+		BufferPool pool = Database.getBufferPool();
+		for(Iterator<PageId> iter = ownLocks.iterator(); iter.hasNext(); ) {
+			PageId pid = iter.next();
+			if(pid.equals(keep)) continue;
+			if(!pool.holdsLock(tid, pid, Permissions.READ_WRITE)) pool.releasePage(tid, pid);
+			iter.remove();
+		}
 	}
 
 	/**
@@ -1458,6 +1898,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
+		releaseOwnLocks(null);
 		it = null;
+		curp = null;
 	}
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeHeaderPage stores data for one page of a BTreeFile and 
@@ -13,6 +14,7 @@ import java.io.*;
 public class BTreeHeaderPage implements Page {
 	private volatile boolean dirty = false;
 	private volatile TransactionId dirtier = null;
+	private volatile long lsn; // kept in memory only, see Page#getLsn
 	
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -26,6 +28,14 @@ public class BTreeHeaderPage implements Page {
 	byte[] oldData;
 	private final Byte oldDataLock=new Byte((byte)0);
 
+	/**
+	 * Create a BTreeHeaderPage from a byte array read from disk.
+	 * @see #BTreeHeaderPage(BTreePageId, ByteBuffer)
+	 */
+	public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
+		this(id, ByteBuffer.wrap(data));
+	}
+
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
 	 * The format of a BTreeHeaderPage is two pointers to the next and previous
@@ -34,10 +44,10 @@ public class BTreeHeaderPage implements Page {
 	 * @see BufferPool#getPageSize()
 	 * 
 	 */
-	public BTreeHeaderPage(BTreePageId id, byte[] data) throws IOException {
+	public BTreeHeaderPage(BTreePageId id, ByteBuffer data) throws IOException {
 		this.pid = id;
 		this.numSlots = getNumSlots();
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		DataInputStream dis = new DataInputStream(new ByteBufferInputStream(data));
 
 		// Read the next and prev pointers
 		try {
@@ -264,6 +274,14 @@ public class BTreeHeaderPage implements Page {
 			return null;
 	}
 
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
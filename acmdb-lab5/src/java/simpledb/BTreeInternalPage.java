@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import simpledb.Predicate.Op;
 
@@ -41,6 +42,14 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 	
+	/**
+	 * Create a BTreeInternalPage from a byte array read from disk.
+	 * @see #BTreeInternalPage(BTreePageId, ByteBuffer, int)
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+		this(id, ByteBuffer.wrap(data), key);
+	}
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -65,10 +74,10 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param data - the raw data of this page
 	 * @param key - the field which the index is keyed on
 	 */
-	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
+	public BTreeInternalPage(BTreePageId id, ByteBuffer data, int key) throws IOException {
 		super(id, key);
 		this.numSlots = getMaxEntries() + 1;
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		DataInputStream dis = new DataInputStream(new ByteBufferInputStream(data));
 
 		// Read the parent pointer
 		try {
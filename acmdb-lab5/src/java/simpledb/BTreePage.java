@@ -16,6 +16,7 @@ import simpledb.Predicate.Op;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	protected volatile long lsn; // kept in memory only, see Page#getLsn
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -131,6 +132,14 @@ public abstract class BTreePage implements Page {
 			return null;
 	}
 
+	public long getLsn() {
+		return lsn;
+	}
+
+	public void setLsn(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -15,6 +15,7 @@ public class BTreeScan implements DbIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -74,6 +75,7 @@ public class BTreeScan implements DbIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
@@ -95,6 +97,26 @@ public class BTreeScan implements DbIterator {
 		myTd = new TupleDesc(newTypes, newNames);
 	}
 
+	/** @return the id of the table the operator scans */
+	int getTableId() {
+		return tableid;
+	}
+
+	/**
+	 * Change the predicate the tuples returned must match, e.g. to look up
+	 * another key; the scan must be closed.
+	 * @param ipred
+	 * 			  The index predicate to match. If null, the scan will return all tuples
+	 *            in sorted order
+	 */
+	public void setIndexPredicate(IndexPredicate ipred) {
+		if (isOpen)
+			throw new IllegalStateException("the scan is open");
+		this.ipred = ipred;
+		DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+		this.it = ipred == null ? file.iterator(tid) : ((BTreeFile) file).indexIterator(tid, ipred);
+	}
+
 	public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The BlockNestedLoopJoin operator implements the relational join operation
+ * for any predicate, as a nested loops join over blocks of child1: it reads
+ * as many tuples of child1 as fit in a memory budget, scans child2 once for
+ * the whole block, and returns the pairs that satisfy the predicate as they
+ * are found. child2 is scanned once per block rather than once per tuple of
+ * child1, as {@link Join} does.
+ */
+public class BlockNestedLoopJoin extends Operator {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Pages of tuples of child1, as laid out on a HeapPage, a block holds by default. */
+	public static final int DEFAULT_BLOCK_PAGES = 512;
+
+	private final JoinPredicate predicate;
+	private DbIterator child1;
+	private DbIterator child2;
+	private final int lenTuple1;
+	private final int lenTuple2;
+	private final TupleDesc joinedTupleDesc;
+	private final int blockTuples;
+
+	private transient ArrayList<Tuple> block;
+	private transient Tuple tuple2; // the tuple of child2 the block is being joined with
+	private transient int next; // the tuple of the block to try with tuple2 next
+
+	/**
+	 * Constructor. Accepts to children to join and the predicate to join them
+	 * on, with blocks of the default size.
+	 *
+	 * @param p
+	 *            The predicate to use to join the children
+	 * @param child1
+	 *            Iterator for the left(outer) relation to join
+	 * @param child2
+	 *            Iterator for the right(inner) relation to join
+	 */
+	public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+		this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+	}
+
+	/**
+	 * @param blockPages the pages of tuples of child1, as laid out on a
+	 *        HeapPage, a block holds
+	 */
+	public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int blockPages) {
+		if (blockPages < 1) throw new IllegalArgumentException("blockPages must be positive");
+		this.predicate = p;
+		this.child1 = child1;
+		this.child2 = child2;
+		this.lenTuple1 = child1.getTupleDesc().numFields();
+		this.lenTuple2 = child2.getTupleDesc().numFields();
+		this.joinedTupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+		this.blockTuples = blockPages * HeapPage.getNumTuples(child1.getTupleDesc());
+	}
+
+	public JoinPredicate getJoinPredicate() {
+		return predicate;
+	}
+
+	public String getJoinField1Name() {
+		return child1.getTupleDesc().getFieldName(predicate.getField1());
+	}
+
+	public String getJoinField2Name() {
+		return child2.getTupleDesc().getFieldName(predicate.getField2());
+	}
+
+	public TupleDesc getTupleDesc() {
+		return joinedTupleDesc;
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+			TransactionAbortedException {
+		super.open();
+		child1.open();
+		child2.open();
+		block = new ArrayList<>();
+		tuple2 = null;
+	}
+
+	public void close() {
+		super.close();
+		child1.close();
+		child2.close();
+		block = null;
+		tuple2 = null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child1.rewind();
+		block.clear();
+		tuple2 = null;
+	}
+
+	/**
+	 * Returns the next tuple generated by the join, or null if there are no
+	 * more tuples: the tuples of child1 and child2 that satisfy the predicate,
+	 * concatenated.
+	 *
+	 * @return The next matching tuple.
+	 * @see JoinPredicate#filter
+	 */
+	protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			if (tuple2 != null) {
+				while (next < block.size()) {
+					Tuple tuple1 = block.get(next++);
+					if (!predicate.filter(tuple1, tuple2)) continue;
+					Tuple joinedTuple = new Tuple(joinedTupleDesc);
+					for (int i = 0; i < lenTuple1; i++) joinedTuple.setField(i, tuple1.getField(i));
+					for (int i = 0; i < lenTuple2; i++) joinedTuple.setField(i + lenTuple1, tuple2.getField(i));
+					return joinedTuple;
+				}
+				tuple2 = null;
+			}
+			if (!block.isEmpty() && child2.hasNext()) {
+				tuple2 = child2.next();
+				next = 0;
+				continue;
+			}
+			// the block has been joined with all of child2, read the next one
+			block.clear();
+			while (block.size() < blockTuples && child1.hasNext())
+				block.add(child1.next());
+			if (block.isEmpty()) return null;
+			child2.rewind();
+		}
+	}
+
+	@Override
+	public DbIterator[] getChildren() {
+		return new DbIterator[] {child1, child2};
+	}
+
+	@Override
+	public void setChildren(DbIterator[] children) {
+		child1 = children[0];
+		child2 = children[1];
+	}
+
+}
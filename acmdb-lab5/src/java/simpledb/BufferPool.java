@@ -2,9 +2,18 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,7 +22,30 @@ import java.util.LinkedList;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page. A transaction may instead lock a whole
+ * table, see {@link #lockTable}, and a transaction that locks many pages
+ * of a table has them escalated to a table lock; see LockManager.
+ * <p>
+ * The cached pages are split into partitions by the hash of their PageId.
+ * Each partition has its own monitor and replacer, so hits on pages of
+ * different partitions do not serialize; the capacity is shared by all
+ * partitions and eviction may take a frame from any of them. A page is
+ * read from disk without the monitor held, so a miss does not hold up the
+ * hits on its partition.
+ * <p>
+ * A Prefetcher reads the pages a scan is expected to need next into the
+ * pool on background threads.
+ * <p>
+ * Snapshot transactions read heap pages without locking them, through the
+ * versions of their tuples a VersionStore keeps; see
+ * {@link #getSnapshotTuples}.
+ * <p>
+ * Transactions that logged a BEGIN record, see {@link Transaction#start},
+ * run STEAL/NO-FORCE: their dirty pages may be evicted, after an UPDATE
+ * record that can undo them is logged, and their commit logs their pages
+ * and forces only the log. Transactions the log knows nothing of run
+ * NO-STEAL/FORCE as the log could neither redo nor undo them. Either way a
+ * page is only written once the log is durable up to its LSN. See LogFile.
  * 
  * @Threadsafe, all fields are final
  */
@@ -28,10 +60,63 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+	/** Default number of partitions the frames are split into. */
+	public static final int DEFAULT_PARTITIONS = 16;
+
+	/** Sweeps over the partitions before an eviction gives up. */
+	private static final int MAX_EVICTION_SWEEPS = 1000;
+
+	/** Replacement policy used by BufferPools created without an explicit one. */
+	private static volatile ReplacementPolicy defaultPolicy = ReplacementPolicy.LRU_K;
+
     private final int pageNum;
-    private final HashMap<PageId, Page> pid2page;
-    private final LinkedList<PageId> lruList;
+    private final Partition[] partitions;
+    private final AtomicInteger residentPages;
     private final LockManager lockManager;
+    private final Prefetcher prefetcher;
+	private final VersionStore versions;
+	private final Set<TransactionId> rollingBack; // their pages are not to be stolen
+
+	/**
+	 * A partition of the buffer pool: the pages whose ids hash to it, their
+	 * replacement state and the pages being read into it, all guarded by the
+	 * partition's monitor.
+	 */
+	private static class Partition {
+		final HashMap<PageId, Page> pid2page;
+		final PageReplacer replacer;
+		final HashMap<PageId, PageLoad> loading;
+
+		Partition(ReplacementPolicy policy) {
+			pid2page = new HashMap<>();
+			replacer = PageReplacer.create(policy);
+			loading = new HashMap<>();
+		}
+	}
+
+	/**
+	 * A page being read from disk without the partition monitor held. Other
+	 * requests of the page wait for the read rather than read it again.
+	 */
+	private static class PageLoad {
+		boolean stale; // a newer version of the page was put in the pool during the read; guarded by the partition
+		private boolean done;
+
+		synchronized void finish() {
+			done = true;
+			notifyAll();
+		}
+
+		synchronized void await() throws DbException {
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new DbException("interrupted while waiting for a page to be read");
+				}
+			}
+		}
+	}
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -40,10 +125,52 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         // some code goes here
-		pid2page = new HashMap<>();
-		lruList = new LinkedList<>();
+		this(numPages, defaultPolicy);
+	}
+
+	/**
+	 * Creates a BufferPool that caches up to numPages pages and evicts them
+	 * according to the given replacement policy.
+	 *
+	 * @param numPages maximum number of pages in this buffer pool.
+	 * @param policy the page replacement policy
+	 */
+	public BufferPool(int numPages, ReplacementPolicy policy) {
+		this(numPages, policy, DEFAULT_PARTITIONS);
+	}
+
+	/**
+	 * Creates a BufferPool that caches up to numPages pages in the given
+	 * number of partitions.
+	 *
+	 * @param numPages maximum number of pages in this buffer pool.
+	 * @param policy the page replacement policy of every partition
+	 * @param numPartitions number of independently locked partitions
+	 */
+	public BufferPool(int numPages, ReplacementPolicy policy, int numPartitions) {
+		if (numPartitions < 1) throw new IllegalArgumentException("numPartitions must be positive");
 		pageNum = numPages;
+		partitions = new Partition[numPartitions];
+		for (int i = 0; i < numPartitions; i++)
+			partitions[i] = new Partition(policy);
+		residentPages = new AtomicInteger(0);
 		lockManager = new LockManager();
+		rollingBack = ConcurrentHashMap.newKeySet();
+		// read ahead less on small pools, so that prefetching does not evict the pages in use
+		prefetcher = new Prefetcher(this, Math.min(Prefetcher.DEFAULT_PREFETCH_PAGES, numPages / 4));
+		versions = new VersionStore();
+	}
+
+	public static ReplacementPolicy getDefaultReplacementPolicy() {
+		return defaultPolicy;
+	}
+
+	/**
+	 * Set the replacement policy of BufferPools created from now on, e.g. by
+	 * {@link Database#resetBufferPool}.
+	 */
+	public static void setDefaultReplacementPolicy(ReplacementPolicy policy) {
+		defaultPolicy = policy;
 	}
     
     public static int getPageSize() {
@@ -84,21 +211,248 @@ public class BufferPool {
 		else
 			lockManager.acquireLock(tid, pid, LockType.EXCLUSIVE);
 
-		synchronized (this) {
-			if (pid2page.containsKey(pid)) {
-				lruList.remove(pid);
-				lruList.addLast(pid);
-				return pid2page.get(pid);
-			} else {
-				DbFile tableFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+		Page page = fetchPage(pid);
+		prefetcher.accessed(tid, page);
+		return page;
+    }
+
+	/**
+	 * Look the page up in the pool, or read it into the pool. The read is
+	 * done without the partition monitor, so that hits on the partition do
+	 * not wait for the disk; a request of a page being read waits for it.
+	 */
+	private Page fetchPage(PageId pid) throws DbException {
+		Partition partition = partitionOf(pid);
+		while (true) {
+			PageLoad load;
+			boolean reading;
+			synchronized (partition) {
+				Page page = partition.pid2page.get(pid);
+				if (page != null) {
+					accessed(partition, pid);
+					return page;
+				}
+				load = partition.loading.get(pid);
+				reading = load == null;
+				if (reading) {
+					load = new PageLoad();
+					partition.loading.put(pid, load);
+					prefetcher.miss(pid);
+				}
+			}
+			if (reading) return readPage(partition, pid, load, false);
+			load.await(); // then look again, as the read may not have put the page
+		}
+	}
+
+	/**
+	 * Read the page load stands for into the partition, evicting a page
+	 * first if the pool is full, with the partition monitor held for neither;
+	 * then let the requests waiting for load go on.
+	 *
+	 * @param prefetch whether this is a read ahead, which only evicts a clean
+	 *            page and does not access a page put in the pool meanwhile
+	 * @return the page in the pool, or null if a read ahead read nothing
+	 */
+	private Page readPage(Partition partition, PageId pid, PageLoad load, boolean prefetch) throws DbException {
+		boolean reserved = false;
+		boolean admitted = false;
+		try {
+			reserveFrame(partition, prefetch);
+			reserved = true;
+			DbFile tableFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+			while (true) {
 				Page newPage = tableFile.readPage(pid);
-				if (lruList.size() >= pageNum) evictPage();
-				lruList.addLast(pid);
-				pid2page.put(pid, newPage);
-				return newPage;
+				synchronized (partition) {
+					Page page = partition.pid2page.get(pid);
+					if (page != null) { // put by a writer in the meantime
+						if (prefetch) return null;
+						accessed(partition, pid);
+						return page;
+					}
+					if (newPage == null) return null;
+					if (load.stale) { // read before a newer version was written out
+						load.stale = false;
+						continue;
+					}
+					partition.replacer.admit(pid);
+					partition.pid2page.put(pid, newPage);
+					admitted = true;
+					return newPage;
+				}
 			}
+		} finally {
+			if (reserved && !admitted) residentPages.decrementAndGet();
+			synchronized (partition) {
+				partition.loading.remove(pid);
+			}
+			load.finish();
 		}
-    }
+	}
+
+	/**
+	 * Record a hit. The first request of a prefetched page is admitted anew,
+	 * as the read ahead is not a use of the page; otherwise a page the scan
+	 * got to would look hit twice, and be kept over the pages read ahead of it.
+	 */
+	private void accessed(Partition partition, PageId pid) {
+		if (prefetcher.hit(pid)) {
+			partition.replacer.remove(pid);
+			partition.replacer.admit(pid);
+		} else {
+			partition.replacer.access(pid);
+		}
+	}
+
+	/**
+	 * Read a page into the pool for the Prefetcher, without locking it, if
+	 * it is not in the pool and a clean page can be evicted to make room;
+	 * a read ahead is not worth writing a page for.
+	 *
+	 * @return the page read, or null if nothing was read
+	 */
+	Page prefetchPage(PageId pid) {
+		Partition partition = partitionOf(pid);
+		PageLoad load = new PageLoad();
+		synchronized (partition) {
+			if (partition.pid2page.containsKey(pid) || partition.loading.containsKey(pid)) return null;
+			partition.loading.put(pid, load);
+		}
+		try {
+			return readPage(partition, pid, load, true);
+		} catch (DbException e) {
+			return null; // only dirty pages left
+		}
+	}
+
+	/** @return the page if it is in the pool, without locking or accessing it */
+	Page cachedPage(PageId pid) {
+		Partition partition = partitionOf(pid);
+		synchronized (partition) {
+			return partition.pid2page.get(pid);
+		}
+	}
+
+	/**
+	 * Read the tuples of a heap page that the snapshot of tid sees, without
+	 * locking the page, so that neither the reader nor a writer of the page
+	 * ever waits for the other.
+	 *
+	 * @return copies of the tuples, which stay as they are whatever happens
+	 *         to the page
+	 * @see Transaction#startSnapshot
+	 */
+	public List<Tuple> getSnapshotTuples(TransactionId tid, HeapPageId pid) throws DbException {
+		while (true) {
+			Page page = getPageUnlocked(tid, pid);
+			synchronized (versions.latch(pid)) {
+				// the versions describe the page in the pool, which writers change
+				if (cachedPage(pid) == page) return versions.visibleTuples(tid, (HeapPage) page);
+			}
+		}
+	}
+
+	/**
+	 * Retrieve a page without locking it, for a reader that makes sure by
+	 * other means that what it read holds, such as a B+ tree search that
+	 * checks the versions of the pages it passed.
+	 */
+	Page getPageUnlocked(TransactionId tid, PageId pid) throws DbException {
+		Page page = fetchPage(pid);
+		prefetcher.accessed(tid, page);
+		return page;
+	}
+
+	/** @return the versions of the tuples of heap pages, for snapshot transactions */
+	public VersionStore getVersionStore() {
+		return versions;
+	}
+
+	/**
+	 * Tell the prefetcher that tid is about to scan the given table, so that
+	 * it reads ahead from the first page on rather than once it has seen the
+	 * scan read consecutive pages.
+	 */
+	public void hintSequentialScan(TransactionId tid, int tableId) {
+		prefetcher.hintSequentialScan(tid, tableId);
+	}
+
+	/**
+	 * Tell the prefetcher that tid is about to scan the leaves of the given B+
+	 * tree that may match ipred, so that it reads ahead no further than the
+	 * scan will go.
+	 */
+	public void hintIndexScan(TransactionId tid, int tableId, IndexPredicate ipred) {
+		prefetcher.hintIndexScan(tid, tableId, ipred);
+	}
+
+	/** @return the prefetcher of this buffer pool, e.g. for its hit and miss counters */
+	public Prefetcher getPrefetcher() {
+		return prefetcher;
+	}
+
+	private Partition partitionOf(PageId pid) {
+		return partitions[Math.floorMod(pid.hashCode(), partitions.length)];
+	}
+
+	/**
+	 * Reserve a frame for a page about to be added to the given partition,
+	 * evicting a page if the buffer pool is full.
+	 */
+	private void reserveFrame(Partition preferred) throws DbException {
+		reserveFrame(preferred, false);
+	}
+
+	/** @param cleanOnly whether only a clean page may be evicted */
+	private void reserveFrame(Partition preferred, boolean cleanOnly) throws DbException {
+		if (residentPages.incrementAndGet() > pageNum) {
+			try {
+				evictPage(preferred, cleanOnly);
+			} catch (DbException e) {
+				residentPages.decrementAndGet();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Put a page dirtied by tid into the buffer pool, replacing any cached
+	 * version of it.
+	 */
+	private void putDirtyPage(TransactionId tid, Page page) throws DbException {
+		PageId pid = page.getId();
+		Partition partition = partitionOf(pid);
+		synchronized (partition) {
+			Page cached = partition.pid2page.get(pid);
+			if (cached != null) {
+				partition.replacer.access(pid);
+				replace(partition, cached, page);
+				page.markDirty(true, tid);
+				return;
+			}
+		}
+		reserveFrame(partition);
+		synchronized (partition) {
+			Page cached = partition.pid2page.get(pid);
+			if (cached != null) {
+				residentPages.decrementAndGet();
+				partition.replacer.access(pid);
+				replace(partition, cached, page);
+			} else {
+				partition.replacer.admit(pid);
+				partition.pid2page.put(pid, page);
+				PageLoad load = partition.loading.get(pid);
+				if (load != null) load.stale = true; // the read may end after this page is evicted
+			}
+			page.markDirty(true, tid);
+		}
+	}
+
+	/** Put page in the place of the cached version of it, which may have been logged. */
+	private static void replace(Partition partition, Page cached, Page page) {
+		if (cached != page) page.setLsn(Math.max(page.getLsn(), cached.getLsn()));
+		partition.pid2page.put(page.getId(), page);
+	}
 
     /**
      * Releases the lock on a page.
@@ -133,6 +487,58 @@ public class BufferPool {
         return lockManager.holdsLock(tid, p);
     }
 
+	/** Return true if the specified transaction has a lock on the specified page that grants perm */
+	public boolean holdsLock(TransactionId tid, PageId p, Permissions perm) {
+		return lockManager.holdsLock(tid, p, perm == Permissions.READ_ONLY ? LockType.SHARED : LockType.EXCLUSIVE);
+	}
+
+	/**
+	 * Lock a whole table, shared for READ_ONLY and exclusive for READ_WRITE,
+	 * so that the pages and keys of it tid goes on to use need no locks of
+	 * their own; may block until the lock can be acquired.
+	 */
+	public void lockTable(TransactionId tid, int tableId, Permissions perm) throws TransactionAbortedException {
+		lockManager.acquireTableLock(tid, tableId, perm == Permissions.READ_ONLY ? LockType.SHARED : LockType.EXCLUSIVE);
+	}
+
+	/** @return true if tid holds a lock on the whole table that grants perm on all of it */
+	public boolean holdsTableLock(TransactionId tid, int tableId, Permissions perm) {
+		LockType mode = lockManager.tableLockMode(tid, tableId);
+		return mode != null && mode.covers(perm == Permissions.READ_ONLY ? LockType.SHARED : LockType.EXCLUSIVE);
+	}
+
+	/**
+	 * Lock a key of a B+ tree, shared for READ_ONLY and exclusive for
+	 * READ_WRITE; may block until the lock can be acquired.
+	 */
+	public void lockKey(TransactionId tid, IndexKey key, Permissions perm) throws TransactionAbortedException {
+		lockManager.acquireLock(tid, key, perm == Permissions.READ_ONLY ? LockType.SHARED : LockType.EXCLUSIVE);
+	}
+
+	/**
+	 * Lock a key of a B+ tree like {@link #lockKey} if that needs no waiting.
+	 *
+	 * @return true if tid holds the lock now
+	 */
+	public boolean tryLockKey(TransactionId tid, IndexKey key, Permissions perm) {
+		return lockManager.tryAcquireLock(tid, key, perm == Permissions.READ_ONLY ? LockType.SHARED : LockType.EXCLUSIVE);
+	}
+
+	/** Release the lock tid holds on a key of a B+ tree; as risky as {@link #releasePage}. */
+	public void releaseKey(TransactionId tid, IndexKey key) {
+		lockManager.releaseLock(tid, key);
+	}
+
+	/** @return true if tid holds a lock on the key that grants perm */
+	public boolean holdsKeyLock(TransactionId tid, IndexKey key, Permissions perm) {
+		return lockManager.holdsLock(tid, key, perm == Permissions.READ_ONLY ? LockType.SHARED : LockType.EXCLUSIVE);
+	}
+
+	/** @return the number of keys of B+ trees tid holds a lock on */
+	public int keyLockCount(TransactionId tid) {
+		return lockManager.keyLockCount(tid);
+	}
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -144,15 +550,77 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-		if(commit) flushPages(tid);
-		else { // abort
-			for(PageId pageId : lockManager.getExclusiveLockedPageIds(tid))
-				discardPage(pageId);
+		LogFile log = Database.getLogFile();
+		boolean logged = log.isLive(tid);
+		if (commit) {
+			List<Page> dirtyPages = dirtyPages(tid);
+			if (logged) { // NO-FORCE: the log can redo the pages
+				for (Page page : dirtyPages) {
+					synchronized (partitionOf(page.getId())) {
+						logPage(tid, page);
+					}
+				}
+				log.logCommit(tid);
+			} else {
+				flushPages(tid);
+				for (Page page : dirtyPages)
+					page.setBeforeImage();
+			}
+		} else if (logged) {
+			// a steal of one of its pages that is under way is logged
+			// before the rollback reads the log, and no other follows
+			rollingBack.add(tid);
+			try {
+				for (PageId pageId : lockManager.getExclusiveLockedPageIds(tid)) {
+					synchronized (partitionOf(pageId)) { }
+				}
+				log.logAbort(tid); // restores the pages that were stolen
+				restorePages(tid);
+			} finally {
+				rollingBack.remove(tid);
+			}
+		} else {
+			restorePages(tid);
 		}
 
+		versions.transactionComplete(tid, commit);
 		lockManager.releaseAllLocks(tid);
+		prefetcher.transactionComplete(tid);
     }
 
+	/** @return the pages in the pool that tid dirtied */
+	private List<Page> dirtyPages(TransactionId tid) {
+		List<Page> dirtyPages = new ArrayList<>();
+		for (PageId pageId : lockManager.getExclusiveLockedPageIds(tid)) {
+			Partition partition = partitionOf(pageId);
+			synchronized (partition) {
+				Page page = partition.pid2page.get(pageId);
+				if (page != null && tid.equals(page.isDirty()))
+					dirtyPages.add(page);
+			}
+		}
+		return dirtyPages;
+	}
+
+	/**
+	 * Put the before images of the pages aborting tid locked exclusively in
+	 * their place; a B+ tree operation may have changed a page before it
+	 * was marked dirty. The before image of a dirty page may hold changes
+	 * that were committed but not written, so it stays dirty.
+	 */
+	private void restorePages(TransactionId tid) {
+		for (PageId pageId : lockManager.getExclusiveLockedPageIds(tid)) {
+			Partition partition = partitionOf(pageId);
+			synchronized (partition) {
+				Page page = partition.pid2page.get(pageId);
+				if (page == null) continue;
+				Page before = page.getBeforeImage();
+				replace(partition, page, before);
+				if (page.isDirty() != null) before.markDirty(true, tid);
+			}
+		}
+	}
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -176,19 +644,8 @@ public class BufferPool {
 		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
 		ArrayList<Page> dirtyPages = file.insertTuple(tid, t);
 
-		synchronized (this) {
-			for (Page page : dirtyPages) {
-
-				PageId pid = page.getId();
-				if (pid2page.containsKey(pid))
-					lruList.remove(pid);
-				else if (lruList.size() >= pageNum) evictPage();
-				lruList.addLast(pid);
-				pid2page.put(pid, page);
-
-				page.markDirty(true, tid);
-			}
-		}
+		for (Page page : dirtyPages)
+			putDirtyPage(tid, page);
 
     }
 
@@ -213,19 +670,8 @@ public class BufferPool {
 		DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
 		ArrayList<Page> dirtyPages = file.deleteTuple(tid, t);
 
-		synchronized (this) {
-			for (Page page : dirtyPages) {
-
-				PageId pid = page.getId();
-				if (pid2page.containsKey(pid))
-					lruList.remove(pid);
-				else if (lruList.size() >= pageNum) evictPage();
-				lruList.addLast(pid);
-				pid2page.put(pid, page);
-
-				page.markDirty(true, tid);
-			}
-		}
+		for (Page page : dirtyPages)
+			putDirtyPage(tid, page);
 
     }
 
@@ -234,11 +680,15 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-		for (PageId pid : pid2page.keySet())
-			flushPage(pid);
+		for (Partition partition : partitions) {
+			synchronized (partition) {
+				for (PageId pid : partition.pid2page.keySet())
+					flushPage(pid);
+			}
+		}
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -249,14 +699,19 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-		if(pid2page.containsKey(pid)){ // may have been evicted if not dirty
-			Page pageToDiscard = pid2page.get(pid);
-			pageToDiscard.markDirty(false, null);
-			lruList.remove(pid);
-			pid2page.remove(pid);
+		Partition partition = partitionOf(pid);
+		synchronized (partition) {
+			Page pageToDiscard = partition.pid2page.remove(pid);
+			if (pageToDiscard != null) { // may have been evicted if not dirty
+				pageToDiscard.markDirty(false, null);
+				partition.replacer.remove(pid);
+				residentPages.decrementAndGet();
+				prefetcher.removed(pid);
+			}
+			Database.getLogFile().pageDiscarded(pid);
 		}
     }
 
@@ -264,54 +719,163 @@ public class BufferPool {
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-		if(pid2page.containsKey(pid)) {
-			Page pageToFlush = pid2page.get(pid);
-			DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
-			table.writePage(pageToFlush);
-			pageToFlush.markDirty(false, null);
+		Partition partition = partitionOf(pid);
+		synchronized (partition) {
+			Page pageToFlush = partition.pid2page.get(pid);
+			if (pageToFlush != null && pageToFlush.isDirty() != null
+					&& !rollingBack.contains(pageToFlush.isDirty())) {
+				logIfStolen(pageToFlush);
+				Database.getLogFile().forceUpTo(pageToFlush.getLsn());
+				DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
+				table.writePage(pageToFlush);
+				pageToFlush.markDirty(false, null);
+				Database.getLogFile().pageWritten(pid);
+			}
 		}
     }
 
+	/**
+	 * Write those of the given pages that are dirty, e.g. the ones a
+	 * checkpoint wants on disk so that redo can start after their records.
+	 */
+	public void flushPages(Collection<PageId> pageIds) throws IOException {
+		for (PageId pid : pageIds) {
+			flushPage(pid);
+			Partition partition = partitionOf(pid);
+			synchronized (partition) {
+				// a page the pool dropped, e.g. with the pool replaced, has nothing to write
+				if (!partition.pid2page.containsKey(pid))
+					Database.getLogFile().pageWritten(pid);
+			}
+		}
+	}
+
+	/**
+	 * Log the page, about to be written, if it holds changes of a
+	 * transaction that is still running, so that they can be undone.
+	 */
+	private void logIfStolen(Page page) throws IOException {
+		TransactionId dirtier = page.isDirty();
+		if (dirtier == null || !lockManager.holdsLock(dirtier, page.getId())) return; // committed
+		if (Database.getLogFile().isLive(dirtier))
+			logPage(dirtier, page);
+	}
+
+	/**
+	 * Log the changes tid made to the page since it was last logged, and
+	 * make it the base the next record of the page is taken against. The
+	 * partition of the page must be locked, so that the two happen
+	 * together.
+	 */
+	private static void logPage(TransactionId tid, Page page) throws IOException {
+		page.setLsn(Database.getLogFile().logWrite(tid, page.getBeforeImage(), page));
+		page.setBeforeImage();
+	}
+
+	private static boolean isClean(Page page) {
+		return page.isDirty() == null;
+	}
+
+	/** @return whether the page is dirty and holds no changes of a running transaction */
+	private boolean isCommitted(Page page) {
+		TransactionId dirtier = page.isDirty();
+		return dirtier != null && !lockManager.holdsLock(dirtier, page.getId());
+	}
+
+	/** @return whether the page holds changes of a running transaction that the log can undo */
+	private boolean canSteal(Page page) {
+		TransactionId dirtier = page.isDirty();
+		return dirtier != null && lockManager.holdsLock(dirtier, page.getId())
+				&& !rollingBack.contains(dirtier) && Database.getLogFile().isLive(dirtier);
+	}
+
     /** Write all pages of the specified transaction to disk.
+     * The dirty pages are sorted by file and page number, and each file
+     * writes its pages as one batch that it forces to disk once.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-		for(PageId pageId : lockManager.getExclusiveLockedPageIds(tid))
-			flushPage(pageId);
+		Map<Integer, List<Page>> tableId2pages = new TreeMap<>();
+		for (PageId pageId : lockManager.getExclusiveLockedPageIds(tid)) {
+			Partition partition = partitionOf(pageId);
+			synchronized (partition) {
+				Page page = partition.pid2page.get(pageId);
+				if (page != null && page.isDirty() != null)
+					tableId2pages.computeIfAbsent(pageId.getTableId(), key -> new ArrayList<>()).add(page);
+			}
+		}
+		// the pages are locked exclusively, so nobody changes them while they are written
+		LogFile log = Database.getLogFile();
+		long lsn = 0;
+		for (List<Page> pages : tableId2pages.values()) {
+			for (Page page : pages) {
+				logIfStolen(page);
+				lsn = Math.max(lsn, page.getLsn());
+			}
+		}
+		log.forceUpTo(lsn);
+		for (Map.Entry<Integer, List<Page>> entry : tableId2pages.entrySet()) {
+			List<Page> pages = entry.getValue();
+			pages.sort(Comparator.comparingInt(page -> page.getId().pageNumber()));
+			Database.getCatalog().getDatabaseFile(entry.getKey()).writePages(pages);
+			for (Page page : pages) {
+				page.markDirty(false, null);
+				log.pageWritten(page.getId());
+			}
+		}
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Clean pages are evicted first, then dirty pages of finished
+     * transactions, and only then pages stolen from a running transaction
+     * whose log can undo them. Among the pages of the same kind, the victim
+     * is taken from the preferred partition if it has one, and from the
+     * other partitions otherwise.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage(Partition preferred, boolean cleanOnly) throws DbException {
         // some code goes here
         // not necessary for lab1
-
-//		PageId pageIdToEvict = lruList.pollFirst();
-
-		Iterator<PageId> iter = lruList.iterator();
-		PageId pageIdToEvict = null;
-		while(iter.hasNext()){
-			PageId pageId = iter.next(); // concurrent modification exception may occur
-			if(pid2page.get(pageId).isDirty() == null){ // not dirty
-				pageIdToEvict = pageId;
-				break;
+		int start = 0;
+		while (partitions[start] != preferred) start++;
+		List<Predicate<Page>> tiers = cleanOnly ? Collections.singletonList(BufferPool::isClean)
+				: Arrays.asList(BufferPool::isClean, this::isCommitted, this::canSteal);
+		for (int attempt = 0; attempt < MAX_EVICTION_SWEEPS; attempt++) {
+			boolean sawPage = false;
+			for (int tier = 0; tier < tiers.size(); tier++) {
+				Predicate<Page> evictable = tiers.get(tier);
+				for (int i = 0; i < partitions.length; i++) {
+					Partition partition = partitions[(start + i) % partitions.length];
+					synchronized (partition) {
+						if (tier == 0) sawPage |= !partition.pid2page.isEmpty();
+						PageId pageIdToEvict = partition.replacer.victim(
+								pageId -> evictable.test(partition.pid2page.get(pageId)));
+						if (pageIdToEvict != null) {
+							try {
+								flushPage(pageIdToEvict);
+							} catch (IOException e) {
+								throw new DbException("could not write page " + pageIdToEvict + ": " + e);
+							}
+							partition.replacer.remove(pageIdToEvict);
+							partition.pid2page.remove(pageIdToEvict);
+							residentPages.decrementAndGet();
+							prefetcher.removed(pageIdToEvict);
+							return;
+						}
+					}
+				}
 			}
+			// only pages that cannot be written left
+			if (sawPage) break;
+			// every frame is reserved by a concurrent miss that has not put its page yet
+			Thread.yield();
 		}
-		if(pageIdToEvict == null) throw new DbException("No clean page to evict.");
-
-		try {
-			flushPage(pageIdToEvict);
-		}catch (IOException e){
-			e.printStackTrace();
-		}
-		lruList.remove(pageIdToEvict);
-		pid2page.remove(pageIdToEvict);
+		throw new DbException("No page to evict: the pages are dirtied by running transactions that have no log.");
     }
 
 }
@@ -50,12 +50,12 @@ public class Catalog {
 			int id_to_remove = name2id.get(name);
 			id2name.remove(id_to_remove);
 			id2pkeyName.remove(id_to_remove);
-			id2file.remove(id_to_remove);
+			closeFile(id2file.remove(id_to_remove), file);
 		}
 		name2id.put(name, id);
 		id2name.put(id, name);
 		id2pkeyName.put(id, pkeyField);
-		id2file.put(id, file);
+		closeFile(id2file.put(id, file), file);
     }
 
     public void addTable(DbFile file, String name) {
@@ -124,14 +124,36 @@ public class Catalog {
 		else return id2name.get(id);
     }
     
+    /**
+     * Select whether the pages of the table with the specified id are read
+     * through a memory mapping of its file.
+     * @throws NoSuchElementException if the table doesn't exist
+     * @throws UnsupportedOperationException if its file cannot be mapped
+     */
+    public void setMemoryMapped(int tableid, boolean mapped) throws NoSuchElementException {
+		getDatabaseFile(tableid).setMemoryMapped(mapped);
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+		for(DbFile file : id2file.values())
+			closeFile(file, null);
 		id2name.clear();
 		id2pkeyName.clear();
 		id2file.clear();
 		name2id.clear();
     }
+
+    /** Close a file that is no longer in the catalog, unless it is being added back. */
+    private void closeFile(DbFile file, DbFile replacement) {
+		if(file == null || file == replacement) return;
+		try {
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+    }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
@@ -144,7 +166,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [mmap]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -176,6 +198,13 @@ public class Catalog {
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                if (options.equals("mmap"))
+                    tabHf.setMemoryMapped(true);
+                else if (!options.isEmpty()) {
+                    System.out.println("Unknown table option " + options);
+                    System.exit(0);
+                }
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -0,0 +1,105 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) page replacement. Every resident page owns a slot on
+ * the clock and a usage count; a hit just bumps the count. The hand sweeps
+ * the slots, decrementing non-zero counts, and stops at the first evictable
+ * page whose count is already zero.
+ * <p>
+ * The plain policy keeps a single reference bit. The scan resistant policy
+ * admits pages with a zero count and lets hits raise it up to
+ * {@link #MAX_USAGE}, so a page used once by a scan goes before pages that
+ * keep being hit.
+ *
+ * @see ReplacementPolicy#CLOCK
+ * @see ReplacementPolicy#SCAN_RESISTANT_CLOCK
+ */
+public class ClockReplacer implements PageReplacer {
+
+	public static final int MAX_USAGE = 5;
+
+	private final int initialUsage;
+	private final int maxUsage;
+	private final HashMap<PageId, Integer> pid2slot;
+	private final ArrayList<PageId> slots;
+	private int[] usage;
+	private final ArrayList<Integer> freeSlots;
+	private int hand;
+
+	/**
+	 * @param scanResistant if true, pages are admitted with a zero usage count
+	 *                      so that pages used only once are evicted before
+	 *                      pages that have been hit again
+	 */
+	public ClockReplacer(boolean scanResistant) {
+		initialUsage = scanResistant ? 0 : 1;
+		maxUsage = scanResistant ? MAX_USAGE : 1;
+		pid2slot = new HashMap<>();
+		slots = new ArrayList<>();
+		usage = new int[16];
+		freeSlots = new ArrayList<>();
+		hand = 0;
+	}
+
+	@Override
+	public void admit(PageId pid) {
+		if (pid2slot.containsKey(pid)) {
+			access(pid);
+			return;
+		}
+		int slot;
+		if (freeSlots.isEmpty()) {
+			slot = slots.size();
+			slots.add(pid);
+			if (slot == usage.length) usage = Arrays.copyOf(usage, 2 * slot);
+		} else {
+			slot = freeSlots.remove(freeSlots.size() - 1);
+			slots.set(slot, pid);
+		}
+		usage[slot] = initialUsage;
+		pid2slot.put(pid, slot);
+	}
+
+	@Override
+	public void access(PageId pid) {
+		Integer slot = pid2slot.get(pid);
+		if (slot != null && usage[slot] < maxUsage) usage[slot]++;
+	}
+
+	@Override
+	public void remove(PageId pid) {
+		Integer slot = pid2slot.remove(pid);
+		if (slot == null) return;
+		slots.set(slot, null);
+		usage[slot] = 0;
+		freeSlots.add(slot);
+	}
+
+	@Override
+	public PageId victim(Predicate<PageId> evictable) {
+		int n = slots.size();
+		// enough turns to bring every usage count down to zero
+		for (int step = 0; step < (maxUsage + 1) * n; step++) {
+			if (hand >= n) hand = 0;
+			int slot = hand++;
+			PageId pid = slots.get(slot);
+			if (pid == null) continue;
+			if (usage[slot] > 0) {
+				usage[slot]--;
+				continue;
+			}
+			if (evictable.test(pid)) return pid;
+		}
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return pid2slot.size();
+	}
+}
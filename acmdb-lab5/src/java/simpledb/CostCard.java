@@ -11,4 +11,6 @@ public class CostCard {
     public int card;
     /** The optimal subplan */
     public Vector<LogicalJoinNode> plan;
+    /** The field, as alias.field, the output of the optimal subplan is in ascending order of, or null */
+    public String sortedOn;
 }
@@ -19,6 +19,21 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Read the specified pages from disk, e.g. the ones recovery starts
+     * from. Files that can should read adjacent pages together.
+     *
+     * @param pids the pages to read, in the order of their page numbers
+     * @return the pages, in the same order
+     * @throws IllegalArgumentException if a page does not exist in this file.
+     */
+    default List<Page> readPages(List<PageId> pids) {
+        List<Page> pages = new ArrayList<>();
+        for (PageId pid : pids)
+            pages.add(readPage(pid));
+        return pages;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -28,6 +43,29 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push the specified pages to disk and make them durable, as at commit.
+     * Files that can should write adjacent pages together and force the file
+     * to disk once for all of them.
+     *
+     * @param pages the pages to write, in the order of their page numbers
+     * @throws IOException if a write fails
+     */
+    default void writePages(List<Page> pages) throws IOException {
+        for (Page page : pages)
+            writePage(page);
+    }
+
+    /**
+     * Make the pages written so far durable, e.g. before a checkpoint lets
+     * the log forget them. Files whose writes are durable once they return
+     * need not override it.
+     *
+     * @throws IOException if the file cannot be forced
+     */
+    default void force() throws IOException {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -90,4 +128,28 @@ public interface DbFile {
     public TupleDesc getTupleDesc();
 
 	public int numPages();
+
+    /**
+     * Releases the operating system resources, such as open file handles, held
+     * by this file. The file may still be used afterwards and then acquires
+     * them again.
+     */
+    default void close() throws IOException {
+    }
+
+    /**
+     * Selects whether pages are read as views of a memory mapping of the file
+     * instead of being copied out of it, which suits tables that are mostly
+     * scanned. Writes are not affected.
+     *
+     * @throws UnsupportedOperationException if this file cannot be mapped
+     */
+    default void setMemoryMapped(boolean mapped) {
+        if (mapped) throw new UnsupportedOperationException("memory mapping is not supported");
+    }
+
+    /** @return true if pages are read through a memory mapping of the file */
+    default boolean isMemoryMapped() {
+        return false;
+    }
 }
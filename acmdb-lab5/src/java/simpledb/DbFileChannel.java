@@ -0,0 +1,250 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * DbFileChannel is the FileChannel a DbFile keeps open on its backing file.
+ * <p>
+ * Reads and writes are positional, so threads reading different pages need
+ * no seek lock and share the one file descriptor. The channel is opened on
+ * first use, and opened again if it was closed, so a DbFile that is still in
+ * use after {@link #close} keeps working.
+ * <p>
+ * A batch of pages, e.g. those written at commit, can be written with
+ * {@link #write(SortedMap)}, which writes adjacent pages with one gathering
+ * write, and then made durable with one {@link #force}. A batch can be read
+ * the same way with {@link #read(SortedMap)}.
+ * <p>
+ * Pages can also be read as views of a read-only memory mapping of the file,
+ * see {@link #map}. Writes still go through the channel; since the mapping
+ * is shared with the operating system's page cache, it sees them.
+ *
+ * @Threadsafe
+ */
+public class DbFileChannel implements Closeable {
+
+	/** The file is mapped in regions of this size, as one mapping cannot exceed 2GB. */
+	static final long MAP_REGION_SIZE = 1L << 30;
+
+	private final File file;
+	private final Object positionLock = new Object(); // gathering writes use the channel position
+	private volatile FileChannel channel;
+	private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+	public DbFileChannel(File file) {
+		this.file = file;
+	}
+
+	private FileChannel channel() throws IOException {
+		FileChannel fc = channel;
+		if (fc != null && fc.isOpen()) return fc;
+		synchronized (this) {
+			if (channel == null || !channel.isOpen())
+				channel = new RandomAccessFile(file, "rw").getChannel();
+			return channel;
+		}
+	}
+
+	/**
+	 * Read data.length bytes starting at the given position, or as many as
+	 * there are before the end of the file.
+	 *
+	 * @return the number of bytes read
+	 */
+	public int read(byte[] data, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			try {
+				if (channel().read(buffer, position + buffer.position()) < 0) break;
+			} catch (ClosedChannelException e) {
+				rethrowIfInterrupted(e);
+			}
+		}
+		return buffer.position();
+	}
+
+	/** Write all of data starting at the given position. */
+	public void write(byte[] data, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			try {
+				channel().write(buffer, position + buffer.position());
+			} catch (ClosedChannelException e) {
+				rethrowIfInterrupted(e);
+			}
+		}
+	}
+
+	/**
+	 * Read each block from the position it is mapped to, as
+	 * {@link #read(byte[], long)} does. Blocks that follow each other in the
+	 * file are read together with one scattering read.
+	 */
+	public void read(SortedMap<Long, byte[]> blocks) throws IOException {
+		forEachRun(blocks, this::read);
+	}
+
+	/**
+	 * Write each block at the position it is mapped to. Blocks that follow
+	 * each other in the file are written together with one gathering write.
+	 */
+	public void write(SortedMap<Long, byte[]> blocks) throws IOException {
+		forEachRun(blocks, this::write);
+	}
+
+	/** A read or write of a run of blocks that follow each other in the file. */
+	private interface RunTransfer {
+		void transfer(ByteBuffer[] run, long position) throws IOException;
+	}
+
+	private static void forEachRun(SortedMap<Long, byte[]> blocks, RunTransfer transfer) throws IOException {
+		List<ByteBuffer> run = new ArrayList<>();
+		long runStart = 0, runEnd = 0;
+		for (Map.Entry<Long, byte[]> block : blocks.entrySet()) {
+			if (!run.isEmpty() && block.getKey() != runEnd) {
+				transfer.transfer(run.toArray(new ByteBuffer[0]), runStart);
+				run.clear();
+			}
+			if (run.isEmpty()) runStart = runEnd = block.getKey();
+			run.add(ByteBuffer.wrap(block.getValue()));
+			runEnd += block.getValue().length;
+		}
+		if (!run.isEmpty()) transfer.transfer(run.toArray(new ByteBuffer[0]), runStart);
+	}
+
+	private void read(ByteBuffer[] run, long position) throws IOException {
+		if (run.length == 1) {
+			read(run[0].array(), position);
+			return;
+		}
+		long length = 0;
+		for (ByteBuffer buffer : run)
+			length += buffer.remaining();
+		long done = 0;
+		synchronized (positionLock) {
+			while (done < length) {
+				try {
+					FileChannel fc = channel();
+					fc.position(position + done);
+					long read = fc.read(run);
+					if (read < 0) break; // the rest is past the end of the file
+					done += read;
+				} catch (ClosedChannelException e) {
+					rethrowIfInterrupted(e);
+				}
+			}
+		}
+	}
+
+	private void write(ByteBuffer[] run, long position) throws IOException {
+		if (run.length == 1) {
+			write(run[0].array(), position);
+			return;
+		}
+		long length = 0;
+		for (ByteBuffer buffer : run)
+			length += buffer.remaining();
+		long written = 0;
+		synchronized (positionLock) {
+			while (written < length) {
+				try {
+					FileChannel fc = channel();
+					fc.position(position + written);
+					written += fc.write(run);
+				} catch (ClosedChannelException e) {
+					rethrowIfInterrupted(e);
+				}
+			}
+		}
+	}
+
+	/** Make the writes so far durable; metadata such as the modification time is not forced. */
+	public void force() throws IOException {
+		while (true) {
+			try {
+				channel().force(false);
+				return;
+			} catch (ClosedChannelException e) {
+				rethrowIfInterrupted(e);
+			}
+		}
+	}
+
+	/** Cut the file off after the given number of bytes. */
+	public void truncate(long size) throws IOException {
+		channel().truncate(size);
+	}
+
+	/**
+	 * The channel was closed under us, normally by {@link #close}, and the
+	 * caller retries with a new one. An interrupt also closes the channel, but
+	 * a retry would only be interrupted again.
+	 */
+	private void rethrowIfInterrupted(ClosedChannelException e) throws ClosedChannelException {
+		if (e instanceof ClosedByInterruptException) throw e;
+	}
+
+	/**
+	 * Return a read-only view of size bytes starting at the given position,
+	 * backed by a memory mapping of the file rather than a copy. A region is
+	 * mapped again when the file has grown past it. The rare range that
+	 * crosses two regions, or the end of the file, is read into a new buffer
+	 * instead.
+	 */
+	public ByteBuffer map(long position, int size) throws IOException {
+		int index = (int) (position / MAP_REGION_SIZE);
+		int offset = (int) (position % MAP_REGION_SIZE);
+		MappedByteBuffer region = offset + size <= MAP_REGION_SIZE ? region(index, offset + size) : null;
+		if (region == null) {
+			byte[] data = new byte[size];
+			read(data, position);
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+		ByteBuffer view = region.duplicate();
+		view.limit(offset + size).position(offset);
+		return view.slice();
+	}
+
+	/** @return region index mapped at least minLength bytes long, or null if the file is too short */
+	private MappedByteBuffer region(int index, long minLength) throws IOException {
+		MappedByteBuffer[] mapped = regions;
+		if (index < mapped.length && mapped[index] != null && mapped[index].capacity() >= minLength)
+			return mapped[index];
+		synchronized (this) {
+			mapped = regions;
+			if (index < mapped.length && mapped[index] != null && mapped[index].capacity() >= minLength)
+				return mapped[index];
+			FileChannel fc = channel();
+			long start = index * MAP_REGION_SIZE;
+			long length = Math.min(MAP_REGION_SIZE, fc.size() - start);
+			if (length < minLength) return null;
+			mapped = Arrays.copyOf(mapped, Math.max(mapped.length, index + 1));
+			mapped[index] = fc.map(FileChannel.MapMode.READ_ONLY, start, length);
+			regions = mapped;
+			return mapped[index];
+		}
+	}
+
+	/**
+	 * Close the channel and drop the mappings; the memory of a mapping is
+	 * given back once no page refers to it any more.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		regions = new MappedByteBuffer[0];
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one free
+ * tuple slot, so that HeapFile.insertTuple can go straight to such a page
+ * instead of locking and reading every page before it.
+ * <p>
+ * The map is a bitmap with one bit per page, kept in memory and stored next
+ * to the heap file in a file with the ".fsm" suffix. The in-memory bits
+ * follow HeapPage.insertTuple/deleteTuple; the bits on disk are written along
+ * with the pages, so they describe the pages on disk. If the map file is
+ * missing or older than the heap file, the map is rebuilt from the page
+ * headers the first time it is needed.
+ * <p>
+ * The map file belongs to the heap file: whoever deletes the heap file
+ * deletes the map file with it. A heap file in the temporary directory is
+ * taken to be deleted when the JVM exits, as SystemTestUtil and
+ * BTreeUtility do for the tables they create, so its map file is too.
+ * <p>
+ * The map is only a hint: a page it points to is still checked under its
+ * page lock, and a wrong bit is fixed as soon as the page is looked at.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+
+	public static final String SUFFIX = ".fsm";
+
+	private final HeapFile heapFile;
+	private final File fsmFile;
+	private final DbFileChannel fsmChannel;
+	private BitSet freePages; // null until loaded
+	private boolean persisted; // whether fsmFile holds the whole map
+
+	public FreeSpaceMap(HeapFile heapFile) {
+		this.heapFile = heapFile;
+		this.fsmFile = new File(heapFile.getFile().getPath() + SUFFIX);
+		if (isTemporary(heapFile.getFile())) fsmFile.deleteOnExit();
+		this.fsmChannel = new DbFileChannel(fsmFile);
+	}
+
+	/** @return whether f is in the temporary directory of the JVM */
+	private static boolean isTemporary(File f) {
+		try {
+			File tmpDir = new File(System.getProperty("java.io.tmpdir")).getCanonicalFile();
+			File dir = f.getCanonicalFile().getParentFile();
+			return tmpDir.equals(dir);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/** @return the file the map is stored in */
+	public File getFile() {
+		return fsmFile;
+	}
+
+	/**
+	 * @return the first page at or after fromPage that may have a free slot,
+	 *         or -1 if there is none
+	 */
+	public synchronized int nextPageWithFreeSlot(int fromPage) throws IOException {
+		load();
+		int pageNo = freePages.nextSetBit(fromPage);
+		return pageNo < heapFile.numPages() ? pageNo : -1;
+	}
+
+	/** Record whether a page in memory has a free slot. */
+	public synchronized void update(int pageNo, boolean hasFreeSlot) {
+		if (freePages != null) freePages.set(pageNo, hasFreeSlot);
+	}
+
+	/** Record whether a page just written to disk has a free slot, and store the bit. */
+	public synchronized void pageWritten(int pageNo, boolean hasFreeSlot) throws IOException {
+		load();
+		freePages.set(pageNo, hasFreeSlot);
+		if (persisted) {
+			fsmChannel.write(new byte[] {(byte) byteOf(pageNo / 8)}, pageNo / 8);
+		} else {
+			byte[] bytes = new byte[(heapFile.numPages() + 7) / 8];
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = (byte) byteOf(i);
+			fsmChannel.truncate(0);
+			fsmChannel.write(bytes, 0);
+			persisted = true;
+		}
+	}
+
+	/** Close the map file; it is opened again when needed. */
+	public void close() throws IOException {
+		fsmChannel.close();
+	}
+
+	private int byteOf(int index) {
+		int b = 0;
+		for (int bit = 0; bit < 8; bit++)
+			if (freePages.get(index * 8 + bit)) b |= 1 << bit;
+		return b;
+	}
+
+	/** Read the map from its file, or rebuild it from the heap file if it is missing or stale. */
+	private void load() throws IOException {
+		if (freePages != null) return;
+		File file = heapFile.getFile();
+		int numPages = heapFile.numPages();
+		if (fsmFile.exists() && fsmFile.length() >= (numPages + 7) / 8
+				&& fsmFile.lastModified() >= file.lastModified()) {
+			byte[] bytes = new byte[(int) fsmFile.length()];
+			fsmChannel.read(bytes, 0);
+			freePages = BitSet.valueOf(bytes);
+			persisted = true;
+			return;
+		}
+
+		freePages = new BitSet(numPages);
+		persisted = false;
+		if (numPages == 0) return;
+		int numSlots = HeapPage.getNumTuples(heapFile.getTupleDesc());
+		byte[] header = new byte[HeapPage.getHeaderSize(heapFile.getTupleDesc())];
+		for (int pageNo = 0; pageNo < numPages; pageNo++) {
+			heapFile.getChannel().read(header, (long) pageNo * BufferPool.getPageSize());
+			for (int slot = 0; slot < numSlots; slot++) {
+				if (((header[slot / 8] >> (slot % 8)) & 1) == 0) {
+					freePages.set(pageNo);
+					break;
+				}
+			}
+		}
+	}
+}
@@ -3,25 +3,58 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational join operation for
+ * equality predicates, as a hybrid hash join within a memory budget.
+ * <p>
+ * When it is opened it reads child2, the build side, into JoinHashTables,
+ * one for each of {@link #FANOUT} partitions of the join key. While the
+ * build side does not fit in the budget, the largest partition in memory is
+ * written to a SpillFile, and so are the build tuples that fall into it
+ * later. Then child1, the probe side, is streamed past the partitions: a
+ * tuple of a partition in memory probes its table and its matches are
+ * returned one at a time, and a tuple of a partition on disk is written to
+ * a SpillFile of that partition. Once child1 is exhausted, every pair of
+ * spilled partitions is joined the same way, partitioned again with
+ * another hash if it still does not fit. A partition that does not fit
+ * after {@link #MAX_LEVEL} passes has too many tuples with one key to be
+ * split, and its build side is taken a budget at a time, with its probe
+ * side read once for each.
+ * <p>
+ * If the build side fits in memory nothing is written, and rewinding
+ * rescans child1 only; otherwise rewinding starts over.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+	/** Pages of build tuples, as laid out on a HeapPage, a join may keep in memory by default. */
+	public static final int DEFAULT_MEMORY_PAGES = 512;
+
+	/** The number of partitions each pass splits its inputs into. */
+	static final int FANOUT = 32;
+
+	/** The number of times a partition is split before its build side is taken a budget at a time. */
+	static final int MAX_LEVEL = 3;
+
 	private final JoinPredicate predicate;
 	private DbIterator child1;
 	private DbIterator child2;
 	private final int lenTuple1;
 	private final int lenTuple2;
-	private final ArrayList<Tuple> joinedArray;
-	private Iterator<Tuple> joinedIter;
 	private final TupleDesc joinedTupleDesc;
-	private HashMap<Field, ArrayList<Tuple>> child2HashMap;
+	private final int memoryPages;
+
+	private transient Pass firstPass; // reads the children
+	private transient Pass pass; // the pass being probed, null once all are done
+	private transient Deque<Pass> pending; // passes over spilled partitions
+	private transient JoinHashTable matchTable;
+	private transient Tuple tuple1; // the tuple of the probe side being joined
+	private transient int match; // the next build tuple that matches tuple1
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -31,14 +64,23 @@ public class HashEquiJoin extends Operator {
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
 		// some code goes here
+		this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+	}
+
+	/**
+	 * @param memoryPages the pages of tuples of child2, as laid out on a
+	 *        HeapPage, the join may keep in memory
+	 */
+	public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryPages) {
+		if (memoryPages < 1) throw new IllegalArgumentException("memoryPages must be positive");
 		this.predicate = p;
 		this.child1 = child1;
 		this.child2 = child2;
 		this.lenTuple1 = child1.getTupleDesc().numFields();
 		this.lenTuple2 = child2.getTupleDesc().numFields();
 		this.joinedTupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
-		this.joinedArray = new ArrayList<>();
-		this.joinedIter = null;
+		this.memoryPages = memoryPages;
+		this.match = JoinHashTable.NONE;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -50,7 +92,7 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         return joinedTupleDesc;
     }
-    
+
     public String getJoinField1Name()
     {
         // some code goes here
@@ -62,56 +104,64 @@ public class HashEquiJoin extends Operator {
         // some code goes here
 		return child2.getTupleDesc().getFieldName(predicate.getField2());
     }
-    
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
 		super.open();
 		child1.open();
 		child2.open();
-		child2HashMap = new HashMap<>();
-		int child1Idx = this.predicate.getField1();
-		int child2Idx = this.predicate.getField2();
-		while(child2.hasNext()){
-			Tuple tuple = child2.next();
-			Field field = tuple.getField(child2Idx);
-			if(!child2HashMap.containsKey(field)) child2HashMap.put(field, new ArrayList<>());
-			child2HashMap.get(field).add(tuple);
-		}
-		while(child1.hasNext()){
-			Tuple tuple1 = child1.next();
-			Field field1 = tuple1.getField(child1Idx);
-			for(Field field2 : child2HashMap.keySet()){
-				Tuple example_tuple2 = child2HashMap.get(field2).iterator().next();
-				if(predicate.filter(tuple1, example_tuple2)){
-					for (Tuple tuple2 : child2HashMap.get(field2)) {
-						Tuple joinedTuple = new Tuple(joinedTupleDesc);
-						for (int i = 0; i < lenTuple1; i++) joinedTuple.setField(i, tuple1.getField(i));
-						for (int i = 0; i < lenTuple2; i++) joinedTuple.setField(i + lenTuple1, tuple2.getField(i));
-						joinedArray.add(joinedTuple);
-					}
-				}
-			}
-		}
-		joinedIter = joinedArray.iterator();
+		start();
     }
 
+	/** Read child2 into the first pass, and get ready to probe it with child1. */
+	private void start() throws DbException, TransactionAbortedException {
+		pending = new ArrayDeque<>();
+		firstPass = new Pass(child2, child1, 0, null, null);
+		firstPass.load();
+		pass = firstPass;
+		tuple1 = null;
+		match = JoinHashTable.NONE;
+	}
+
     public void close() {
         // some code goes here
 		super.close();
 		child1.close();
 		child2.close();
-		joinedArray.clear();
-		joinedIter = null;
+		discard();
     }
 
+	/** Delete the spill files of every pass. */
+	private void discard() {
+		if (pass != null) pass.discard();
+		if (firstPass != null) firstPass.discard();
+		if (pending != null) {
+			for (Pass p : pending) p.discard();
+			pending.clear();
+		}
+		firstPass = null;
+		pass = null;
+		matchTable = null;
+		tuple1 = null;
+		match = JoinHashTable.NONE;
+	}
+
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-		joinedIter = joinedArray.iterator();
+		child1.rewind();
+		if (firstPass != null && firstPass.inMemory()) {
+			pass = firstPass;
+			matchTable = null;
+			tuple1 = null;
+			match = JoinHashTable.NONE;
+			return;
+		}
+		discard();
+		child2.rewind();
+		start();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -126,15 +176,185 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return joinedIter.hasNext() ? joinedIter.next() : null;
+		while (match == JoinHashTable.NONE) {
+			if (pass == null) return null;
+			if (!pass.probe.hasNext()) {
+				pass = pass.next();
+				continue;
+			}
+			tuple1 = pass.probe.next();
+			matchTable = pass.tableOf(tuple1);
+			if (matchTable != null) match = matchTable.first(tuple1.getField(predicate.getField1()));
+		}
+		Tuple tuple2 = matchTable.get(match);
+		match = matchTable.next(match);
+
+		Tuple joinedTuple = new Tuple(joinedTupleDesc);
+		for (int i = 0; i < lenTuple1; i++) joinedTuple.setField(i, tuple1.getField(i));
+		for (int i = 0; i < lenTuple2; i++) joinedTuple.setField(i + lenTuple1, tuple2.getField(i));
+		return joinedTuple;
     }
 
+	/**
+	 * One pass of the join: the build tuples that fit in memory, grouped by
+	 * partition, and the probe input streamed past them. The build and probe
+	 * tuples of the partitions that do not fit go to spill files, which are
+	 * joined by passes of their own, one level down.
+	 */
+	private class Pass {
+		final DbIterator build;
+		final DbIterator probe;
+		final int level;
+		final SpillFile buildFile; // the files this pass reads, null for the children
+		final SpillFile probeFile;
+		final int fanout;
+		final JoinHashTable[] tables; // null for the partitions on disk
+		final SpillFile[] buildSpills;
+		final SpillFile[] probeSpills;
+
+		Pass(DbIterator build, DbIterator probe, int level, SpillFile buildFile, SpillFile probeFile) {
+			this.build = build;
+			this.probe = probe;
+			this.level = level;
+			this.buildFile = buildFile;
+			this.probeFile = probeFile;
+			// past MAX_LEVEL splitting does not help, the build side is read a budget at a time instead
+			this.fanout = level < MAX_LEVEL ? FANOUT : 1;
+			this.tables = new JoinHashTable[fanout];
+			this.buildSpills = new SpillFile[fanout];
+			this.probeSpills = new SpillFile[fanout];
+		}
+
+		/**
+		 * Read the build input into the partitions, spilling the largest
+		 * ones while it does not fit; at MAX_LEVEL, read only as much of it
+		 * as fits.
+		 */
+		void load() throws DbException, TransactionAbortedException {
+			int field2 = predicate.getField2();
+			Type keyType = build.getTupleDesc().getFieldType(field2);
+			for (int p = 0; p < fanout; p++)
+				tables[p] = new JoinHashTable(field2, keyType);
+			long maxTuples = (long) memoryPages * HeapPage.getNumTuples(build.getTupleDesc());
+			long inMemory = 0;
+			while (build.hasNext()) {
+				if (fanout == 1 && inMemory == maxTuples) return;
+				Tuple t = build.next();
+				int p = partitionOf(t.getField(field2));
+				if (tables[p] == null) {
+					buildSpills[p].add(t);
+					continue;
+				}
+				tables[p].add(t);
+				if (++inMemory > maxTuples && fanout > 1) inMemory -= spillLargest();
+			}
+		}
+
+		/** Write the largest partition in memory to a spill file. @return the tuples written */
+		private int spillLargest() throws DbException {
+			int largest = -1;
+			for (int p = 0; p < fanout; p++) {
+				if (tables[p] != null && (largest < 0 || tables[p].size() > tables[largest].size()))
+					largest = p;
+			}
+			JoinHashTable table = tables[largest];
+			buildSpills[largest] = new SpillFile(build.getTupleDesc());
+			for (int i = 0; i < table.size(); i++)
+				buildSpills[largest].add(table.get(i));
+			tables[largest] = null;
+			return table.size();
+		}
+
+		/**
+		 * @return the table of the partition the probe tuple falls into, or
+		 *         null if that partition is on disk, after writing the
+		 *         tuple to its spill file
+		 */
+		JoinHashTable tableOf(Tuple tuple) throws DbException {
+			int p = partitionOf(tuple.getField(predicate.getField1()));
+			if (tables[p] != null) return tables[p];
+			if (probeSpills[p] == null) probeSpills[p] = new SpillFile(probe.getTupleDesc());
+			probeSpills[p].add(tuple);
+			return null;
+		}
+
+		/** @return true if all the build tuples are in memory, so that the pass can be probed again */
+		boolean inMemory() {
+			if (fanout == 1) return false; // it may have left build tuples behind
+			for (JoinHashTable table : tables) {
+				if (table == null) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Finish this pass once its probe input is exhausted.
+		 *
+		 * @return the pass to probe next, or null if the join is done
+		 */
+		Pass next() throws DbException, TransactionAbortedException {
+			if (fanout == 1 && build.hasNext()) {
+				// the next budget of build tuples, against all of the probe tuples again
+				load();
+				probe.rewind();
+				return this;
+			}
+			for (int p = 0; p < fanout; p++) {
+				if (buildSpills[p] == null) continue;
+				if (probeSpills[p] == null) {
+					buildSpills[p].delete(); // nothing to join with
+					buildSpills[p] = null;
+					continue;
+				}
+				pending.push(new Pass(buildSpills[p].iterator(), probeSpills[p].iterator(),
+						level + 1, buildSpills[p], probeSpills[p]));
+				buildSpills[p] = null;
+				probeSpills[p] = null;
+			}
+			if (this != firstPass) discard();
+			if (pending.isEmpty()) return null;
+			Pass next = pending.pop();
+			next.build.open();
+			next.probe.open();
+			next.load();
+			return next;
+		}
+
+		/** Delete the files this pass reads and writes. */
+		void discard() {
+			if (buildFile != null) {
+				build.close();
+				probe.close();
+				buildFile.delete();
+				probeFile.delete();
+			}
+			for (int p = 0; p < fanout; p++) {
+				if (buildSpills[p] != null) buildSpills[p].delete();
+				if (probeSpills[p] != null) probeSpills[p].delete();
+				buildSpills[p] = null;
+				probeSpills[p] = null;
+			}
+		}
+
+		private int partitionOf(Field key) {
+			if (fanout == 1) return 0;
+			// a different hash on every level, so that a partition that is split again does split
+			int h = key.hashCode() ^ (level * 0x9E3779B9);
+			h ^= h >>> 16;
+			h *= 0x85EBCA6B;
+			h ^= h >>> 13;
+			h *= 0xC2B2AE35;
+			h ^= h >>> 16;
+			return (h >>> 1) % fanout;
+		}
+	}
+
     @Override
     public DbIterator[] getChildren() {
         // some code goes here
@@ -150,5 +370,5 @@ public class HashEquiJoin extends Operator {
 		child1 = children[0];
 		child2 = children[1];
     }
-    
+
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -17,6 +18,9 @@ public class HeapFile implements DbFile {
 
 	private File file;
 	private TupleDesc tupleDesc;
+	private final DbFileChannel channel;
+	private final FreeSpaceMap freeSpaceMap;
+	private volatile boolean memoryMapped;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -29,6 +33,8 @@ public class HeapFile implements DbFile {
         // some code goes here
 		this.file = f;
 		this.tupleDesc = td;
+		this.channel = new DbFileChannel(f);
+		this.freeSpaceMap = new FreeSpaceMap(this);
     }
 
     /**
@@ -41,6 +47,13 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * Returns the map of the pages of this HeapFile that have a free slot.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpaceMap;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere ensure that each
@@ -70,11 +83,17 @@ public class HeapFile implements DbFile {
         // some code goes here
 		Page pageToRead = null;
 		try{
-			RandomAccessFile raf = new RandomAccessFile(file, "r");
-			raf.seek((long) pid.pageNumber() * BufferPool.getPageSize());
-			byte[] data = new byte[BufferPool.getPageSize()];
-			raf.read(data, 0, data.length);
-			pageToRead = new HeapPage((HeapPageId) pid, data);
+			long offset = (long) pid.pageNumber() * BufferPool.getPageSize();
+			ByteBuffer data;
+			if(memoryMapped) data = channel.map(offset, BufferPool.getPageSize());
+			else {
+				byte[] bytes = new byte[BufferPool.getPageSize()];
+				channel.read(bytes, offset);
+				data = ByteBuffer.wrap(bytes);
+			}
+			HeapPage heapPage = new HeapPage((HeapPageId) pid, data);
+			freeSpaceMap.update(pid.pageNumber(), heapPage.getNumEmptySlots() > 0);
+			pageToRead = heapPage;
 		}
 		catch (IOException e){
 			e.printStackTrace();
@@ -82,15 +101,70 @@ public class HeapFile implements DbFile {
 		return pageToRead;
     }
 
+    // see DbFile.java for javadocs
+    public List<Page> readPages(List<PageId> pids) {
+		if (memoryMapped) return DbFile.super.readPages(pids);
+		SortedMap<Long, byte[]> blocks = new TreeMap<>();
+		for (PageId pid : pids)
+			blocks.put((long) pid.pageNumber() * BufferPool.getPageSize(), new byte[BufferPool.getPageSize()]);
+		List<Page> pages = new ArrayList<>();
+		try {
+			channel.read(blocks);
+			for (PageId pid : pids) {
+				HeapPage page = new HeapPage((HeapPageId) pid, blocks.get((long) pid.pageNumber() * BufferPool.getPageSize()));
+				freeSpaceMap.update(pid.pageNumber(), page.getNumEmptySlots() > 0);
+				pages.add(page);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return pages;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
 		int pageNo = page.getId().pageNumber();
-		RandomAccessFile randomAccessFile = new RandomAccessFile(file,"rw");
-		randomAccessFile.seek((long) pageNo * BufferPool.getPageSize());
-		randomAccessFile.write(page.getPageData(), 0, BufferPool.getPageSize());
-		randomAccessFile.close();
+		channel.write(page.getPageData(), (long) pageNo * BufferPool.getPageSize());
+		freeSpaceMap.pageWritten(pageNo, ((HeapPage) page).getNumEmptySlots() > 0);
+    }
+
+    // see DbFile.java for javadocs
+    public void writePages(List<Page> pages) throws IOException {
+		SortedMap<Long, byte[]> blocks = new TreeMap<>();
+		for (Page page : pages)
+			blocks.put((long) page.getId().pageNumber() * BufferPool.getPageSize(), page.getPageData());
+		channel.write(blocks);
+		channel.force();
+		for (Page page : pages)
+			freeSpaceMap.pageWritten(page.getId().pageNumber(), ((HeapPage) page).getNumEmptySlots() > 0);
+    }
+
+    // see DbFile.java for javadocs
+    public void force() throws IOException {
+		channel.force();
+    }
+
+    // see DbFile.java for javadocs
+    public void close() throws IOException {
+		channel.close();
+		freeSpaceMap.close();
+    }
+
+    // see DbFile.java for javadocs
+    public void setMemoryMapped(boolean mapped) {
+		this.memoryMapped = mapped;
+    }
+
+    // see DbFile.java for javadocs
+    public boolean isMemoryMapped() {
+		return memoryMapped;
+    }
+
+    /** The channel this HeapFile reads and writes its pages through. */
+    DbFileChannel getChannel() {
+		return channel;
     }
 
     /**
@@ -107,20 +181,24 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
 		ArrayList<Page> dirtyPages = new ArrayList<>();
-		int nbPages = numPages();
-		for(int i = 0; i < nbPages; i++){
-			HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i), Permissions.READ_WRITE);
+		// only lock the pages the free space map points to
+		int pageNo = freeSpaceMap.nextPageWithFreeSlot(0);
+		while(pageNo >= 0){
+			HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pageNo), Permissions.READ_WRITE);
 			try {
-				heapPage.insertTuple(t);
+				Database.getBufferPool().getVersionStore().insertTuple(tid, heapPage, t);
 				dirtyPages.add(heapPage);
 				return dirtyPages;
-			} catch (DbException ignored){}
+			} catch (DbException ignored){} // the map was out of date, and the page has fixed it
+			pageNo = freeSpaceMap.nextPageWithFreeSlot(pageNo + 1);
 		}
-		// create a new heap page
-		HeapPage heapPage = new HeapPage(new HeapPageId(getId(), nbPages), HeapPage.createEmptyPageData());
-		heapPage.insertTuple(t);
+		// append an empty page, and insert into it through the buffer pool,
+		// so that the insert is not on disk before it is logged
+		HeapPageId pid = new HeapPageId(getId(), numPages());
+		writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+		HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+		Database.getBufferPool().getVersionStore().insertTuple(tid, heapPage, t);
 		dirtyPages.add(heapPage);
-		writePage(heapPage);
 		return dirtyPages;
 	}
 
@@ -131,7 +209,7 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
 		ArrayList<Page> dirtyPage = new ArrayList<>();
 		HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-		heapPage.deleteTuple(t);
+		Database.getBufferPool().getVersionStore().deleteTuple(tid, heapPage, t);
 		dirtyPage.add(heapPage);
 		return dirtyPage;
 	}
@@ -148,6 +226,7 @@ public class HeapFile implements DbFile {
     	private Iterator<Tuple> tupleIterInPage;
     	private int pagePos;
     	private final int numPages;
+    	private boolean snapshot; // read the versions the snapshot of tid sees, without locks
 
     	public HeapFileIterator(TransactionId tid){
 			this.tid = tid;
@@ -155,6 +234,7 @@ public class HeapFile implements DbFile {
 		}
 
 		public Iterator<Tuple> getTupleIterInPage(HeapPageId pid) throws TransactionAbortedException, DbException {
+			if (snapshot) return Database.getBufferPool().getSnapshotTuples(tid, pid).iterator();
     		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
     		return page.iterator();
 		}
@@ -162,6 +242,7 @@ public class HeapFile implements DbFile {
 		@Override
 		public void open() throws DbException, TransactionAbortedException {
 			pagePos = 0;
+			snapshot = Database.getBufferPool().getVersionStore().isSnapshot(tid);
 			HeapPageId pid = new HeapPageId(getId(), pagePos);
 			tupleIterInPage = getTupleIterInPage(pid);
 		}
@@ -2,10 +2,19 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps the bytes it was read from and decodes a tuple only when
+ * it is asked for, and a field of it only when that field is asked for.
+ * Inserted and deleted slots are tracked on top of those bytes, which are
+ * never written to, so they also serve as the before image until
+ * {@link #setBeforeImage} makes the current contents the new base. A page
+ * read from a memory mapped file copies the mapped bytes the first time it
+ * changes, as the mapping follows the file when the page is flushed.
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,13 +25,23 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    final Tuple tuples[]; // decoded or inserted tuples, null until needed
     final int numSlots;
 
-    byte[] oldData;
+    private ByteBuffer data; // the base contents, guarded by oldDataLock
+    private final BitSet changedSlots; // slots that differ from data
     private final Byte oldDataLock=new Byte((byte)0);
 
     private TransactionId dirtier;
+    private volatile long lsn; // kept in memory only, see Page#getLsn
+
+    /**
+     * Create a HeapPage from a byte array read from disk.
+     * @see #HeapPage(HeapPageId, ByteBuffer)
+     */
+    public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -40,28 +59,17 @@ public class HeapPage implements Page {
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
-    public HeapPage(HeapPageId id, byte[] data) throws IOException {
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.data = data.slice();
+        this.changedSlots = new BitSet(numSlots);
 
-        // allocate and read the header slots of this page
+        // read the header slots of this page; tuples are decoded when needed
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        this.data.duplicate().get(header);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -69,7 +77,12 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-        return (BufferPool.getPageSize() * 8) / (this.td.getSize() * 8 + 1);
+        return getNumTuples(td);
+    }
+
+    /** @return the number of tuple slots on a page of a table with the given TupleDesc */
+    static int getNumTuples(TupleDesc td) {
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
     }
 
     /**
@@ -79,18 +92,23 @@ public class HeapPage implements Page {
     private int getHeaderSize() {        
         
         // some code goes here
-        return (int) Math.ceil(getNumTuples() / 8.0);
+        return getHeaderSize(td);
                  
     }
+
+    /** @return the number of header bytes on a page of a table with the given TupleDesc */
+    static int getHeaderSize(TupleDesc td) {
+        return (int) Math.ceil(getNumTuples(td) / 8.0);
+    }
     
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            ByteBuffer oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = data;
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -104,7 +122,25 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        if (changedSlots.isEmpty()) return; // the base is still current
+        data = ByteBuffer.wrap(getPageData());
+        changedSlots.clear();
+        }
+    }
+
+    /**
+     * Called before the page is changed: copy a memory mapped base, which
+     * would change under the page once it is written back.
+     */
+    private void prepareChange() {
+        synchronized(oldDataLock)
+        {
+        if (!data.isDirect()) return;
+        for (Tuple t : tuples)
+            if (t != null) t.decodeAll();
+        byte[] copy = new byte[data.capacity()];
+        data.duplicate().get(copy);
+        data = ByteBuffer.wrap(copy);
         }
     }
 
@@ -117,36 +153,47 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in the given used slot, decoding it if needed
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            ByteBuffer base;
+            synchronized(oldDataLock)
+            {
+                base = data;
             }
-            return null;
+            t = new Tuple(td, base, header.length + slotId * td.getSize());
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * @return a tuple with the contents of the given used slot that later
+     *         changes to this page do not reach, e.g. for a snapshot that
+     *         still sees the slot once it is deleted
+     */
+    Tuple detachedTuple(int slotId) {
+        ByteBuffer base;
+        boolean changed;
+        synchronized(oldDataLock)
+        {
+            base = data;
+            changed = changedSlots.get(slotId);
         }
-
+        Tuple t;
+        if (!changed && !base.isDirect()) {
+            // the base is replaced, never written, once the page changes
+            t = new Tuple(td, base, header.length + slotId * td.getSize());
+        } else {
+            Tuple current = changed ? tuples[slotId] : new Tuple(td, base, header.length + slotId * td.getSize());
+            t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, current.getField(i));
+        }
+        t.setRecordId(new RecordId(pid, slotId));
         return t;
     }
 
@@ -163,63 +210,44 @@ public class HeapPage implements Page {
      */
     public byte[] getPageData() {
         int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
+        byte[] page = new byte[len];
+        ByteBuffer base;
+        synchronized(oldDataLock)
+        {
+            base = data.duplicate();
         }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+        base.get(page, 0, Math.min(len, base.remaining()));
+        if (changedSlots.isEmpty())
+            return page;
+
+        // the header and the changed slots differ from the base
+        System.arraycopy(header, 0, page, 0, header.length);
+        int tupleSize = td.getSize();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = changedSlots.nextSetBit(0); i >= 0; i = changedSlots.nextSetBit(i + 1)) {
+            int offset = header.length + i * tupleSize;
 
             // empty slot
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
+                Arrays.fill(page, offset, offset + tupleSize, (byte) 0);
                 continue;
             }
 
             // non-empty slot
+            baos.reset();
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
                 try {
                     f.serialize(dos);
-                
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
+            System.arraycopy(baos.toByteArray(), 0, page, offset, tupleSize);
         }
 
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return page;
     }
 
     /**
@@ -247,11 +275,19 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
 		RecordId recordId = t.getRecordId();
-		if(recordId.getPageId() != getId())
+		if(!getId().equals(recordId.getPageId()))
 			throw new DbException("The tuple is not on this page.");
 		if(!isSlotUsed(recordId.tupleno()))
 			throw new DbException("The tuple slot is already empty.");
+		prepareChange();
+		// tuples handed out for this slot must not see what is inserted there next
+		t.decodeAll();
+		if(tuples[recordId.tupleno()] != null)
+			tuples[recordId.tupleno()].decodeAll();
+		tuples[recordId.tupleno()] = null;
+		changedSlots.set(recordId.tupleno());
 		markSlotUsed(recordId.tupleno(), false);
+		updateFreeSpaceMap(true);
     }
 
     /**
@@ -266,15 +302,29 @@ public class HeapPage implements Page {
         // not necessary for lab1
 		for(int i = 0; i < numSlots; i++){
 			if(!isSlotUsed(i)){
+				prepareChange();
 				tuples[i] = t;
+				changedSlots.set(i);
 				markSlotUsed(i, true);
 				t.setRecordId(new RecordId(pid, i));
+				updateFreeSpaceMap(getNumEmptySlots() > 0);
 				return;
 			}
 		}
+		updateFreeSpaceMap(false);
 		throw new DbException("Try to insert a tuple into full heap page.");
     }
 
+    /**
+     * Tell the free space map of the HeapFile this page belongs to whether the
+     * page has a free slot.
+     */
+    private void updateFreeSpaceMap(boolean hasFreeSlot) {
+		DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+		if (file instanceof HeapFile)
+			((HeapFile) file).getFreeSpaceMap().update(pid.pageNumber(), hasFreeSlot);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -295,6 +345,14 @@ public class HeapPage implements Page {
         return dirtier;
     }
 
+    public long getLsn() {
+		return lsn;
+    }
+
+    public void setLsn(long lsn) {
+		this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
@@ -350,7 +408,7 @@ public class HeapPage implements Page {
 		public Tuple next() {
 			while(!isSlotUsed(i)) i++;
 			cur++;
-			return tuples[i++];
+			return getTuple(i++);
 		}
 	}
 
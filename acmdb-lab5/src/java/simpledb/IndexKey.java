@@ -0,0 +1,51 @@
+package simpledb;
+
+/**
+ * A key value of a B+ tree, as a resource the LockManager locks. Tuples
+ * move between slots and pages of a B+ tree as its leaves fill, split and
+ * merge, so searches lock the keys they read rather than where they were
+ * read from. The key past the last one of the tree, which a search through
+ * the end of the tree locks, is null.
+ *
+ * @see BTreeFile
+ */
+public class IndexKey {
+
+	private final int tableId;
+	private final Field key;
+
+	/**
+	 * @param tableId the id of the B+ tree file
+	 * @param key the key value, or null for the end of the tree
+	 */
+	public IndexKey(int tableId, Field key) {
+		this.tableId = tableId;
+		this.key = key;
+	}
+
+	public int getTableId() {
+		return tableId;
+	}
+
+	/** @return the key value, or null for the end of the tree */
+	public Field getKey() {
+		return key;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof IndexKey)) return false;
+		IndexKey other = (IndexKey) o;
+		return tableId == other.tableId && (key == null ? other.key == null : other.key != null && key.equals(other.key));
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * tableId + (key == null ? 0 : key.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return "IndexKey(" + tableId + ", " + (key == null ? "end" : key) + ")";
+	}
+}
@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator implements the relational join operation
+ * against a table with a B+ tree index on its join field: for every tuple of
+ * child1, it looks up the tuples of the table that satisfy the predicate with
+ * an {@link IndexPredicate} on the index, rather than scanning the table, and
+ * returns them as they are found.
+ * <p>
+ * The predicate may be any but NOT_EQUALS and LIKE, which an index cannot
+ * look up; its second field must be the key field of the table.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+	private static final long serialVersionUID = 1L;
+
+	private final JoinPredicate predicate;
+	private final Predicate.Op indexOp; // the tuples of child2 whose keys are indexOp the field of child1 match
+	private DbIterator child1;
+	private BTreeScan child2;
+	private final int lenTuple1;
+	private final int lenTuple2;
+	private final TupleDesc joinedTupleDesc;
+
+	private transient Tuple tuple1; // the tuple of child1 child2 is being looked up for
+
+	/**
+	 * Constructor. Accepts to children to join and the predicate to join them
+	 * on
+	 *
+	 * @param p
+	 *            The predicate to use to join the children
+	 * @param child1
+	 *            Iterator for the left(outer) relation to join
+	 * @param child2
+	 *            Scan of the B+ tree of the right(inner) relation to look
+	 *            the tuples of child1 up in; its predicate is replaced for
+	 *            every lookup
+	 */
+	public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, BTreeScan child2) {
+		DbFile file = Database.getCatalog().getDatabaseFile(child2.getTableId());
+		if (((BTreeFile) file).keyField() != p.getField2())
+			throw new IllegalArgumentException("an index nested loops join must join on the key field of the index");
+		this.predicate = p;
+		this.indexOp = reverse(p.getOperator());
+		this.child1 = child1;
+		this.child2 = child2;
+		this.lenTuple1 = child1.getTupleDesc().numFields();
+		this.lenTuple2 = child2.getTupleDesc().numFields();
+		this.joinedTupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+	}
+
+	/** @return the operator op' such that b op' a is a op b */
+	private static Predicate.Op reverse(Predicate.Op op) {
+		switch (op) {
+		case EQUALS:
+			return Predicate.Op.EQUALS;
+		case LESS_THAN:
+			return Predicate.Op.GREATER_THAN;
+		case LESS_THAN_OR_EQ:
+			return Predicate.Op.GREATER_THAN_OR_EQ;
+		case GREATER_THAN:
+			return Predicate.Op.LESS_THAN;
+		case GREATER_THAN_OR_EQ:
+			return Predicate.Op.LESS_THAN_OR_EQ;
+		default:
+			throw new IllegalArgumentException("an index cannot look up " + op);
+		}
+	}
+
+	public JoinPredicate getJoinPredicate() {
+		return predicate;
+	}
+
+	public String getJoinField1Name() {
+		return child1.getTupleDesc().getFieldName(predicate.getField1());
+	}
+
+	public String getJoinField2Name() {
+		return child2.getTupleDesc().getFieldName(predicate.getField2());
+	}
+
+	public TupleDesc getTupleDesc() {
+		return joinedTupleDesc;
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+			TransactionAbortedException {
+		super.open();
+		child1.open();
+		tuple1 = null;
+	}
+
+	public void close() {
+		super.close();
+		child1.close();
+		child2.close();
+		tuple1 = null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child1.rewind();
+		child2.close();
+		tuple1 = null;
+	}
+
+	/**
+	 * Returns the next tuple generated by the join, or null if there are no
+	 * more tuples: the tuples of child1 and child2 that satisfy the predicate,
+	 * concatenated.
+	 *
+	 * @return The next matching tuple.
+	 * @see JoinPredicate#filter
+	 */
+	protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+		while (true) {
+			if (tuple1 != null && child2.hasNext()) {
+				Tuple tuple2 = child2.next();
+				Tuple joinedTuple = new Tuple(joinedTupleDesc);
+				for (int i = 0; i < lenTuple1; i++) joinedTuple.setField(i, tuple1.getField(i));
+				for (int i = 0; i < lenTuple2; i++) joinedTuple.setField(i + lenTuple1, tuple2.getField(i));
+				return joinedTuple;
+			}
+			if (!child1.hasNext()) return null;
+			tuple1 = child1.next();
+			child2.close();
+			child2.setIndexPredicate(new IndexPredicate(indexOp, tuple1.getField(predicate.getField1())));
+			child2.open();
+		}
+	}
+
+	@Override
+	public DbIterator[] getChildren() {
+		return new DbIterator[] {child1, child2};
+	}
+
+	@Override
+	public void setChildren(DbIterator[] children) {
+		child1 = children[0];
+		child2 = (BTreeScan) children[1];
+	}
+
+}
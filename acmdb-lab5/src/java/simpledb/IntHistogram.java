@@ -115,6 +115,27 @@ public class IntHistogram {
 		return 2333333;
     }
     
+    /**
+     * Estimate the selectivity of a join predicate between the values of this
+     * histogram and those of another: the fraction of pairs of a value of
+     * this one and a value of the other that satisfy "this op other". Every
+     * value of a bucket of the other histogram is taken to be its middle.
+     *
+     * @param op Operator
+     * @param other the histogram of the values on the right of op
+     * @return Predicted selectivity of the join predicate
+     */
+    public double estimateSelectivity(Predicate.Op op, IntHistogram other) {
+		if (totalNum == 0 || other.totalNum == 0) return 0.0;
+		double selectivity = 0;
+		for (int i = 0; i < other.buckets; i++) {
+			if (other.count[i] == 0) continue;
+			int middle = other.left[i] + (other.right[i] - other.left[i]) / 2;
+			selectivity += estimateSelectivity(op, middle) * other.count[i] / other.totalNum;
+		}
+		return selectivity;
+    }
+
     /**
      * @return
      *     the average selectivity of this histogram.
@@ -3,7 +3,9 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation, as a tuple at a
+ * time nested loops join: child2 is scanned once for every tuple of child1,
+ * and the matches are returned as they are found.
  */
 public class Join extends Operator {
 
@@ -14,9 +16,8 @@ public class Join extends Operator {
     private DbIterator child2;
     private final int lenTuple1;
     private final int lenTuple2;
-    private final ArrayList<Tuple> joinedArray;
-    private Iterator<Tuple> joinedIter;
     private final TupleDesc joinedTupleDesc;
+    private transient Tuple tuple1; // the tuple of child1 child2 is being scanned for
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -37,8 +38,6 @@ public class Join extends Operator {
 		this.lenTuple1 = child1.getTupleDesc().numFields();
 		this.lenTuple2 = child2.getTupleDesc().numFields();
 		this.joinedTupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
-		this.joinedArray = new ArrayList<>();
-		this.joinedIter = null;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -81,22 +80,7 @@ public class Join extends Operator {
 		super.open();
 		child1.open();
 		child2.open();
-
-		ArrayList<Tuple> arr2 = new ArrayList<>();
-		while (child2.hasNext()) arr2.add(child2.next());
-
-		while (child1.hasNext()){
-			Tuple tuple1 = child1.next();
-			for(Tuple tuple2 : arr2){
-				if (predicate.filter(tuple1, tuple2)){
-					Tuple joinedTuple = new Tuple(joinedTupleDesc);
-					for(int i = 0; i < lenTuple1; i++) joinedTuple.setField(i, tuple1.getField(i));
-					for(int i = 0; i < lenTuple2; i++) joinedTuple.setField(i + lenTuple1, tuple2.getField(i));
-					joinedArray.add(joinedTuple);
-				}
-			}
-		}
-		joinedIter = joinedArray.iterator();
+		tuple1 = null;
     }
 
     public void close() {
@@ -104,13 +88,13 @@ public class Join extends Operator {
 		super.close();
 		child1.close();
 		child2.close();
-		joinedArray.clear();
-		joinedIter = null;
+		tuple1 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-		joinedIter = joinedArray.iterator();
+		child1.rewind();
+		tuple1 = null;
     }
 
     /**
@@ -133,7 +117,21 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return joinedIter.hasNext() ? joinedIter.next() : null;
+		while (true) {
+			if (tuple1 != null) {
+				while (child2.hasNext()) {
+					Tuple tuple2 = child2.next();
+					if (!predicate.filter(tuple1, tuple2)) continue;
+					Tuple joinedTuple = new Tuple(joinedTupleDesc);
+					for (int i = 0; i < lenTuple1; i++) joinedTuple.setField(i, tuple1.getField(i));
+					for (int i = 0; i < lenTuple2; i++) joinedTuple.setField(i + lenTuple1, tuple2.getField(i));
+					return joinedTuple;
+				}
+			}
+			if (!child1.hasNext()) return null;
+			tuple1 = child1.next();
+			child2.rewind();
+		}
     }
 
     @Override
@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The tuples of the build side of a hash join, grouped by the value of
+ * their join field. The tuples are kept in one array and those with equal
+ * keys are chained, in the order they were added, through an int array,
+ * rather than held in a list per key. Keys of INT_TYPE fields are hashed as
+ * ints into an open-addressing table, so that adding and probing them boxes
+ * nothing; other keys go through a HashMap.
+ * <p>
+ * A probe returns the index of the first tuple with the key, and
+ * {@link #next} walks the rest:
+ * <pre>
+ * for (int i = table.first(key); i != JoinHashTable.NONE; i = table.next(i))
+ *     ... table.get(i) ...
+ * </pre>
+ */
+class JoinHashTable {
+
+	/** The index that stands for no tuple. */
+	static final int NONE = -1;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final int field;
+	private final boolean intKeys;
+
+	private Tuple[] tuples;
+	private int[] nextWithKey;
+	private int size;
+
+	// INT_TYPE keys: slot i holds a key and the first and last tuple with it
+	private int[] slotKeys;
+	private int[] slotHeads;
+	private int[] slotTails;
+	private int usedSlots;
+
+	// other keys: the first and last tuple with each key
+	private HashMap<Field, int[]> key2Chain;
+
+	/**
+	 * @param field the index of the join field in the tuples added
+	 * @param keyType the type of the join field
+	 */
+	JoinHashTable(int field, Type keyType) {
+		this.field = field;
+		this.intKeys = keyType == Type.INT_TYPE;
+		this.tuples = new Tuple[INITIAL_CAPACITY];
+		this.nextWithKey = new int[INITIAL_CAPACITY];
+		if (intKeys) {
+			slotKeys = new int[INITIAL_CAPACITY];
+			slotHeads = new int[INITIAL_CAPACITY];
+			slotTails = new int[INITIAL_CAPACITY];
+			Arrays.fill(slotHeads, NONE);
+		} else {
+			key2Chain = new HashMap<>();
+		}
+	}
+
+	void add(Tuple tuple) {
+		if (size == tuples.length) {
+			tuples = Arrays.copyOf(tuples, size * 2);
+			nextWithKey = Arrays.copyOf(nextWithKey, size * 2);
+		}
+		int index = size++;
+		tuples[index] = tuple;
+		nextWithKey[index] = NONE;
+
+		Field key = tuple.getField(field);
+		if (intKeys) {
+			if ((usedSlots + 1) * 2 > slotKeys.length) growSlots();
+			int value = ((IntField) key).getValue();
+			int slot = slotOf(value);
+			if (slotHeads[slot] == NONE) {
+				slotKeys[slot] = value;
+				slotHeads[slot] = index;
+				usedSlots++;
+			} else {
+				nextWithKey[slotTails[slot]] = index;
+			}
+			slotTails[slot] = index;
+		} else {
+			int[] chain = key2Chain.get(key);
+			if (chain == null) key2Chain.put(key, new int[] {index, index});
+			else {
+				nextWithKey[chain[1]] = index;
+				chain[1] = index;
+			}
+		}
+	}
+
+	/** @return the index of the first tuple whose join field equals key, or NONE */
+	int first(Field key) {
+		if (!intKeys) {
+			int[] chain = key2Chain.get(key);
+			return chain == null ? NONE : chain[0];
+		}
+		if (!(key instanceof IntField)) return NONE;
+		return slotHeads[slotOf(((IntField) key).getValue())];
+	}
+
+	/** @return the index of the next tuple with the same key as the tuple at index, or NONE */
+	int next(int index) {
+		return nextWithKey[index];
+	}
+
+	Tuple get(int index) {
+		return tuples[index];
+	}
+
+	/** @return the number of tuples added */
+	int size() {
+		return size;
+	}
+
+	/** @return the slot that holds value, or the empty slot where it would go */
+	private int slotOf(int value) {
+		int mask = slotKeys.length - 1;
+		int h = value * 0x9E3779B9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (slotHeads[slot] != NONE && slotKeys[slot] != value)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void growSlots() {
+		int[] oldKeys = slotKeys, oldHeads = slotHeads, oldTails = slotTails;
+		slotKeys = new int[oldKeys.length * 2];
+		slotHeads = new int[oldKeys.length * 2];
+		slotTails = new int[oldKeys.length * 2];
+		Arrays.fill(slotHeads, NONE);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldHeads[i] == NONE) continue;
+			int slot = slotOf(oldKeys[i]);
+			slotKeys[slot] = oldKeys[i];
+			slotHeads[slot] = oldHeads[i];
+			slotTails[slot] = oldTails[i];
+		}
+	}
+}
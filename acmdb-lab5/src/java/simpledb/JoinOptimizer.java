@@ -14,6 +14,20 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /** The physical operators a join may be instantiated as. */
+    public enum JoinAlgorithm {
+        /** {@link Join}, which scans the right-hand side once for every tuple of the left */
+        NESTED_LOOP,
+        /** {@link BlockNestedLoopJoin}, which scans it once for every block of the left */
+        BLOCK_NESTED_LOOP,
+        /** {@link IndexNestedLoopJoin}, which looks every tuple of the left up in its B+ tree */
+        INDEX_NESTED_LOOP,
+        /** {@link SortMergeJoin}, which merges the sides in order of their join fields, sorting those that are not */
+        SORT_MERGE,
+        /** {@link HashEquiJoin}, for equality predicates */
+        HASH
+    }
+
     /**
      * Constructor
      * 
@@ -41,6 +55,7 @@ public class JoinOptimizer {
      *            The left join node's child
      * @param plan2
      *            The right join node's child
+     * @see LogicalJoinNode#algorithm
      */
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
@@ -68,12 +83,88 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        JoinAlgorithm algorithm = lj.algorithm;
+        if (algorithm == JoinAlgorithm.INDEX_NESTED_LOOP) {
+            j = instantiateIndexJoin(p, plan1, plan2);
+            if (j != null)
+                return j;
+            algorithm = null; // plan2 is not a scan of the index after all
+        }
+        if (algorithm == null)
+            algorithm = lj.p == Predicate.Op.EQUALS ? JoinAlgorithm.HASH : JoinAlgorithm.BLOCK_NESTED_LOOP;
+
+        if (algorithm == JoinAlgorithm.HASH)
+            j = new HashEquiJoin(p,plan1,plan2);
+        else if (algorithm == JoinAlgorithm.BLOCK_NESTED_LOOP)
+            j = new BlockNestedLoopJoin(p,plan1,plan2);
+        else if (algorithm == JoinAlgorithm.SORT_MERGE) {
+            if (sortedField(plan1) != t1id)
+                plan1 = new OrderBy(t1id, true, plan1);
+            if (sortedField(plan2) != t2id)
+                plan2 = new OrderBy(t2id, true, plan2);
+            j = new SortMergeJoin(p,plan1,plan2);
+        }
+        else
+            j = new Join(p,plan1,plan2);
 
         return j;
 
     }
 
+    /**
+     * Join plan1 to the table plan2 scans with an IndexNestedLoopJoin, if
+     * plan2 is a SeqScan, under any Filters, of a B+ tree whose key is the
+     * join field. The filters are applied to the joined tuples instead.
+     *
+     * @return the join, or null if plan2 is not such a scan
+     */
+    private static DbIterator instantiateIndexJoin(JoinPredicate p,
+            DbIterator plan1, DbIterator plan2) {
+		ArrayList<Predicate> filters = new ArrayList<>();
+		DbIterator inner = plan2;
+		while (inner instanceof Filter) {
+			filters.add(((Filter) inner).getPredicate());
+			inner = ((Filter) inner).getChildren()[0];
+		}
+		if (!(inner instanceof SeqScan))
+			return null;
+		SeqScan scan = (SeqScan) inner;
+		DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+		if (!(file instanceof BTreeFile) || ((BTreeFile) file).keyField() != p.getField2())
+			return null;
+
+		DbIterator j = new IndexNestedLoopJoin(p, plan1,
+				new BTreeScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias(), null));
+		int lenTuple1 = plan1.getTupleDesc().numFields();
+		for (Predicate filter : filters)
+			j = new Filter(new Predicate(filter.getField() + lenTuple1, filter.getOp(), filter.getOperand()), j);
+		return j;
+    }
+
+    /**
+     * @return the field the tuples of the plan are in ascending order of, or
+     *         -1 if they are in no order known: that of the key of a scan of
+     *         a B+ tree, of an ascending OrderBy, or of the output of a join
+     *         that keeps it, through any Filters
+     */
+    static int sortedField(DbIterator plan) {
+		if (plan instanceof SeqScan || plan instanceof BTreeScan) {
+			int tableId = plan instanceof SeqScan ? ((SeqScan) plan).getTableId() : ((BTreeScan) plan).getTableId();
+			DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+			return file instanceof BTreeFile ? ((BTreeFile) file).keyField() : -1;
+		}
+		if (plan instanceof Filter)
+			return sortedField(((Filter) plan).getChildren()[0]);
+		if (plan instanceof OrderBy)
+			return ((OrderBy) plan).isASC() ? ((OrderBy) plan).getOrderByField() : -1;
+		if (plan instanceof SortMergeJoin)
+			return ((SortMergeJoin) plan).getSortedField();
+		// the tuples of the left-hand side are joined in the order they come in
+		if (plan instanceof Join || plan instanceof IndexNestedLoopJoin)
+			return sortedField(((Operator) plan).getChildren()[0]);
+		return -1;
+    }
+
     /**
      * Estimate the cost of a join.
      * 
@@ -102,6 +193,24 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true,
+                isSortedOn(sortedOn(j.t1Alias), j.f1QuantifiedName),
+                isSortedOn(sortedOn(j.t2Alias), j.f2QuantifiedName));
+    }
+
+    /**
+     * @param innerIsTable
+     *            whether the right-hand side of the query is a base table,
+     *            rather than a join, so that it may be looked up in an index
+     * @param sorted1
+     *            whether the left-hand side is in ascending order of its join
+     *            field already
+     * @param sorted2
+     *            whether the right-hand side is
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable, boolean sorted1, boolean sorted2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 5.
@@ -111,10 +220,177 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
+			JoinAlgorithm algorithm = chooseJoinAlgorithm(j, card1, card2, cost1, cost2,
+					innerIsTable, sorted1, sorted2);
+			return estimateJoinCost(algorithm, j, card1, card2, cost1, cost2, sorted1, sorted2);
         }
     }
 
+	/**
+	 * @return the cheapest algorithm for the join, by
+	 *         {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)}
+	 */
+	JoinAlgorithm chooseJoinAlgorithm(LogicalJoinNode j, int card1, int card2,
+			double cost1, double cost2, boolean innerIsTable, boolean sorted1, boolean sorted2) {
+		JoinAlgorithm best = null;
+		double bestCost = 0;
+		for (JoinAlgorithm algorithm : JoinAlgorithm.values()) {
+			boolean applies;
+			switch (algorithm) {
+			case INDEX_NESTED_LOOP:
+				applies = innerIsTable && j.p != Predicate.Op.NOT_EQUALS && j.p != Predicate.Op.LIKE
+						&& indexOn(j.t2Alias, j.f2PureName) != null;
+				break;
+			case SORT_MERGE:
+				applies = j.p != Predicate.Op.NOT_EQUALS && j.p != Predicate.Op.LIKE;
+				break;
+			case HASH:
+				applies = j.p == Predicate.Op.EQUALS;
+				break;
+			default:
+				// reading both sides once and hashing every tuple once beats
+				// comparing every pair whenever a hash join applies
+				applies = j.p != Predicate.Op.EQUALS;
+			}
+			if (!applies)
+				continue;
+			double cost = estimateJoinCost(algorithm, j, card1, card2, cost1, cost2, sorted1, sorted2);
+			if (best == null || cost < bestCost) {
+				best = algorithm;
+				bestCost = cost;
+			}
+		}
+		return best;
+	}
+
+	private double estimateJoinCost(JoinAlgorithm algorithm, LogicalJoinNode j, int card1, int card2,
+			double cost1, double cost2, boolean sorted1, boolean sorted2) {
+		double pages1 = pagesOf(j.t1Alias, card1);
+		double pages2 = pagesOf(j.t2Alias, card2);
+		switch (algorithm) {
+		case NESTED_LOOP:
+			return cost1 + card1 * cost2 + card1 * card2;
+		case BLOCK_NESTED_LOOP: {
+			double blocks = Math.max(1, Math.ceil(pages1 / BlockNestedLoopJoin.DEFAULT_BLOCK_PAGES));
+			return cost1 + blocks * cost2 + card1 * card2;
+		}
+		case INDEX_NESTED_LOOP: {
+			// every tuple of the left side goes down the tree, and reads the
+			// leaf pages of its matches
+			double matches = (double) estimateJoinCardinality(j, card1, card2, false,
+					isPkey(j.t2Alias, j.f2PureName), TableStats.getStatsMap()) / Math.max(card1, 1);
+			double lookupPages = indexHeight(indexOn(j.t2Alias, j.f2PureName), pages2)
+					+ matches * pages2 / Math.max(card2, 1);
+			return cost1 + card1 * (TableStats.IOCOSTPERPAGE * lookupPages + matches);
+		}
+		case SORT_MERGE: {
+			// both sides are read once, and sorted unless they are in order;
+			// the pairs an inequality matches are returned without comparing them
+			double cost = cost1 + cost2 + card1 + card2;
+			if (!sorted1) cost += sortCost(card1, pages1);
+			if (!sorted2) cost += sortCost(card2, pages2);
+			if (j.p != Predicate.Op.EQUALS)
+				cost += estimateJoinCardinality(j, card1, card2, false, false, TableStats.getStatsMap());
+			return cost;
+		}
+		default: {
+			// HashEquiJoin: both sides are read once, every tuple is hashed once;
+			// the part of the build side that does not fit in memory, and as much
+			// of the probe side, is written to disk and read back
+			double cost = cost1 + cost2 + card1 + card2;
+			if (pages2 > HashEquiJoin.DEFAULT_MEMORY_PAGES) {
+				double spilled = 1 - HashEquiJoin.DEFAULT_MEMORY_PAGES / pages2;
+				cost += 2 * TableStats.IOCOSTPERPAGE * spilled * (pages1 + pages2);
+			}
+			return cost;
+		}
+		}
+	}
+
+	/**
+	 * @return the comparisons sorting card tuples takes, and if they do not
+	 *         fit in the memory of an OrderBy, writing and reading their
+	 *         pages once for every pass of its external merge sort
+	 */
+	private static double sortCost(int card, double pages) {
+		double cost = card > 1 ? card * Math.log(card) / Math.log(2) : 0;
+		int memoryPages = OrderBy.DEFAULT_MEMORY_PAGES;
+		if (pages > memoryPages) {
+			double runs = Math.ceil(pages / memoryPages);
+			double passes = Math.max(1, Math.ceil(Math.log(runs) / Math.log(memoryPages - 1)));
+			cost += 2 * pages * passes * TableStats.IOCOSTPERPAGE;
+		}
+		return cost;
+	}
+
+	/**
+	 * @return the field, as alias.field, a scan of the table with the alias
+	 *         is in ascending order of, which is the key of a B+ tree, or null
+	 */
+	private String sortedOn(String alias) {
+		Integer tableId = p.getTableId(alias);
+		if (tableId == null) return null;
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		if (!(file instanceof BTreeFile)) return null;
+		BTreeFile tree = (BTreeFile) file;
+		return alias + "." + tree.getTupleDesc().getFieldName(tree.keyField());
+	}
+
+	/**
+	 * @return the field, as alias.field, the output of the join is in
+	 *         ascending order of, if its left-hand side is in order of
+	 *         sortedOn1, or null
+	 */
+	private static String sortedOn(JoinAlgorithm algorithm, LogicalJoinNode j, String sortedOn1) {
+		if (algorithm == null) return null;
+		switch (algorithm) {
+		case SORT_MERGE:
+			return j.p == Predicate.Op.LESS_THAN || j.p == Predicate.Op.LESS_THAN_OR_EQ
+					? j.f2QuantifiedName : j.f1QuantifiedName;
+		case NESTED_LOOP:
+		case INDEX_NESTED_LOOP:
+			return sortedOn1;
+		default:
+			return null;
+		}
+	}
+
+	private static boolean isSortedOn(String sortedOn, String field) {
+		return sortedOn != null && sortedOn.equals(field);
+	}
+
+	/**
+	 * @return the B+ tree of the table with the alias, if it is one of the
+	 *         plan's and the field is the key of the tree, or null
+	 */
+	private BTreeFile indexOn(String alias, String field) {
+		Integer tableId = p.getTableId(alias);
+		if (tableId == null) return null;
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		if (!(file instanceof BTreeFile)) return null;
+		BTreeFile tree = (BTreeFile) file;
+		return field.equals(tree.getTupleDesc().getFieldName(tree.keyField())) ? tree : null;
+	}
+
+	/** @return the pages a lookup in the tree reads down to the first leaf, if it has leafPages leaves */
+	private static double indexHeight(BTreeFile tree, double leafPages) {
+		int keyLen = tree.getTupleDesc().getFieldType(tree.keyField()).getLen();
+		// an internal page holds a key and a child pointer per entry
+		double fanout = (double) BufferPool.getPageSize() / (keyLen + Type.INT_TYPE.getLen());
+		return 1 + Math.max(0, Math.ceil(Math.log(leafPages) / Math.log(fanout)));
+	}
+
+	/**
+	 * @return the pages card tuples of the table with the alias take, or 0
+	 *         if the alias is not one of the plan's
+	 */
+	private double pagesOf(String alias, int card) {
+		Integer tableId = p.getTableId(alias);
+		if (tableId == null) return 0;
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+		return (double) card / HeapPage.getNumTuples(td);
+	}
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -164,10 +440,45 @@ public class JoinOptimizer {
 			if(t2pkey) card = Math.min(card, card1);
 			return card;
 		}
-		else return (int) (card1 * card2 * 0.3);
+		double selectivity = 0.3;
+		if (joinOp != Predicate.Op.NOT_EQUALS && joinOp != Predicate.Op.LIKE)
+			selectivity = estimateRangeSelectivity(joinOp, table1Alias, table2Alias,
+					field1PureName, field2PureName, selectivity, stats, tableAliasToId);
+		return (int) (card1 * card2 * selectivity);
 
     }
 
+    /**
+     * @return the selectivity of a range predicate between integer fields of
+     *         two tables from their histograms, or otherwise if the tables
+     *         or their statistics are unknown
+     */
+    private static double estimateRangeSelectivity(Predicate.Op joinOp,
+            String table1Alias, String table2Alias, String field1PureName,
+            String field2PureName, double otherwise, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+		if (stats == null || tableAliasToId == null) return otherwise;
+		Integer id1 = tableAliasToId.get(table1Alias), id2 = tableAliasToId.get(table2Alias);
+		if (id1 == null || id2 == null) return otherwise;
+		TableStats stats1, stats2;
+		TupleDesc td1, td2;
+		int field1, field2;
+		try {
+			stats1 = stats.get(Database.getCatalog().getTableName(id1));
+			stats2 = stats.get(Database.getCatalog().getTableName(id2));
+			td1 = Database.getCatalog().getTupleDesc(id1);
+			td2 = Database.getCatalog().getTupleDesc(id2);
+			field1 = td1.fieldNameToIndex(field1PureName);
+			field2 = td2.fieldNameToIndex(field2PureName);
+		} catch (NoSuchElementException e) {
+			return otherwise;
+		}
+		if (stats1 == null || stats2 == null) return otherwise;
+		if (td1.getFieldType(field1) != Type.INT_TYPE || td2.getFieldType(field2) != Type.INT_TYPE)
+			return otherwise;
+		return stats1.estimateJoinSelectivity(field1, joinOp, stats2, field2);
+    }
+
     /**
      * Helper method to enumerate all of the subsets of a given size of a
      * specified vector.
@@ -229,6 +540,7 @@ public class JoinOptimizer {
 
         // some code goes here
 
+		if(joins.isEmpty()) return joins; // a query of one table
 		PlanCache planCache = new PlanCache();
 		for(int i = 1; i <= joins.size(); i++){
 			for(Set<LogicalJoinNode> s : enumerateSubsets(joins, i)){
@@ -236,6 +548,7 @@ public class JoinOptimizer {
 				double bestCost = Double.MAX_VALUE;
 				int bestCard = 0;
 				Vector<LogicalJoinNode> bestPlan = null;
+				String bestSortedOn = null;
 
 				for(LogicalJoinNode ss : s){
 					CostCard costCard = computeCostAndCardOfSubplan(stats, filterSelectivities, ss, s, bestCost, planCache);
@@ -244,9 +557,10 @@ public class JoinOptimizer {
 						bestCost = costCard.cost;
 						bestCard = costCard.card;
 						bestPlan = costCard.plan;
+						bestSortedOn = costCard.sortedOn;
 					}
 				}
-				planCache.addPlan(s, bestCost, bestCard, bestPlan);
+				planCache.addPlan(s, bestCost, bestCard, bestPlan, bestSortedOn);
 			}
 		}
 		return planCache.getOrder(new HashSet<>(joins));
@@ -314,6 +628,9 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean t1IsTable = true, t2IsTable = true;
+        // the fields, as alias.field, each side is in ascending order of
+        String t1SortedOn = sortedOn(table1Alias), t2SortedOn = sortedOn(table2Alias);
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -349,6 +666,8 @@ public class JoinOptimizer {
                 // subtree is
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
+                t1IsTable = false;
+                t1SortedOn = pc.getSortedOn(news);
 
                 t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateScanCost();
@@ -365,6 +684,8 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
+                t2IsTable = false;
+                t2SortedOn = pc.getSortedOn(news);
                 t1cost = stats.get(table1Name).estimateScanCost();
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
@@ -378,11 +699,14 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        boolean t1Sorted = isSortedOn(t1SortedOn, j.f1QuantifiedName);
+        boolean t2Sorted = isSortedOn(t2SortedOn, j.f2QuantifiedName);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t2IsTable, t1Sorted, t2Sorted);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t1IsTable, t2Sorted, t1Sorted);
+        boolean swapped = cost2 < cost1;
+        if (swapped) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
@@ -399,6 +723,15 @@ public class JoinOptimizer {
                 rightPkey, stats);
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
+        if (!(j instanceof LogicalSubplanJoinNode)) {
+            // record the algorithm costed, on a copy of the node, which other plans share
+            LogicalJoinNode chosen = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, j.p);
+            chosen.algorithm = swapped
+                    ? chooseJoinAlgorithm(j, t2card, t1card, t2cost, t1cost, t1IsTable, t2Sorted, t1Sorted)
+                    : chooseJoinAlgorithm(j, t1card, t2card, t1cost, t2cost, t2IsTable, t1Sorted, t2Sorted);
+            cc.sortedOn = sortedOn(chosen.algorithm, chosen, swapped ? t2SortedOn : t1SortedOn);
+            j = chosen;
+        }
         cc.plan.addElement(j); // prevbest is left -- add new join to end
         return cc;
     }
@@ -1,25 +1,163 @@
 package simpledb;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 
 /**
- * This class records information of locks on a specific page.
+ * This class records information of locks on a specific resource, a table,
+ * a page or a key of a B+ tree (see {@link IndexKey}).
+ * <p>
+ * The holders form the granted group; transactions that cannot get the lock
+ * yet queue up in FIFO order in the waiting group. When the lock is released,
+ * requests are granted from the head of the queue as long as they are
+ * compatible, so a run of shared requests is granted as one batch. A holder
+ * upgrading to a stronger mode goes to the head of the queue.
+ * <p>
+ * All fields are guarded by the monitor of the Lock itself, which is also the
+ * condition queue its waiters wait on, so releasing a lock only wakes the
+ * transactions waiting for that resource.
  */
 public class Lock {
 
-	public PageId pageId;
-	public Set<TransactionId> sharedLockTidSet;
-	public Set<TransactionId> exclusiveLockTidSet;
-	public Set<TransactionId> toSharedTidSet;
-	public Set<TransactionId> toExclusiveTidSet;
-
-	public Lock(PageId pageId){
-		this.pageId = pageId;
-		this.sharedLockTidSet = new HashSet<>();
-		this.exclusiveLockTidSet = new HashSet<>();
-		this.toSharedTidSet = new HashSet<>();
-		this.toExclusiveTidSet = new HashSet<>();
+	/** A queued lock request. */
+	static class Request {
+		final TransactionId tid;
+		final LockType lockType;
+		boolean granted;
+
+		Request(TransactionId tid, LockType lockType) {
+			this.tid = tid;
+			this.lockType = lockType;
+		}
+	}
+
+	public final Object resource;
+	/** The mode each holder holds the lock in. */
+	private final Map<TransactionId, LockType> holders;
+	/** The number of holders in each mode, indexed by ordinal. */
+	private final int[] holderCounts;
+	private final LinkedList<Request> waitQueue;
+	/** Set once the lock has been dropped from the LockManager; it is never granted again. */
+	boolean retired;
+
+	public Lock(Object resource){
+		this.resource = resource;
+		this.holders = new HashMap<>();
+		this.holderCounts = new int[LockType.values().length];
+		this.waitQueue = new LinkedList<>();
+	}
+
+	/**
+	 * Grant the lock to tid right away if nobody is queued before it and the
+	 * mode is compatible with the holders. A holder asking for a stronger
+	 * mode gets the weakest mode that grants both, e.g. SIX for S and IX.
+	 *
+	 * @return true if tid now holds the lock in the requested mode
+	 */
+	boolean tryGrant(TransactionId tid, LockType lockType) {
+		LockType held = holders.get(tid);
+		if (held != null && held.covers(lockType)) return true;
+		if (!waitQueue.isEmpty() && held == null) return false;
+		return grantIfCompatible(tid, lockType);
+	}
+
+	/** Queue a request that {@link #tryGrant} could not grant. */
+	Request enqueue(TransactionId tid, LockType lockType) {
+		Request request = new Request(tid, lockType);
+		if (holders.containsKey(tid)) waitQueue.addFirst(request);
+		else waitQueue.addLast(request);
+		return request;
+	}
+
+	/** Withdraw a request that was not granted, e.g. because its transaction aborts. */
+	void dequeue(Request request) {
+		if (waitQueue.remove(request)) grantWaiters();
+	}
+
+	/** @return true if some transaction waits for this lock */
+	boolean hasWaiters() {
+		return !waitQueue.isEmpty();
+	}
+
+	/**
+	 * @return the transactions that keep the request from being granted: the
+	 *         incompatible holders and the incompatible requests queued before it
+	 */
+	Set<TransactionId> blockers(Request request) {
+		LockType wanted = modeFor(request.tid, request.lockType);
+		Set<TransactionId> blockers = new HashSet<>();
+		for (Map.Entry<TransactionId, LockType> holder : holders.entrySet()) {
+			if (!holder.getValue().isCompatibleWith(wanted))
+				blockers.add(holder.getKey());
+		}
+		for (Request ahead : waitQueue) {
+			if (ahead == request) break;
+			if (!ahead.lockType.isCompatibleWith(request.lockType))
+				blockers.add(ahead.tid);
+		}
+		blockers.remove(request.tid);
+		return blockers;
+	}
+
+	/**
+	 * Release the lock held by tid and grant it to the waiters it unblocks.
+	 *
+	 * @return true if tid held the lock in any mode
+	 */
+	boolean release(TransactionId tid) {
+		LockType held = holders.remove(tid);
+		if (held == null) return false;
+		holderCounts[held.ordinal()]--;
+		grantWaiters();
+		return true;
+	}
+
+	boolean isHeldBy(TransactionId tid) {
+		return holders.containsKey(tid);
+	}
+
+	/** @return the mode tid holds the lock in, or null if it does not hold it */
+	LockType modeOf(TransactionId tid) {
+		return holders.get(tid);
+	}
+
+	/** @return true if nobody holds or waits for this lock */
+	boolean isFree() {
+		return holders.isEmpty() && waitQueue.isEmpty();
+	}
+
+	/** Grant queued requests from the head of the queue while they are compatible. */
+	private void grantWaiters() {
+		Iterator<Request> iter = waitQueue.iterator();
+		while (iter.hasNext()) {
+			Request request = iter.next();
+			if (!grantIfCompatible(request.tid, request.lockType)) break;
+			request.granted = true;
+			iter.remove();
+		}
+	}
+
+	/** @return the mode tid would hold the lock in once it is granted lockType */
+	private LockType modeFor(TransactionId tid, LockType lockType) {
+		LockType held = holders.get(tid);
+		return held == null ? lockType : held.join(lockType);
+	}
+
+	private boolean grantIfCompatible(TransactionId tid, LockType lockType) {
+		LockType held = holders.get(tid);
+		LockType mode = modeFor(tid, lockType);
+		for (LockType other : LockType.values()) {
+			int count = holderCounts[other.ordinal()] - (other == held ? 1 : 0);
+			if (count > 0 && !other.isCompatibleWith(mode)) return false;
+		}
+		if (held != null) holderCounts[held.ordinal()]--;
+		holderCounts[mode.ordinal()]++;
+		holders.put(tid, mode);
+		return true;
 	}
 
 }
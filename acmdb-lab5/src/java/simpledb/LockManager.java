@@ -1,129 +1,461 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Lock modes. A transaction locks a table in an intention mode, IS or IX,
+ * before it locks pages or keys of the table in SHARED or EXCLUSIVE mode; a
+ * SHARED or EXCLUSIVE lock on the table grants that mode on all of them.
+ * SIX is held by a transaction that reads the whole table and changes some
+ * of its pages.
+ */
 enum LockType{
+	INTENTION_SHARED,
+	INTENTION_EXCLUSIVE,
 	SHARED,
-	EXCLUSIVE,
+	SHARED_INTENTION_EXCLUSIVE,
+	EXCLUSIVE;
+
+	private static final boolean[][] COMPATIBLE = {
+			//        IS     IX     S      SIX    X
+			/* IS  */ {true,  true,  true,  true,  false},
+			/* IX  */ {true,  true,  false, false, false},
+			/* S   */ {true,  false, true,  false, false},
+			/* SIX */ {true,  false, false, false, false},
+			/* X   */ {false, false, false, false, false},
+	};
+
+	/** @return true if one transaction may hold this mode while another holds other */
+	boolean isCompatibleWith(LockType other) {
+		return COMPATIBLE[ordinal()][other.ordinal()];
+	}
+
+	/** @return the weakest mode that grants both this mode and other */
+	LockType join(LockType other) {
+		if (this == other || other == INTENTION_SHARED) return this;
+		if (this == INTENTION_SHARED) return other;
+		if (this == EXCLUSIVE || other == EXCLUSIVE) return EXCLUSIVE;
+		return SHARED_INTENTION_EXCLUSIVE;
+	}
+
+	/** @return true if holding this mode grants other */
+	boolean covers(LockType other) {
+		return join(other) == this;
+	}
+
+	/** @return the intention mode to hold on the table before locking a page or key of it in this mode */
+	LockType intention() {
+		return this == SHARED ? INTENTION_SHARED : INTENTION_EXCLUSIVE;
+	}
 }
 
+/**
+ * LockManager grants shared and exclusive locks on pages, and on the keys
+ * of B+ trees, see {@link IndexKey}.
+ * <p>
+ * Locks form a hierarchy of tables over their pages and keys. Before it
+ * locks a page or key, a transaction takes the intention lock of its table,
+ * IS or IX; a transaction holding a SHARED or EXCLUSIVE lock on the whole
+ * table, see {@link #acquireTableLock}, needs no locks on the pages and
+ * keys it covers, and its requests for them do not touch their Locks. Once
+ * a transaction holds {@link #PAGE_LOCKS_BEFORE_ESCALATION} page locks on
+ * a table, they are escalated to one lock on the table if that can be had
+ * without waiting. The pages it writes under an exclusive table lock are
+ * remembered, as the buffer pool logs and restores what the transaction
+ * holds exclusively. There is no lock on the whole database, as nothing
+ * operates on it as a whole.
+ * <p>
+ * Every Lock keeps its own FIFO request queue and is guarded by its own
+ * monitor; the lookup tables are concurrent maps, so there is no global
+ * monitor on the acquire and release path. A transaction that cannot get a
+ * lock waits on the monitor of that Lock and is woken only when that lock
+ * changes hands. The lock of a key is dropped from the table as soon as
+ * nobody holds or waits for it, as there is no bound on the keys locked
+ * over time; a transaction that finds a dropped lock looks the key up again.
+ * <p>
+ * While it waits, a transaction is recorded in the WaitForGraph; a deadlock
+ * is detected as soon as the waiter enqueues, and its youngest member is
+ * aborted with a DeadlockException.
+ * <p>
+ * Lock order: at most one Lock monitor is held at a time, and the
+ * WaitForGraph monitor may be taken while holding it, never the other way.
+ */
 public class LockManager {
 
-	public final int WAITING_TIME_LIMIT = 500; // waits for XXX ms
-	public final int WAITING_INTERVAL = 50;
-	public final Random randomGenerator = new Random();
+	/** Page locks a transaction holds on one table before they are escalated to a table lock. */
+	public static final int PAGE_LOCKS_BEFORE_ESCALATION = 512;
+
+	/** A table, as a resource; the parent of its pages and keys. */
+	private static final class Table {
+		final int tableId;
+
+		Table(int tableId) {
+			this.tableId = tableId;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Table && ((Table) o).tableId == tableId;
+		}
+
+		@Override
+		public int hashCode() {
+			return tableId;
+		}
+
+		@Override
+		public String toString() {
+			return "Table(" + tableId + ")";
+		}
+	}
+
+	/** What a transaction holds on one table. */
+	private static class TableLocks {
+		final int tableId;
+		final Lock lock;
+		/** The mode the transaction holds the table's lock in, null if none. */
+		volatile LockType mode;
+		/** The number of pages of the table the transaction holds a lock on. */
+		final AtomicInteger pageLocks = new AtomicInteger();
+		/** The number of page locks at which to try to escalate next. */
+		int nextEscalation = PAGE_LOCKS_BEFORE_ESCALATION;
+		/** The pages written under the exclusive table lock, which have no lock of their own. */
+		final Set<PageId> coveredWrites = ConcurrentHashMap.newKeySet();
+
+		TableLocks(int tableId, Lock lock) {
+			this.tableId = tableId;
+			this.lock = lock;
+		}
+
+		boolean covers(LockType lockType) {
+			LockType held = mode;
+			return held != null && held.covers(lockType);
+		}
+	}
 
-	private final Map<PageId, Lock> pid2Lock;
+	private final Map<Object, Lock> resource2Lock;
 	private final Map<TransactionId, Set<Lock>> tid2LockSet;
+	private final Map<TransactionId, AtomicInteger> tid2KeyLockCount;
+	private final Map<TransactionId, Map<Integer, TableLocks>> tid2Tables;
+	private final WaitForGraph waitForGraph;
 
 	public LockManager(){
-		pid2Lock = new HashMap<>();
-		tid2LockSet = new HashMap<>();
+		resource2Lock = new ConcurrentHashMap<>();
+		tid2LockSet = new ConcurrentHashMap<>();
+		tid2KeyLockCount = new ConcurrentHashMap<>();
+		tid2Tables = new ConcurrentHashMap<>();
+		waitForGraph = new WaitForGraph();
 	}
 
-	public synchronized void acquireLock(TransactionId tid, PageId pid, LockType lockType)
+	public void acquireLock(TransactionId tid, PageId pid, LockType lockType)
 			throws TransactionAbortedException {
+		TableLocks table = tableLocksOf(tid, pid.getTableId());
+		if (table.covers(lockType)) {
+			if (lockType == LockType.EXCLUSIVE) table.coveredWrites.add(pid);
+			return;
+		}
+		lockIntention(tid, table, lockType);
+		acquire(tid, pid, lockType);
+		if (table.pageLocks.get() >= table.nextEscalation) escalate(tid, table);
+	}
 
-//		lockType = LockType.EXCLUSIVE; // XXX
+	public void acquireLock(TransactionId tid, IndexKey key, LockType lockType)
+			throws TransactionAbortedException {
+		TableLocks table = tableLocksOf(tid, key.getTableId());
+		if (table.covers(lockType)) return;
+		lockIntention(tid, table, lockType);
+		acquire(tid, key, lockType);
+	}
 
-		Lock lock = pid2Lock.computeIfAbsent(pid, Lock::new);
-		Set<Lock> lockSet = tid2LockSet.computeIfAbsent(tid, key -> new HashSet<>());
+	/**
+	 * Lock a whole table, SHARED or EXCLUSIVE, so that the pages and keys of
+	 * it tid goes on to use need no locks of their own.
+	 */
+	public void acquireTableLock(TransactionId tid, int tableId, LockType lockType)
+			throws TransactionAbortedException {
+		TableLocks table = tableLocksOf(tid, tableId);
+		if (!table.covers(lockType)) lockTable(tid, table, lockType);
+	}
 
-		long endWaitingTime = System.currentTimeMillis() + WAITING_TIME_LIMIT + this.randomGenerator.nextInt(WAITING_TIME_LIMIT);
+	private TableLocks tableLocksOf(TransactionId tid, int tableId) {
+		return tid2Tables.computeIfAbsent(tid, key -> new ConcurrentHashMap<>()).computeIfAbsent(tableId,
+				key -> new TableLocks(tableId, resource2Lock.computeIfAbsent(new Table(tableId), Lock::new)));
+	}
 
-		if(lockType == LockType.EXCLUSIVE){
-			while(true){
-				if(lock.sharedLockTidSet.isEmpty() && lock.exclusiveLockTidSet.isEmpty()) break;
-				if(lock.exclusiveLockTidSet.contains(tid)) break;
-				if(lock.sharedLockTidSet.size() == 1 && lock.sharedLockTidSet.contains(tid)){
-					lock.sharedLockTidSet.remove(tid);
-					lock.toExclusiveTidSet.add(tid);
-					break;
-				}
-				if(System.currentTimeMillis() > endWaitingTime) {
-//					System.out.println(tid + " times out for exclusive locks on " + pid);
-					throw new TransactionAbortedException();
+	/** Take the intention lock of the table needed before locking a page or key of it in lockType. */
+	private void lockIntention(TransactionId tid, TableLocks table, LockType lockType)
+			throws TransactionAbortedException {
+		LockType intention = lockType.intention();
+		if (!table.covers(intention)) lockTable(tid, table, intention);
+	}
+
+	private void lockTable(TransactionId tid, TableLocks table, LockType lockType)
+			throws TransactionAbortedException {
+		acquire(tid, table.lock.resource, lockType);
+		synchronized (table.lock) {
+			table.mode = table.lock.modeOf(tid);
+		}
+	}
+
+	/**
+	 * Replace the page locks tid holds on the table by a lock on the whole
+	 * table, SHARED if it has only read the table and EXCLUSIVE otherwise.
+	 * Escalation does not wait for the table lock, as the other holders of
+	 * intention locks may be there for long; if it cannot be had, it is tried
+	 * again after as many page locks more.
+	 */
+	private void escalate(TransactionId tid, TableLocks table) {
+		LockType lockType = table.mode == LockType.INTENTION_SHARED ? LockType.SHARED : LockType.EXCLUSIVE;
+		if (!tryAcquire(tid, table.lock.resource, lockType)) {
+			table.nextEscalation += PAGE_LOCKS_BEFORE_ESCALATION;
+			return;
+		}
+		synchronized (table.lock) {
+			table.mode = table.lock.modeOf(tid);
+		}
+		for (Lock lock : lockSetOf(tid)) {
+			if (!(lock.resource instanceof PageId)) continue;
+			PageId pid = (PageId) lock.resource;
+			if (pid.getTableId() != table.tableId) continue;
+			synchronized (lock) {
+				if (lock.modeOf(tid) == LockType.EXCLUSIVE) table.coveredWrites.add(pid);
+			}
+			releaseResource(tid, pid);
+		}
+	}
+
+	private void acquire(TransactionId tid, Object resource, LockType lockType)
+			throws TransactionAbortedException {
+
+		Lock lock;
+		Lock.Request request;
+		while (true) {
+			lock = resource2Lock.computeIfAbsent(resource, Lock::new);
+			synchronized (lock) {
+				if (lock.retired) continue;
+				if (lock.tryGrant(tid, lockType)) {
+					held(tid, lock);
+					return;
 				}
-				try{
-					wait(WAITING_INTERVAL);
-//					System.out.println(tid + " is waiting for exclusive locks on " + pid);
-				} catch (Exception e) {throw new TransactionAbortedException();}
+				request = lock.enqueue(tid, lockType);
+				break;
 			}
-//			System.out.println(tid + " acquires the exclusive lock on " + pid);
-			lock.exclusiveLockTidSet.add(tid);
 		}
 
-		else{
-			while(true){
-				if(lock.exclusiveLockTidSet.isEmpty()) break;
-				if(lock.exclusiveLockTidSet.contains(tid)){
-					lock.exclusiveLockTidSet.remove(tid);
-					lock.toSharedTidSet.add(tid);
-					break;
+		try {
+			while (true) {
+				TransactionId victim;
+				synchronized (lock) {
+					if (request.granted) break;
+					if (waitForGraph.isVictim(tid)) throw new DeadlockException();
+					victim = waitForGraph.waitFor(tid, lock, lock.blockers(request));
+					if (tid.equals(victim)) throw new DeadlockException();
+					if (victim == null) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							throw new TransactionAbortedException();
+						}
+						continue;
+					}
 				}
-				if(System.currentTimeMillis() > endWaitingTime) {
-//					System.out.println(tid + " times out for shared locks on " + pid);
-					throw new TransactionAbortedException();
+				// wake the victim up so that it aborts, then check our request again
+				wakeUp(victim);
+			}
+		} finally {
+			// also runs when the waiting thread is aborted or dies
+			synchronized (lock) {
+				if (request.granted) held(tid, lock);
+				else {
+					lock.dequeue(request);
+					lock.notifyAll();
+					retireIfFree(lock);
 				}
-				try{
-					wait(WAITING_INTERVAL);
-//					System.out.println(tid + " is waiting for shared locks on " + pid);
-				} catch (Exception e) {throw new TransactionAbortedException();}
 			}
-//			System.out.println(tid + " acquires the shared lock on " + pid);
-			lock.sharedLockTidSet.add(tid);
+			waitForGraph.stopWaiting(tid, lock);
 		}
+	}
 
-		lockSet.add(lock);
+	/**
+	 * Grant the lock of a key to tid if it can be granted right away, without
+	 * queueing for it otherwise.
+	 *
+	 * @return true if tid now holds the lock in the requested mode
+	 */
+	public boolean tryAcquireLock(TransactionId tid, IndexKey key, LockType lockType) {
+		TableLocks table = tableLocksOf(tid, key.getTableId());
+		if (table.covers(lockType)) return true;
+		LockType intention = lockType.intention();
+		if (!table.covers(intention)) {
+			if (!tryAcquire(tid, table.lock.resource, intention)) return false;
+			synchronized (table.lock) {
+				table.mode = table.lock.modeOf(tid);
+			}
+		}
+		return tryAcquire(tid, key, lockType);
 	}
 
-	public synchronized void releaseLock(TransactionId tid, PageId pid){
-		Lock lock = pid2Lock.get(pid);
+	private boolean tryAcquire(TransactionId tid, Object resource, LockType lockType) {
+		while (true) {
+			Lock lock = resource2Lock.computeIfAbsent(resource, Lock::new);
+			synchronized (lock) {
+				if (lock.retired) continue;
+				if (!lock.tryGrant(tid, lockType)) return false;
+				held(tid, lock);
+				return true;
+			}
+		}
+	}
 
-		if(lock.exclusiveLockTidSet.contains(tid)) {
-			lock.exclusiveLockTidSet.remove(tid);
-//			System.out.println(tid + " releases the shared lock on " + pid);
+	private Set<Lock> lockSetOf(TransactionId tid) {
+		return tid2LockSet.computeIfAbsent(tid, key -> ConcurrentHashMap.newKeySet());
+	}
+
+	/** Record that tid holds lock, which was just granted to it. */
+	private void held(TransactionId tid, Lock lock) {
+		if (!lockSetOf(tid).add(lock)) return;
+		if (lock.resource instanceof IndexKey)
+			tid2KeyLockCount.computeIfAbsent(tid, key -> new AtomicInteger()).incrementAndGet();
+		else if (lock.resource instanceof PageId)
+			tableLocksOf(tid, ((PageId) lock.resource).getTableId()).pageLocks.incrementAndGet();
+	}
+
+	/** @return what tid holds on the table, or null if it holds nothing there */
+	private TableLocks tableLocks(TransactionId tid, int tableId) {
+		Map<Integer, TableLocks> tables = tid2Tables.get(tid);
+		return tables == null ? null : tables.get(tableId);
+	}
+
+	/** @return true if tid holds a lock on the whole table that grants lockType */
+	private boolean tableCovers(TransactionId tid, int tableId, LockType lockType) {
+		TableLocks table = tableLocks(tid, tableId);
+		return table != null && table.covers(lockType);
+	}
+
+	/** Drop the lock of a key from the table if nobody holds or waits for it; called under its monitor. */
+	private void retireIfFree(Lock lock) {
+		if (lock.resource instanceof IndexKey && lock.isFree()) {
+			lock.retired = true;
+			resource2Lock.remove(lock.resource, lock);
 		}
-		else if(lock.sharedLockTidSet.contains(tid)) {
-			lock.sharedLockTidSet.remove(tid);
-//			System.out.println(tid + " releases the shared lock on " + pid);
+	}
+
+	/** Wake up the waiters of every lock the given transaction waits for. */
+	private void wakeUp(TransactionId tid) {
+		for (Lock lock : waitForGraph.waitedLocks(tid)) {
+			synchronized (lock) {
+				lock.notifyAll();
+			}
 		}
-		else assert false;
+	}
 
-//		if(lock.exclusiveLockTidSet.contains(tid)) lock.exclusiveLockTidSet.remove(tid);
-//		else lock.sharedLockTidSet.remove(tid);
+	/** Release the lock tid holds on lock and wake up the waiters it lets in. */
+	private void release(TransactionId tid, Lock lock) {
+		synchronized (lock) {
+			boolean hadWaiters = lock.hasWaiters();
+			if (lock.release(tid) && hadWaiters) {
+				waitForGraph.released(lock, tid);
+				lock.notifyAll();
+			}
+			retireIfFree(lock);
+		}
+	}
 
-		tid2LockSet.get(tid).remove(lock);
-		notifyAll();
+	public void releaseLock(TransactionId tid, PageId pid){
+		releaseResource(tid, pid);
 	}
 
-	public synchronized void releaseAllLocks(TransactionId tid){
-		if(tid2LockSet.containsKey(tid)) {
-			Set<Lock> lockSet = new HashSet<>(tid2LockSet.get(tid));
-			for (Lock lock : lockSet) {
-				releaseLock(tid, lock.pageId);
-			}
+	public void releaseLock(TransactionId tid, IndexKey key){
+		releaseResource(tid, key);
+	}
+
+	private void releaseResource(TransactionId tid, Object resource) {
+		Lock lock = resource2Lock.get(resource);
+		if (lock == null) return;
+		Set<Lock> lockSet = tid2LockSet.get(tid);
+		if (lockSet != null && lockSet.remove(lock)) {
+			if (resource instanceof IndexKey)
+				tid2KeyLockCount.get(tid).decrementAndGet();
+			else if (resource instanceof PageId)
+				tableLocksOf(tid, ((PageId) resource).getTableId()).pageLocks.decrementAndGet();
 		}
-		notifyAll();
+		release(tid, lock);
+	}
+
+	public void releaseAllLocks(TransactionId tid){
+		tid2KeyLockCount.remove(tid);
+		tid2Tables.remove(tid);
+		Set<Lock> lockSet = tid2LockSet.remove(tid);
+		if (lockSet != null) {
+			for (Lock lock : lockSet)
+				release(tid, lock);
+		}
+		if (waitForGraph.involves(tid)) waitForGraph.remove(tid);
 	}
 
 	/**
-	 * Get all pages that were ever exclusively locked by tid.
+	 * Get all pages that were ever exclusively locked by tid, including the
+	 * pages it wrote under an exclusive table lock.
 	 */
-	public synchronized Set<PageId> getExclusiveLockedPageIds(TransactionId tid){
+	public Set<PageId> getExclusiveLockedPageIds(TransactionId tid){
 		Set<PageId> resPageId = new HashSet<>();
-		if(tid2LockSet.containsKey(tid)) {
-			for (Lock lock : tid2LockSet.get(tid)) {
-				if (lock.exclusiveLockTidSet.contains(tid) || lock.toSharedTidSet.contains(tid))
-					resPageId.add(lock.pageId);
+		Map<Integer, TableLocks> tables = tid2Tables.get(tid);
+		if (tables != null) {
+			for (TableLocks table : tables.values())
+				resPageId.addAll(table.coveredWrites);
+		}
+		Set<Lock> lockSet = tid2LockSet.get(tid);
+		if (lockSet != null) {
+			for (Lock lock : lockSet) {
+				synchronized (lock) {
+					if (lock.resource instanceof PageId && lock.modeOf(tid) == LockType.EXCLUSIVE)
+						resPageId.add((PageId) lock.resource);
+				}
 			}
 		}
 		return resPageId;
 	}
 
 	public boolean holdsLock(TransactionId tid, PageId pid){
-		Lock lock = pid2Lock.get(pid);
-		return lock.exclusiveLockTidSet.contains(tid) || lock.sharedLockTidSet.contains(tid);
+		if (tableCovers(tid, pid.getTableId(), LockType.SHARED)) return true;
+		Lock lock = resource2Lock.get(pid);
+		if (lock == null) return false;
+		synchronized (lock) {
+			return lock.isHeldBy(tid);
+		}
+	}
+
+	/** @return true if tid holds a lock on the page, or on its table, that grants the given mode */
+	public boolean holdsLock(TransactionId tid, PageId pid, LockType lockType){
+		return tableCovers(tid, pid.getTableId(), lockType) || holds(tid, pid, lockType);
+	}
+
+	/** @return true if tid holds a lock on the key, or on its table, that grants the given mode */
+	public boolean holdsLock(TransactionId tid, IndexKey key, LockType lockType){
+		return tableCovers(tid, key.getTableId(), lockType) || holds(tid, key, lockType);
+	}
+
+	/** @return the mode tid holds the lock of the table in, or null if it holds none */
+	public LockType tableLockMode(TransactionId tid, int tableId){
+		TableLocks table = tableLocks(tid, tableId);
+		return table == null ? null : table.mode;
+	}
+
+	private boolean holds(TransactionId tid, Object resource, LockType lockType) {
+		Lock lock = resource2Lock.get(resource);
+		if (lock == null) return false;
+		synchronized (lock) {
+			LockType held = lock.modeOf(tid);
+			return held != null && held.covers(lockType);
+		}
+	}
+
+	/** @return the number of keys tid holds a lock on */
+	public int keyLockCount(TransactionId tid){
+		AtomicInteger count = tid2KeyLockCount.get(tid);
+		return count == null ? 0 : count.get();
 	}
 
 }
@@ -2,8 +2,12 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -15,23 +19,77 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+writes from happening.)  The BufferPool writes log records and forces
+the log while it holds the monitor of one of its partitions, when it
+steals a dirty page or writes one out, and the log file flushes and
+discards BufferPool pages (on checkpoints, rollback and recovery.)  This
+can lead to deadlock.  For that reason, a LogFile operation that needs
+to access the BufferPool must not do so while it holds the LogFile
+monitor.  It must not be declared synchronized, and must take the
+LogFile monitor only around its own reads and appends.  Rollback and
+recovery begin with a block like the one below, which keeps them from
+running at the same time; checkpoints only exclude each other, so that
+they do not hold up aborts:
 
 <p>
 <pre>
     synchronized (Database.getBufferPool()) {
        synchronized (this) {
-
-       ..
-
+          // read and append log records
        }
+       // flush, write or discard pages
     }
 </pre>
+
+<u> Recovery: </u>
+<p>
+
+The BufferPool runs STEAL/NO-FORCE for transactions that have a BEGIN
+record.  A committing transaction logs a record for each page it dirtied and
+forces only the log; the pages stay dirty in the pool.  A
+dirty page of a running transaction may be stolen, i.e. written to make
+room, after its record is logged.  Every page remembers the LSN of
+the last record that holds it, see {@link Page#getLsn}, and is only
+written once the log is durable up to that record.  An abort restores the
+before images of the pages that were stolen and logs them as
+COMPENSATION records.  {@link #recover} repeats history from the redo LSN
+of the last checkpoint, installing the last image logged for each page,
+and then rolls back the transactions that were running at the crash.
+<p>
+
+Checkpoints are fuzzy: rather than writing every dirty page, a
+checkpoint records the active transactions and the dirty page table,
+the pages that were logged since they were last written with the LSN of
+the first such record, and redo starts from the oldest of those.  A
+checkpoint only writes the pages that stayed dirty since the checkpoint
+before, so that the log can be truncated behind it, and forces the
+table files, so that the pages written meanwhile are durable.
+<p>
+
+The first record of a page after a checkpoint is an UPDATE record with
+its whole before and after images.  The ones that follow are DELTA
+records, which hold only the byte ranges that changed since the page was
+last logged, typically a header byte and a tuple slot.  Redo starts
+each page from its whole image and sets the ranges of the DELTA records
+to their new bytes in order; undo sets them to their old bytes in
+reverse.  Since a record sets bytes rather than adding to them,
+replaying it twice does no harm, and the page LSNs need not be kept in
+the pages on disk.
+
+<u> Group commit: </u>
+<p>
+
+Log records are serialized into a direct buffer in memory rather than
+written to the file one field at a time.  A committing transaction
+appends its COMMIT record and then waits, without holding the LogFile
+monitor, until a flusher thread has written and forced the log up to
+that record.  The flusher takes the whole buffer, hands the appenders a
+spare one, and writes it with one write and one force, so the commits
+that arrive while a force is in progress share the next one.  It can
+also be told to wait a little for more commits before it forces, see
+{@link #setGroupCommit}.  Code that reads or seeks the log file itself
+must first call {@link #drain} to get the buffered records into the
+file.
 */
 
 /**
@@ -39,33 +97,61 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file holds a header of two long integers: the LSN of the
+last written checkpoint, or -1 if there are no checkpoints, and the LSN
+of the first log record.  The records are in segment files of a fixed
+size next to it, named after it with the number of the segment
+appended, e.g. log.1.
+
+<li> The log sequence number (LSN) of a record is its address in the
+log as a whole: the LSN of the record before it plus the length of that
+record.  LSNs only grow, and truncating the head of the log, which
+deletes the segments before the first record kept, does not change
+them; the record with LSN l is at offset l % segmentSize of segment
+l / segmentSize, and may continue in the next segment.  A new log
+starts with segment 1, since LSN 0 stands for no record.
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer length of the whole
+record, an integer CRC32 checksum of the rest of the record, a byte
+type and a long integer transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with its integer length again, so that the
+log can be read backwards.  A record that is cut short or whose
+checksum does not match, as the last one may be after a crash, ends
+the log.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, COMPENSATION and DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
-
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+after image.  These images are serialized Page objects: a byte tag
+for the class of the page, which also gives the class of its id, the
+table id and page number, and the length and bytes of the page data.
+They can be accessed with the LogFile.readPageData() and
+LogFile.writePageData() methods.  See LogFile.print() for an example.
+
+<li> CHECKPOINT records consist of the LSN at which the checkpoint was
+taken, the active transactions and their first log record at that
+time, and the dirty page table.  The format of the record is a long
+integer LSN, an integer count of the number of transactions, as well as
+a long integer transaction id and a long integer first record LSN for
+each active transaction, and then an integer count of the number of
+pages, as well as the class tag, table id and page number and a long
+integer first record LSN for each dirty page.
+
+<li> COMPENSATION records consist of one serialized page, the before
+image an abort restored.  They are redone like after images and never
+undone.
+
+<li> DELTA records consist of the class tag, table id and page number of
+a page, an integer count of ranges, and for each range an integer offset
+into the page data, an integer length, and that many bytes before and
+after the update.
 
 </ul>
 
@@ -73,8 +159,10 @@ for each active transaction.
 
 public class LogFile {
 
-    final File logFile;
+    final File logFile; // holds the header; the records are in its segments
     private RandomAccessFile raf;
+    private final long segmentSize;
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>(); // open segment files by number //protected by this
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,16 +170,88 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int COMPENSATION_RECORD = 6;
+    static final int DELTA_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    /** The checkpoint LSN and the LSN of the first record in the log. */
+    static final int HEADER_SIZE = 2 * LONG_SIZE;
+
+    /** Size of the segment files, unless the log is created with another. */
+    static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    // offsets of the fields every record starts with
+    static final int RECORD_CHECKSUM = INT_SIZE;
+    static final int RECORD_TYPE = 2 * INT_SIZE;
+    static final int RECORD_TID = RECORD_TYPE + 1;
+    static final int RECORD_PAYLOAD = RECORD_TID + LONG_SIZE;
+    /** Length, checksum, type and tid, and the length again at the end. */
+    static final int RECORD_OVERHEAD = RECORD_PAYLOAD + INT_SIZE;
+
+    // tags of the classes of the pages in UPDATE and DELTA records
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_ROOT_PTR_PAGE = 2;
+    static final byte BTREE_INTERNAL_PAGE = 3;
+    static final byte BTREE_LEAF_PAGE = 4;
+    static final byte BTREE_HEADER_PAGE = 5;
+
+    /** The tag, table id and page number that start the page data. */
+    static final int PAGE_ID_SIZE = 1 + 2 * INT_SIZE;
+
+    /**
+     * Changed ranges of a page at most this many bytes apart are logged as
+     * one range, whose unchanged bytes cost no more than another offset
+     * and length would.
+     */
+    static final int DELTA_MERGE_GAP = INT_SIZE;
+
+    /** Size of the direct buffers records are serialized into. */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /** Size of the chunks recovery reads the log in. */
+    static final int READ_AHEAD_SIZE = 1 << 20;
+
+    /** Records handed to a redo worker at a time, and batches queued for it. */
+    static final int REDO_BATCH = 256;
+    static final int REDO_QUEUE_BATCHES = 16;
+
+    long currentOffset = -1; // LSN of the next record //protected by this
+    private long firstLsn; // LSN of the first record in the file //protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // pages logged whole since the last checkpoint
+    private final Set<PageId> imagedPages = new HashSet<>(); //protected by this
+    // dirty page table: pages logged since they were last written, with the LSN of the first such record
+    private final Map<PageId, Long> dirtyPages = new HashMap<>(); //protected by this
+    private long lastCheckpointLsn; // where the last checkpoint was taken //protected by this
+    private final Object checkpointLock = new Object(); // held by the checkpoint being taken
+
+    // records appended since the last write to raf, which ends at writtenLsn
+    private ByteBuffer buffer; //protected by this
+    private final ArrayDeque<ByteBuffer> spareBuffers = new ArrayDeque<>(); //protected by this
+    private int recordStart; // position in buffer of the record being appended //protected by this
+    private final CRC32 checksum = new CRC32(); //protected by this
+    private long writtenLsn; //protected by this
+    private long durableLsn; // forced to disk up to here //protected by this
+    private long requestedLsn; // commits wait for the log up to here //protected by this
+    private int waitingCommits; //protected by this
+    private boolean flushing; // a batch is being written outside the monitor //protected by this
+    private boolean flusherRunning; //protected by this
+    private IOException flushError; //protected by this
+
+    /** How long the flusher waits idle before its thread exits. */
+    static final long FLUSHER_IDLE_MILLIS = 1000;
+
+    private int redoThreads = Runtime.getRuntime().availableProcessors(); //protected by this
+    private long groupCommitWaitMillis = 0; //protected by this
+    private int groupCommitMaxBatch = 64; //protected by this
+    private long forces = 0; //protected by this
+    private long groupCommits = 0; //protected by this
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -105,7 +265,13 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Create a log whose records are kept in segment files of the given size. */
+    LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
+        this.segmentSize = segmentSize;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
 
@@ -127,18 +293,440 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startNewLog();
+        }
+    }
+
+    private void startNewLog() throws IOException {
+        deleteSegments(0, Long.MAX_VALUE);
+        firstLsn = segmentSize;
+        writeHeader(NO_CHECKPOINT_ID);
+        currentOffset = writtenLsn = durableLsn = firstLsn;
+        buffer = takeBuffer();
+    }
+
+    /**
+     * Open the log that is in the files for recovery: find the end of its
+     * last whole record and cut off whatever follows it.
+     */
+    private void openExisting() throws IOException {
+        if (raf.length() < HEADER_SIZE) {
+            startNewLog();
+            return;
+        }
+        firstLsn = readHeader().getLong(LONG_SIZE);
+        writtenLsn = firstLsn;
+        RecordReader reader = new RecordReader();
+        ByteBuffer record;
+        while ((record = reader.read(writtenLsn)) != null)
+            writtenLsn += record.capacity();
+        segment(segmentOf(writtenLsn)).truncate(writtenLsn % segmentSize);
+        // and drop segments left behind by a truncation the crash cut short
+        deleteSegments(segmentOf(writtenLsn) + 1, Long.MAX_VALUE);
+        deleteSegments(0, segmentOf(firstLsn));
+        currentOffset = durableLsn = writtenLsn;
+        buffer = takeBuffer();
+    }
+
+    private long segmentOf(long lsn) {
+        return lsn / segmentSize;
+    }
+
+    /** @return the segment file with the given number */
+    private File segmentFile(long segment) {
+        return new File(logFile.getPath() + "." + segment);
+    }
+
+    /** @return the segment file that holds the given LSN */
+    File segmentFileOf(long lsn) {
+        return segmentFile(segmentOf(lsn));
+    }
+
+    /** @return the open channel of the given segment, whose file is created if needed */
+    private FileChannel segment(long segment) throws IOException {
+        FileChannel channel = segments.get(segment);
+        if (channel == null) {
+            channel = new RandomAccessFile(segmentFile(segment), "rw").getChannel();
+            segments.put(segment, channel);
+        }
+        return channel;
+    }
+
+    /** @return the channels of the segments that hold the LSNs from from up to to, by number */
+    private SortedMap<Long, FileChannel> segments(long from, long to) throws IOException {
+        SortedMap<Long, FileChannel> channels = new TreeMap<>();
+        if (from < to) {
+            for (long segment = segmentOf(from); segment <= segmentOf(to - 1); segment++)
+                channels.put(segment, segment(segment));
+        }
+        return channels;
+    }
+
+    /** Close and delete the segment files whose numbers are at least from and below to. */
+    private void deleteSegments(long from, long to) throws IOException {
+        SortedMap<Long, FileChannel> open = segments.subMap(from, to);
+        for (FileChannel channel : open.values())
+            channel.close();
+        open.clear();
+        String prefix = logFile.getName() + ".";
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles(
+                (dir, name) -> name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+"));
+        for (File file : files) {
+            long segment = Long.parseLong(file.getName().substring(prefix.length()));
+            if (segment >= from && segment < to)
+                Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private ByteBuffer readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        raf.getChannel().read(header, 0);
+        return header;
+    }
+
+    /** Write the header and force it to disk. */
+    private void writeHeader(long checkpointLsn) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(checkpointLsn).putLong(firstLsn).flip();
+        raf.getChannel().write(header, 0);
+        raf.getChannel().force(true);
+    }
+
+    /** @return whether the segments had enough bytes from lsn on to fill buffer */
+    private boolean readFully(ByteBuffer buffer, long lsn) throws IOException {
+        while (buffer.hasRemaining()) {
+            long at = lsn + buffer.position();
+            if (!segments.containsKey(segmentOf(at)) && !segmentFile(segmentOf(at)).exists()) return false;
+            ByteBuffer part = buffer.duplicate();
+            part.limit(part.position() + (int) Math.min(part.remaining(), segmentSize - at % segmentSize));
+            int read = segment(segmentOf(at)).read(part, at % segmentSize);
+            if (read < 0) return false;
+            buffer.position(buffer.position() + read);
+        }
+        return true;
+    }
+
+    /** Write data, which goes to the log at lsn, to the segments that hold it. */
+    private void write(ByteBuffer data, long lsn, SortedMap<Long, FileChannel> channels) throws IOException {
+        while (data.hasRemaining()) {
+            long at = lsn + data.position();
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + (int) Math.min(part.remaining(), segmentSize - at % segmentSize));
+            FileChannel channel = channels.get(segmentOf(at));
+            while (part.hasRemaining())
+                channel.write(part, at % segmentSize + part.position() - data.position());
+            data.position(part.position());
+        }
+    }
+
+    /** @return whether the segments hold the byte with the given LSN */
+    private boolean holds(long lsn) throws IOException {
+        long segment = segmentOf(lsn);
+        if (!segments.containsKey(segment) && !segmentFile(segment).exists()) return false;
+        return segment(segment).size() > lsn % segmentSize;
+    }
+
+    /**
+     * Read the record with the given LSN from the segments, which must hold
+     * it, see {@link #drain}.
+     *
+     * @return the whole record, positioned at its payload and limited to it,
+     *         or null if there is no whole record with a matching checksum
+     */
+    ByteBuffer readRecord(long lsn) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(INT_SIZE);
+        if (!readFully(length, lsn)) return null;
+        int size = length.getInt(0);
+        if (size < RECORD_OVERHEAD || !holds(lsn + size - 1)) return null;
+        ByteBuffer record = ByteBuffer.allocate(size);
+        if (!readFully(record, lsn)) return null;
+        return checked(record);
+    }
+
+    /**
+     * @return record, whose capacity is its length, positioned at its payload
+     *         and limited to it, or null if its checksum or the length at
+     *         its end does not match
+     */
+    private ByteBuffer checked(ByteBuffer record) {
+        int size = record.capacity();
+        checksum.reset();
+        checksum.update(record.array(), record.arrayOffset() + RECORD_TYPE, size - RECORD_TYPE);
+        if (record.getInt(RECORD_CHECKSUM) != (int) checksum.getValue()
+                || record.getInt(size - INT_SIZE) != size)
+            return null;
+        record.position(RECORD_PAYLOAD).limit(size - INT_SIZE);
+        return record;
+    }
+
+    /**
+     * Reads the records of the log in order, as {@link #readRecord} does, but
+     * a chunk of the segments at a time rather than with two reads a record,
+     * for the passes of recovery over the log.
+     */
+    private class RecordReader {
+        private ByteBuffer chunk = ByteBuffer.allocate(0);
+        private long chunkLsn; // of the first byte of chunk
+
+        /** @return the record with the given LSN, which follows the ones read before, or null */
+        ByteBuffer read(long lsn) throws IOException {
+            if (!buffered(lsn, INT_SIZE) && !fill(lsn, INT_SIZE)) return null;
+            int size = chunk.getInt((int) (lsn - chunkLsn));
+            if (size < RECORD_OVERHEAD) return null;
+            if (!buffered(lsn, size) && !(holds(lsn + size - 1) && fill(lsn, size))) return null;
+            ByteBuffer record = chunk.duplicate();
+            record.position((int) (lsn - chunkLsn));
+            record.limit(record.position() + size);
+            return checked(record.slice());
+        }
+
+        private boolean buffered(long lsn, int length) {
+            return lsn >= chunkLsn && lsn + length <= chunkLsn + chunk.limit();
+        }
+
+        /**
+         * Read the next chunk, from lsn on; the records handed out keep
+         * the last one.
+         *
+         * @return whether the log has the given number of bytes from lsn on
+         */
+        private boolean fill(long lsn, int length) throws IOException {
+            chunk = ByteBuffer.allocate(Math.max(READ_AHEAD_SIZE, length));
+            chunkLsn = lsn;
+            readFully(chunk, lsn);
+            chunk.flip();
+            return chunk.limit() >= length;
+        }
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer spare = spareBuffers.poll();
+        return spare != null ? spare : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void recycle(ByteBuffer written) {
+        written.clear();
+        if (written.capacity() == BUFFER_SIZE) spareBuffers.push(written);
+    }
+
+    /** Start appending a record of the given type with payloadSize bytes of payload. */
+    private void beginRecord(int type, long tid, int payloadSize) throws IOException {
+        int size = RECORD_OVERHEAD + payloadSize;
+        if (buffer.remaining() < size) {
+            drain();
+            if (buffer.capacity() < size) buffer = ByteBuffer.allocateDirect(size); // a one-off
+        }
+        recordStart = buffer.position();
+        buffer.putInt(size).putInt(0).put((byte) type).putLong(tid);
+    }
+
+    /** Finish the record being appended. @return its LSN */
+    private long endRecord() {
+        int size = buffer.position() + INT_SIZE - recordStart;
+        buffer.putInt(size);
+        ByteBuffer checked = buffer.duplicate();
+        checked.limit(buffer.position()).position(recordStart + RECORD_TYPE);
+        checksum.reset();
+        checksum.update(checked);
+        buffer.putInt(recordStart + RECORD_CHECKSUM, (int) checksum.getValue());
+        long lsn = currentOffset;
+        currentOffset = writtenLsn + buffer.position();
+        return lsn;
+    }
+
+    /**
+     * Configure group commit. The flusher forces the log as soon as a
+     * commit is waiting, unless maxWaitMillis is positive; then it waits up
+     * to that long for more commits to share the force, or until maxBatch
+     * commits are waiting. Commits that arrive during a force share the
+     * next one in any case.
+     *
+     * @param maxWaitMillis the longest a commit is delayed to join a batch
+     * @param maxBatch the number of waiting commits that ends the wait
+     */
+    public synchronized void setGroupCommit(long maxWaitMillis, int maxBatch) {
+        if (maxWaitMillis < 0 || maxBatch < 1)
+            throw new IllegalArgumentException("invalid group commit policy");
+        groupCommitWaitMillis = maxWaitMillis;
+        groupCommitMaxBatch = maxBatch;
+    }
+
+    /**
+     * Set the number of threads that redo replays the log on, by default
+     * one per processor.
+     */
+    public synchronized void setRedoThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("invalid number of redo threads");
+        redoThreads = threads;
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public synchronized long getForces() {
+        return forces;
+    }
+
+    /** @return the number of commits that were made durable by the flusher */
+    public synchronized long getGroupCommits() {
+        return groupCommits;
+    }
+
+    /** @return the LSN the next record will get */
+    public synchronized long getCurrentLsn() {
+        return currentOffset;
+    }
+
+    /**
+     * @return whether tid has a BEGIN record and has not committed or
+     *         aborted yet, so that its updates can be rolled back from the log
+     */
+    public synchronized boolean isLive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /**
+     * Wait until the log is durable up to and including the record with the
+     * given LSN, e.g. the LSN of a page about to be written. The force is
+     * shared with commits, like theirs; there is nothing to wait for if lsn
+     * is 0.
+     */
+    public void forceUpTo(long lsn) throws IOException {
+        if (lsn > 0) awaitDurable(lsn + 1); // the log is forced in whole records
+    }
+
+    /**
+     * Write the buffered records to the log file, after the batch the
+     * flusher may be writing. Afterwards raf holds the whole log and can be
+     * read and sought; the records are not forced.
+     */
+    synchronized void drain() throws IOException {
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (buffer == null || buffer.position() == 0) return;
+        buffer.flip();
+        write(buffer, writtenLsn, segments(writtenLsn, writtenLsn + buffer.limit()));
+        writtenLsn += buffer.limit();
+        if (buffer.capacity() == BUFFER_SIZE) {
+            buffer.clear();
+        } else {
+            buffer = takeBuffer();
+        }
+    }
+
+    /**
+     * Wait until the log is durable up to lsn, handing the force to the
+     * flusher thread so that concurrent commits share it.
+     */
+    private void awaitDurable(long lsn) throws IOException {
+        synchronized (this) {
+            if (durableLsn >= lsn) return;
+            requestedLsn = Math.max(requestedLsn, lsn);
+            waitingCommits++;
+            if (!flusherRunning) {
+                flusherRunning = true;
+                Thread flusher = new Thread(this::runFlusher, "log flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            notifyAll();
+            try {
+                while (durableLsn < lsn) {
+                    if (flushError != null)
+                        throw new IOException("log flush failed", flushError);
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                waitingCommits--;
+            }
+        }
+    }
+
+    /** Body of the flusher thread: write and force batches while commits are waiting. */
+    private void runFlusher() {
+        while (true) {
+            SortedMap<Long, FileChannel> channels;
+            ByteBuffer batch;
+            long batchLsn, batchEnd;
+            int batchCommits;
+            synchronized (this) {
+                try {
+                    long idleDeadline = System.currentTimeMillis() + FLUSHER_IDLE_MILLIS;
+                    while (requestedLsn <= durableLsn) {
+                        long idle = idleDeadline - System.currentTimeMillis();
+                        if (idle <= 0) {
+                            flusherRunning = false;
+                            return;
+                        }
+                        wait(idle);
+                    }
+                    // give more commits a chance to join, if so configured
+                    long batchDeadline = System.currentTimeMillis() + groupCommitWaitMillis;
+                    while (waitingCommits < groupCommitMaxBatch) {
+                        long wait = batchDeadline - System.currentTimeMillis();
+                        if (wait <= 0) break;
+                        wait(wait);
+                    }
+                    while (flushing) wait();
+                } catch (InterruptedException e) {
+                    flusherRunning = false;
+                    return;
+                }
+                try {
+                    // the segments of the batch, and of what drain wrote but did not force
+                    channels = segments(durableLsn, writtenLsn + buffer.position());
+                } catch (IOException e) {
+                    flushError = e;
+                    flusherRunning = false;
+                    notifyAll();
+                    return;
+                }
+                batch = buffer;
+                buffer = takeBuffer();
+                batchLsn = writtenLsn;
+                writtenLsn += batch.position();
+                batchEnd = writtenLsn;
+                batchCommits = waitingCommits;
+                flushing = true;
+            }
+
+            IOException error = null;
+            try {
+                batch.flip();
+                write(batch, batchLsn, channels);
+                for (FileChannel channel : channels.values())
+                    channel.force(true);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                flushing = false;
+                recycle(batch);
+                if (error == null) {
+                    durableLsn = Math.max(durableLsn, batchEnd);
+                    forces++;
+                    groupCommits += batchCommits;
+                } else {
+                    flushError = error;
+                    flusherRunning = false;
+                }
+                notifyAll();
+                if (error != null) return;
+            }
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
-    
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -149,19 +737,16 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
             synchronized(this) {
                 preAppend();
                 //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId(), 0);
+                endRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,130 +754,242 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the
+        transactions that commit at the same time (see group commit
+        above); the LogFile is not locked while waiting for it.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitEnd;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId(), 0);
+            endRecord();
+            commitEnd = currentOffset;
+            tidToFirstLogRecord.remove(tid.getId());
+        }
+        awaitDurable(commitEnd);
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Write an UPDATE or DELTA record to disk for the specified tid
+        and page (with provided         before and after images.)
+        The first record of a page after a checkpoint is an UPDATE
+        record with both images; later ones are DELTA records with the
+        ranges that differ, so before must be the image the page was
+        last logged with, see {@link Page#setBeforeImage}.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, for {@link Page#setLsn}
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        if (!imagedPages.add(after.getId()) && beforeData.length == afterData.length) {
+            /* delta record consists of
+
+               record header
+               page id (see writePageId)
+               count of ranges
+               offset, length, before bytes and after bytes of each range
+               record length
+            */
+            List<int[]> ranges = changedRanges(beforeData, afterData);
+            int size = PAGE_ID_SIZE + INT_SIZE;
+            for (int[] range : ranges)
+                size += 2 * INT_SIZE + 2 * range[1];
+            beginRecord(DELTA_RECORD, tid.getId(), size);
+            writePageId(buffer, after.getId());
+            buffer.putInt(ranges.size());
+            for (int[] range : ranges) {
+                buffer.putInt(range[0]).putInt(range[1]);
+                buffer.put(beforeData, range[0], range[1]).put(afterData, range[0], range[1]);
+            }
+        } else {
+            /* update record conists of
+
+               record header
+               before page data (see writePageData)
+               after page data
+               record length
+            */
+            beginRecord(UPDATE_RECORD, tid.getId(),
+                    pageDataSize(beforeData) + pageDataSize(afterData));
+            writePageData(buffer, before.getId(), beforeData);
+            writePageData(buffer, after.getId(), afterData);
+        }
+        long lsn = endRecord();
+        dirtyPages.putIfAbsent(after.getId(), lsn);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
+    }
+
+    /**
+     * @return the ranges, as offset and length, in which the two page
+     *         images differ, those at most DELTA_MERGE_GAP bytes apart
+     *         joined
+     */
+    static List<int[]> changedRanges(byte[] before, byte[] after) {
+        List<int[]> ranges = new ArrayList<>();
+        int start = -1, end = -1; // the range being extended
+        for (int i = 0; i < after.length; i++) {
+            if (before[i] == after[i]) continue;
+            if (start >= 0 && i - end > DELTA_MERGE_GAP) {
+                ranges.add(new int[] { start, end - start });
+                start = -1;
+            }
+            if (start < 0) start = i;
+            end = i + 1;
+        }
+        if (start >= 0) ranges.add(new int[] { start, end - start });
+        return ranges;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    private static int pageDataSize(byte[] pageData) {
+        return PAGE_ID_SIZE + INT_SIZE + pageData.length;
+    }
 
+    void writePageData(ByteBuffer out, PageId pid, byte[] pageData) {
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        // page id (see writePageId)
+        // page data length
+        // page data
+
+        writePageId(out, pid);
+        out.putInt(pageData.length);
+        out.put(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    private static void writePageId(ByteBuffer out, PageId pid) {
+        //page id is:
+        // page class tag
+        // table id
+        // page number
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        out.put(pageTag(pid));
+        out.putInt(pid.getTableId());
+        out.putInt(pid.pageNumber());
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+    private static byte pageTag(PageId pid) {
+        if (pid instanceof HeapPageId) return HEAP_PAGE;
+        if (pid instanceof BTreePageId) {
+            switch (((BTreePageId) pid).pgcateg()) {
+            case BTreePageId.ROOT_PTR: return BTREE_ROOT_PTR_PAGE;
+            case BTreePageId.INTERNAL: return BTREE_INTERNAL_PAGE;
+            case BTreePageId.LEAF: return BTREE_LEAF_PAGE;
+            case BTreePageId.HEADER: return BTREE_HEADER_PAGE;
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        }
+        throw new IllegalArgumentException("cannot log pages of " + pid.getClass().getName());
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    Page readPageData(ByteBuffer in) throws IOException {
+        PageId pid = readPageId(in);
+        return newPage(pid, readBytes(in));
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    private static PageId readPageId(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        int tableId = in.getInt();
+        int pageNo = in.getInt();
+
+        switch (tag) {
+        case HEAP_PAGE:
+            return new HeapPageId(tableId, pageNo);
+        case BTREE_ROOT_PTR_PAGE:
+            return new BTreePageId(tableId, pageNo, BTreePageId.ROOT_PTR);
+        case BTREE_INTERNAL_PAGE:
+            return new BTreePageId(tableId, pageNo, BTreePageId.INTERNAL);
+        case BTREE_LEAF_PAGE:
+            return new BTreePageId(tableId, pageNo, BTreePageId.LEAF);
+        case BTREE_HEADER_PAGE:
+            return new BTreePageId(tableId, pageNo, BTreePageId.HEADER);
+        default:
+            throw new IOException("unknown page tag " + tag);
+        }
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Read the length and bytes of the page data at the position of in. */
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] pageData = new byte[in.getInt()];
+        in.get(pageData);
+        return pageData;
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    private static Page newPage(PageId pid, byte[] pageData) throws IOException {
+        int tableId = pid.getTableId();
+        if (pid instanceof HeapPageId)
+            return new HeapPage((HeapPageId) pid, pageData);
+        BTreePageId bpid = (BTreePageId) pid;
+        switch (bpid.pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return new BTreeRootPtrPage(bpid, pageData);
+        case BTreePageId.INTERNAL:
+            return new BTreeInternalPage(bpid, pageData, keyField(tableId));
+        case BTreePageId.LEAF:
+            return new BTreeLeafPage(bpid, pageData, keyField(tableId));
+        default:
+            return new BTreeHeaderPage(bpid, pageData);
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /**
+     * Set the ranges of the DELTA record at the position of in, whose
+     * page id has been read, in pageData to their bytes after the update,
+     * or to those before it to undo it.
+     */
+    private static void applyDelta(ByteBuffer in, byte[] pageData, boolean undo) {
+        for (int n = in.getInt(); n > 0; n--) {
+            int offset = in.getInt(), length = in.getInt();
+            if (!undo) in.position(in.position() + length);
+            in.get(pageData, offset, length);
+            if (undo) in.position(in.position() + length);
         }
-        return newPage;
+    }
 
+    /**
+     * @return the data of the page in images, which is read from the
+     *         page's file the first time
+     */
+    private static byte[] image(Map<PageId, byte[]> images, PageId pid) {
+        return images.computeIfAbsent(pid, key ->
+                Database.getCatalog().getDatabaseFile(key.getTableId()).readPage(key).getPageData());
+    }
+
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
+    }
+
+    /**
+     * Called by the buffer pool once it has written the page, with the
+     * changes of all the records that hold it, so that redo need not start
+     * from them; the next checkpoint forces the page's file.
+     */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
+
+    /**
+     * Called by the buffer pool when it drops its version of the page, which
+     * may then have been written without a record, such as an empty B+ tree
+     * page.  The next record of the page holds its whole image.
+     */
+    public synchronized void pageDiscarded(PageId pid) {
+        dirtyPages.remove(pid);
+        imagedPages.remove(pid);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,149 +1004,130 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId(), 0);
+        tidToFirstLogRecord.put(tid.getId(), endRecord());
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the active transactions and the
+        dirty page table as they were when it was taken, and transactions
+        keep logging and committing while it runs.  The pages that have
+        been dirty since before the last checkpoint are written, so that
+        the log can be truncated behind that one. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (checkpointLock) {
+            List<PageId> oldPages = new ArrayList<>();
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + currentOffset);
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                for (Map.Entry<PageId, Long> entry : dirtyPages.entrySet()) {
+                    if (entry.getValue() < lastCheckpointLsn)
+                        oldPages.add(entry.getKey());
                 }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
             }
-        }
-
-        logTruncate();
-    }
-
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
+            Database.getBufferPool().flushPages(oldPages);
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+            long takenLsn, checkpointLsn, checkpointEnd;
+            Map<Long, Long> active;
+            Map<PageId, Long> dirty;
+            synchronized (this) {
+                takenLsn = currentOffset;
+                imagedPages.clear();
+                active = new HashMap<>(tidToFirstLogRecord);
+                dirty = new HashMap<>(dirtyPages);
             }
+            // the pages that left the dirty page table before now are made durable
+            for (Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator(); tableIds.hasNext(); )
+                Database.getCatalog().getDatabaseFile(tableIds.next()).force();
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+            synchronized (this) {
+                //write list of outstanding transactions and dirty pages
+                beginRecord(CHECKPOINT_RECORD, -1, //no tid , but leave space for convenience
+                        LONG_SIZE + INT_SIZE + active.size() * 2 * LONG_SIZE
+                        + INT_SIZE + dirty.size() * (PAGE_ID_SIZE + LONG_SIZE));
+                buffer.putLong(takenLsn);
+                buffer.putInt(active.size());
+                for (Map.Entry<Long, Long> entry : active.entrySet()) {
+                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + entry.getKey());
+                    buffer.putLong(entry.getKey());
+                    buffer.putLong(entry.getValue());
                 }
+                buffer.putInt(dirty.size());
+                for (Map.Entry<PageId, Long> entry : dirty.entrySet()) {
+                    writePageId(buffer, entry.getKey());
+                    buffer.putLong(entry.getValue());
+                }
+                checkpointLsn = endRecord();
+                checkpointEnd = currentOffset;
             }
-        }
+            awaitDurable(checkpointEnd);
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+            //once the CP is durable, make sure the CP location at the
+            // beginning of the log file is updated
+            synchronized (this) {
+                writeHeader(checkpointLsn);
+                lastCheckpointLsn = takenLsn;
+                //Debug.log("CP OFFSET = " + currentOffset);
+            }
+        }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+        logTruncate();
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
+    /** The contents of a CHECKPOINT record. */
+    private static class Checkpoint {
+        final long lsn; // where the checkpoint was taken
+        final Map<Long, Long> active = new HashMap<>();
+        final Map<PageId, Long> dirtyPages = new HashMap<>();
+
+        /** Read the CHECKPOINT record at the position of in. */
+        Checkpoint(ByteBuffer in) throws IOException {
+            lsn = in.getLong();
+            for (int n = in.getInt(); n > 0; n--)
+                active.put(in.getLong(), in.getLong());
+            for (int n = in.getInt(); n > 0; n--)
+                dirtyPages.put(readPageId(in), in.getLong());
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        /** @return the LSN of the first record recovery may need */
+        long firstNeeded() {
+            long first = lsn;
+            for (long firstLsn : active.values())
+                first = Math.min(first, firstLsn);
+            for (long recLsn : dirtyPages.values())
+                first = Math.min(first, recLsn);
+            return first;
+        }
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** @return the checkpoint the header points to, or null if there is none */
+    private Checkpoint readCheckpoint() throws IOException {
+        long cpLoc = readHeader().getLong(0);
+        if (cpLoc == NO_CHECKPOINT_ID) return null;
+        ByteBuffer checkpoint = readRecord(cpLoc);
+        if (checkpoint == null || checkpoint.get(RECORD_TYPE) != CHECKPOINT_RECORD)
+            throw new IOException("Checkpoint pointer does not point to checkpoint record");
+        return new Checkpoint(checkpoint);
+    }
 
-        currentOffset = raf.getFilePointer();
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  The segments before the one that holds the first
+        record recovery may need are deleted; the records that are kept
+        do not move, since their LSNs do not change. */
+    public synchronized void logTruncate() throws IOException {
+        preAppend();
+        drain();
+        Checkpoint checkpoint = readCheckpoint();
+        if (checkpoint == null) return;
+        long minLogRecord = checkpoint.firstNeeded();
+        if (segmentOf(minLogRecord) <= segmentOf(firstLsn)) return;
+
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
+        firstLsn = minLogRecord;
+        writeHeader(readHeader().getLong(0));
+        deleteSegments(0, segmentOf(firstLsn));
         //print();
     }
 
@@ -459,15 +1137,38 @@ public class LogFile {
         transactions that have already committed (though this may not
         be enforced by this method.)
 
+        The pages that are in the log were stolen, so their before
+        images, rebuilt from the versions on disk by undoing the
+        transaction's records in reverse, are written to disk and
+        logged as COMPENSATION records, and their versions in the buffer
+        pool are discarded.  The pages the transaction dirtied that
+        never left the buffer pool are left to
+        BufferPool.transactionComplete.
+
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            Map<PageId, byte[]> images = new HashMap<>();
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+                drain();
+                List<ByteBuffer> updates = new ArrayList<>();
+                forEachRecord(firstRecord, (lsn, record) -> {
+                    if (isUpdate(record) && record.getLong(RECORD_TID) == tid.getId())
+                        updates.add(record);
+                });
+                Collections.reverse(updates);
+                for (ByteBuffer update : updates)
+                    undo(update, images);
+                for (Map.Entry<PageId, byte[]> image : images.entrySet())
+                    logCompensation(tid.getId(), image.getKey(), image.getValue());
             }
+            installPages(images);
         }
     }
 
@@ -475,10 +1176,17 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // write the dirty pages, so that recovery has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+                for (FileChannel channel : segments.values())
+                    channel.close();
+                segments.clear();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +1196,375 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        Analysis finds the transactions that were live at the crash
+        and the pages that may not be on disk, from the active
+        transactions and dirty pages of the last checkpoint and the
+        records after it.  Redo repeats history from the first record
+        of a dirty page, skipping the records of each page from before
+        it was last written, and starting each page from the version on
+        disk or the first whole image logged for it; the pages are
+        replayed on several threads, see {@link #setRedoThreads}.  Undo
+        then undoes the records of the live transactions in reverse.
+        The pages undone are logged as COMPENSATION records and the live
+        transactions as aborted, so that a crash during or after
+        recovery redoes the same.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            Map<PageId, byte[]> images = new HashMap<>();
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                openExisting();
+                tidToFirstLogRecord.clear();
+                dirtyPages.clear();
+                imagedPages.clear();
+
+                // analysis
+                long analysisLsn = firstLsn;
+                Map<Long, Long> live = new HashMap<>();
+                Map<PageId, Long> dirty = new HashMap<>();
+                Set<PageId> toRead = new HashSet<>(); // pages redo may start from the version on disk of
+                Checkpoint checkpoint = readCheckpoint();
+                if (checkpoint != null) {
+                    analysisLsn = checkpoint.lsn;
+                    live.putAll(checkpoint.active);
+                    dirty.putAll(checkpoint.dirtyPages);
+                    toRead.addAll(checkpoint.dirtyPages.keySet());
+                }
+                forEachRecord(analysisLsn, (lsn, record) -> {
+                    long tid = record.getLong(RECORD_TID);
+                    switch (record.get(RECORD_TYPE)) {
+                    case BEGIN_RECORD: live.put(tid, lsn); break;
+                    case COMMIT_RECORD: case ABORT_RECORD: live.remove(tid); break;
+                    case UPDATE_RECORD: case DELTA_RECORD: case COMPENSATION_RECORD:
+                        PageId pid = readPageId(record);
+                        if (dirty.putIfAbsent(pid, lsn) == null && record.get(RECORD_TYPE) == DELTA_RECORD)
+                            toRead.add(pid);
+                        break;
+                    }
+                });
+
+                // redo
+                long redoLsn = dirty.isEmpty() ? writtenLsn : Collections.min(dirty.values());
+                redo(redoLsn, dirty, toRead, images);
+
+                // undo
+                if (!live.isEmpty()) {
+                    List<ByteBuffer> updates = new ArrayList<>();
+                    forEachRecord(Collections.min(live.values()), (lsn, record) -> {
+                        if (isUpdate(record) && live.containsKey(record.getLong(RECORD_TID)))
+                            updates.add(record);
+                    });
+                    Collections.reverse(updates);
+                    Map<PageId, Long> undoneBy = new HashMap<>();
+                    for (ByteBuffer update : updates)
+                        undoneBy.put(undo(update, images), update.getLong(RECORD_TID));
+                    for (Map.Entry<PageId, Long> undone : undoneBy.entrySet())
+                        logCompensation(undone.getValue(), undone.getKey(), images.get(undone.getKey()));
+                    for (long tid : live.keySet()) {
+                        beginRecord(ABORT_RECORD, tid, 0);
+                        endRecord();
+                    }
+                    force();
+                }
+            }
+            installPages(images);
+        }
+    }
+
+    /**
+     * Redo the records from redoLsn on of the pages in dirty, from their
+     * recLsn on, in images. The pages are split among the redo threads by
+     * id, so that the records of different pages are replayed at the same
+     * time and those of a page in order.  This thread reads the log ahead of
+     * them and hands each a batch of records at a time, while they start by
+     * reading the pages in toRead, which redo may start from the version on
+     * disk of, from their files in bulk.
+     */
+    private void redo(long redoLsn, Map<PageId, Long> dirty, Set<PageId> toRead, Map<PageId, byte[]> images)
+            throws IOException {
+        int threads = redoThreads;
+        List<RedoWorker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            workers.add(new RedoWorker());
+        for (PageId pid : toRead)
+            workers.get(partition(pid, threads)).toRead.add(pid);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "redo");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Map<PageId, byte[]>>> results = new ArrayList<>();
+            for (RedoWorker worker : workers)
+                results.add(executor.submit(worker));
+            try {
+                forEachRecord(redoLsn, (lsn, record) -> {
+                    byte type = record.get(RECORD_TYPE);
+                    if (type != UPDATE_RECORD && type != DELTA_RECORD && type != COMPENSATION_RECORD) return;
+                    PageId pid = readPageId(record);
+                    Long recLsn = dirty.get(pid);
+                    if (recLsn == null || lsn < recLsn) return; // the page on disk has it
+                    workers.get(partition(pid, threads)).add(record);
+                });
+            } finally {
+                for (RedoWorker worker : workers)
+                    worker.finish();
             }
-         }
+            for (Future<Map<PageId, byte[]>> result : results)
+                images.putAll(result.get());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted during redo");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** @return the redo thread of the page, spreading the pages of a table as well as the tables */
+    private static int partition(PageId pid, int threads) {
+        return (int) (((pid.hashCode() * 0x9E3779B9L) & 0xffffffffL) * threads >>> 32);
+    }
+
+    /**
+     * Replays the records of the pages of one partition, see {@link #redo},
+     * and returns their images.
+     */
+    private static class RedoWorker implements Callable<Map<PageId, byte[]>> {
+        final List<PageId> toRead = new ArrayList<>();
+        // an empty batch ends the records
+        private final BlockingQueue<List<ByteBuffer>> batches = new ArrayBlockingQueue<>(REDO_QUEUE_BATCHES);
+        private List<ByteBuffer> batch = new ArrayList<>(); // being filled by the reader
+
+        /** Queue a record for this worker. */
+        void add(ByteBuffer record) throws IOException {
+            batch.add(record);
+            if (batch.size() == REDO_BATCH) {
+                put(batch);
+                batch = new ArrayList<>();
+            }
+        }
+
+        /** Queue the rest of the records and the end of them. */
+        void finish() throws IOException {
+            if (!batch.isEmpty()) put(batch);
+            batch = new ArrayList<>();
+            put(batch);
+        }
+
+        private void put(List<ByteBuffer> records) throws IOException {
+            try {
+                batches.put(records);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during redo");
+            }
+        }
+
+        public Map<PageId, byte[]> call() throws Exception {
+            Map<PageId, byte[]> images = new HashMap<>();
+            Exception failure = null;
+            try {
+                readPages(images);
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            for (List<ByteBuffer> records; !(records = batches.take()).isEmpty(); ) {
+                if (failure != null) continue; // keep taking them, so that the reader does not block
+                try {
+                    for (ByteBuffer record : records)
+                        redo(record, images);
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) throw failure;
+            return images;
+        }
+
+        /** Read the pages in toRead from their files, a sorted batch per table. */
+        private void readPages(Map<PageId, byte[]> images) {
+            Map<Integer, List<PageId>> tableId2pids = new HashMap<>();
+            for (PageId pid : toRead)
+                tableId2pids.computeIfAbsent(pid.getTableId(), key -> new ArrayList<>()).add(pid);
+            for (Map.Entry<Integer, List<PageId>> entry : tableId2pids.entrySet()) {
+                List<PageId> pids = entry.getValue();
+                pids.sort(Comparator.comparingInt(PageId::pageNumber));
+                for (Page page : Database.getCatalog().getDatabaseFile(entry.getKey()).readPages(pids))
+                    images.put(page.getId(), page.getPageData());
+            }
+        }
+    }
+
+    /**
+     * Redo the UPDATE, DELTA or COMPENSATION record in the image of its
+     * page, read from disk if images has none yet.
+     */
+    private static void redo(ByteBuffer record, Map<PageId, byte[]> images) throws IOException {
+        record.position(RECORD_PAYLOAD);
+        PageId pid = readPageId(record);
+        switch (record.get(RECORD_TYPE)) {
+        case UPDATE_RECORD:
+            int beforeLength = record.getInt(); // skip to the after image
+            record.position(record.position() + beforeLength);
+            readPageId(record);
+            // fall through
+        case COMPENSATION_RECORD:
+            images.put(pid, readBytes(record));
+            break;
+        case DELTA_RECORD:
+            applyDelta(record, image(images, pid), false);
+            break;
+        }
+    }
+
+    /** What to do with each record, see {@link #forEachRecord}. */
+    private interface RecordVisitor {
+        void visit(long lsn, ByteBuffer record) throws IOException;
+    }
+
+    /** Call visitor with each record from the given LSN to the end of the log file. */
+    private void forEachRecord(long from, RecordVisitor visitor) throws IOException {
+        RecordReader reader = new RecordReader();
+        for (long lsn = from; lsn < writtenLsn; ) {
+            ByteBuffer record = reader.read(lsn);
+            if (record == null) throw new IOException("no valid log record at LSN " + lsn);
+            visitor.visit(lsn, record);
+            lsn += record.capacity();
+        }
+    }
+
+    /** @return whether record is an UPDATE or DELTA record, which undo reverses */
+    private static boolean isUpdate(ByteBuffer record) {
+        byte type = record.get(RECORD_TYPE);
+        return type == UPDATE_RECORD || type == DELTA_RECORD;
+    }
+
+    /**
+     * Undo the UPDATE or DELTA record in the image of its page, read from
+     * disk if images has none yet.
+     *
+     * @return the id of the page
+     */
+    private static PageId undo(ByteBuffer record, Map<PageId, byte[]> images) throws IOException {
+        record.position(RECORD_PAYLOAD);
+        PageId pid = readPageId(record);
+        if (record.get(RECORD_TYPE) == UPDATE_RECORD)
+            images.put(pid, readBytes(record));
+        else
+            applyDelta(record, image(images, pid), true);
+        return pid;
+    }
+
+    /** Append a COMPENSATION record with the page an abort restores. */
+    private void logCompensation(long tid, PageId pid, byte[] pageData) throws IOException {
+        beginRecord(COMPENSATION_RECORD, tid, pageDataSize(pageData));
+        writePageData(buffer, pid, pageData);
+        dirtyPages.putIfAbsent(pid, endRecord());
+    }
+
+    /**
+     * Write the given page images to their files, one sorted batch per
+     * file, and drop the versions the buffer pool has of them. The pool is
+     * not to read them between the two, as the pages are locked or
+     * recovery has not finished, but the prefetcher may, so the pages are
+     * written first.
+     */
+    private static void installPages(Map<PageId, byte[]> images) throws IOException {
+        Map<Integer, List<Page>> tableId2pages = new TreeMap<>();
+        List<Page> pages = new ArrayList<>();
+        for (Map.Entry<PageId, byte[]> image : images.entrySet()) {
+            Page page = newPage(image.getKey(), image.getValue());
+            pages.add(page);
+            tableId2pages.computeIfAbsent(page.getId().getTableId(), key -> new ArrayList<>()).add(page);
+        }
+        for (Map.Entry<Integer, List<Page>> entry : tableId2pages.entrySet()) {
+            List<Page> tablePages = entry.getValue();
+            tablePages.sort(Comparator.comparingInt(page -> page.getId().pageNumber()));
+            Database.getCatalog().getDatabaseFile(entry.getKey()).writePages(tablePages);
+        }
+        for (Page page : pages)
+            Database.getBufferPool().discardPage(page.getId());
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            drain();
+            if (buffer == null) { // the log as it was found, before recovery
+                if (raf.length() < HEADER_SIZE) return;
+                firstLsn = readHeader().getLong(LONG_SIZE);
+                writtenLsn = Long.MAX_VALUE; // up to the first record that is not whole
+            }
+            System.out.println("checkpoint at " + readHeader().getLong(0));
+            for (long lsn = firstLsn; lsn < writtenLsn; ) {
+                ByteBuffer record = readRecord(lsn);
+                if (record == null) {
+                    System.out.println(lsn + ": no valid record, end of log");
+                    break;
+                }
+                StringBuilder line = new StringBuilder();
+                line.append(lsn).append(": tid ").append(record.getLong(RECORD_TID)).append(' ');
+                switch (record.get(RECORD_TYPE)) {
+                case ABORT_RECORD: line.append("ABORT"); break;
+                case COMMIT_RECORD: line.append("COMMIT"); break;
+                case BEGIN_RECORD: line.append("BEGIN"); break;
+                case UPDATE_RECORD:
+                    line.append("UPDATE before ").append(pageDataToString(record))
+                        .append(" after ").append(pageDataToString(record));
+                    break;
+                case COMPENSATION_RECORD:
+                    line.append("COMPENSATION ").append(pageDataToString(record));
+                    break;
+                case DELTA_RECORD:
+                    PageId pid = readPageId(record);
+                    line.append("DELTA page ").append(pid.pageNumber()).append(" of table ").append(pid.getTableId());
+                    for (int n = record.getInt(); n > 0; n--) {
+                        int offset = record.getInt(), length = record.getInt();
+                        line.append(" [").append(offset).append(", ").append(offset + length).append(')');
+                        record.position(record.position() + 2 * length);
+                    }
+                    break;
+                case CHECKPOINT_RECORD:
+                    line.append("CHECKPOINT taken at ").append(record.getLong()).append(" active");
+                    for (int n = record.getInt(); n > 0; n--)
+                        line.append(" tid ").append(record.getLong()).append(" from ").append(record.getLong());
+                    line.append(" dirty");
+                    for (int n = record.getInt(); n > 0; n--) {
+                        PageId dirty = readPageId(record);
+                        line.append(" page ").append(dirty.pageNumber()).append(" of table ").append(dirty.getTableId())
+                            .append(" from ").append(record.getLong());
+                    }
+                    break;
+                default: line.append("unknown type ").append(record.get(RECORD_TYPE));
+                }
+                System.out.println(line);
+                lsn += record.capacity();
+            }
+        }
+    }
+
+    /** Describe the page data at the position of in, and skip it. */
+    private static String pageDataToString(ByteBuffer in) {
+        byte tag = in.get();
+        int tableId = in.getInt();
+        int pageNo = in.getInt();
+        int length = in.getInt();
+        in.position(in.position() + length);
+        return "page " + pageNo + " of table " + tableId + " (tag " + tag + ", " + length + " bytes)";
     }
 
+    /** Write the buffered records to the log file and force it to disk. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        drain();
+        for (FileChannel channel : segments(durableLsn, writtenLsn).values())
+            channel.force(true);
+        forces++;
+        durableLsn = writtenLsn;
+        notifyAll();
     }
 
 }
@@ -33,8 +33,8 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<Boolean> oByAsc = new Vector<Boolean>();
+    private Vector<String> oByFields = new Vector<String>();
     private String query;
 //    private Query owner;
 
@@ -203,17 +203,16 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  The tuples are
+        ordered by the fields in the order they were added, the first being the most significant.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.addElement(field);
+        oByAsc.addElement(asc);
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -301,7 +300,14 @@ public class LogicalPlan {
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
-            statsMap.put(baseTableName, baseTableStats.get(baseTableName));
+            TableStats baseStats = baseTableStats.get(baseTableName);
+            statsMap.put(baseTableName, baseStats);
+            // a full scan reads every page, so lock the table once rather
+            // than the pages if there are enough of them to be escalated; a
+            // snapshot reads without locks and must not block the writers
+            if (baseStats != null && baseStats.numPages() >= LockManager.PAGE_LOCKS_BEFORE_ESCALATION
+                    && !Database.getBufferPool().getVersionStore().isSnapshot(t))
+                ss.setTableLock(Permissions.READ_ONLY);
             filterSelectivities.put(table.alias, 1.0);
 
         }
@@ -474,8 +480,16 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                asc[i] = oByAsc.get(i);
+            }
+            // the scans and joins may have left the tuples in order already
+            if (oByIndexes.length > 1 || !asc[0] || JoinOptimizer.sortedField(node) != oByIndexes[0])
+                node = new OrderBy(oByIndexes, asc, node);
         }
 
         return new Project(outFields, outTypes, node);
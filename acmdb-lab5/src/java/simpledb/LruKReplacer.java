@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K page replacement. Pages referenced fewer than K times have an
+ * infinite backward K-distance and are evicted first, oldest first; pages
+ * referenced at least K times are evicted in least recently used order.
+ * <p>
+ * Both queues are linked hash sets, so a hit is O(1). A sequential scan
+ * touches each page once, so its pages never enter the hot queue and cannot
+ * push out frequently used pages such as B+ tree internal nodes.
+ *
+ * @see ReplacementPolicy#LRU_K
+ */
+public class LruKReplacer implements PageReplacer {
+
+	public static final int DEFAULT_K = 2;
+
+	private final int k;
+	private final HashMap<PageId, Integer> pid2refCount;
+	private final LinkedHashSet<PageId> coldQueue; // referenced < k times, by first reference
+	private final LinkedHashSet<PageId> hotQueue; // referenced >= k times, by last reference
+
+	public LruKReplacer(int k) {
+		if (k < 1) throw new IllegalArgumentException("k must be positive");
+		this.k = k;
+		pid2refCount = new HashMap<>();
+		coldQueue = new LinkedHashSet<>();
+		hotQueue = new LinkedHashSet<>();
+	}
+
+	@Override
+	public void admit(PageId pid) {
+		if (pid2refCount.containsKey(pid)) {
+			access(pid);
+			return;
+		}
+		pid2refCount.put(pid, 1);
+		if (k == 1) hotQueue.add(pid);
+		else coldQueue.add(pid);
+	}
+
+	@Override
+	public void access(PageId pid) {
+		Integer refCount = pid2refCount.get(pid);
+		if (refCount == null) return;
+		if (refCount >= k) {
+			hotQueue.remove(pid);
+			hotQueue.add(pid);
+			return;
+		}
+		pid2refCount.put(pid, ++refCount);
+		if (refCount == k) {
+			coldQueue.remove(pid);
+			hotQueue.add(pid);
+		}
+	}
+
+	@Override
+	public void remove(PageId pid) {
+		if (pid2refCount.remove(pid) == null) return;
+		if (!coldQueue.remove(pid)) hotQueue.remove(pid);
+	}
+
+	@Override
+	public PageId victim(Predicate<PageId> evictable) {
+		for (PageId pid : coldQueue)
+			if (evictable.test(pid)) return pid;
+		for (PageId pid : hotQueue)
+			if (evictable.test(pid)) return pid;
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return pid2refCount.size();
+	}
+}
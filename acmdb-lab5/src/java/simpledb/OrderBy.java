@@ -3,22 +3,49 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, as an
+ * external merge sort within a memory budget.
+ * <p>
+ * Every tuple of the child is given a normalized key, the bytes of its sort
+ * fields encoded so that comparing keys byte by byte orders the tuples, in
+ * ascending or descending order of each field in turn. When it is opened the
+ * operator reads the child into runs as large as the budget, sorts each run
+ * by key, and writes it out to a SpillFile. The runs are merged with a loser
+ * tree, in passes of as many runs as there are pages in the budget while
+ * more are left, and the last merge is streamed out. If the child fits in
+ * one run nothing is written. Tuples with equal keys keep the order the
+ * child returned them in.
+ * <p>
+ * With a limit, only that many tuples are returned; if they fit in the
+ * budget they are picked out with a heap as the child is read, rather than
+ * sorting every tuple.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+	/** Pages of tuples, as laid out on a HeapPage, a sort may keep in memory by default. */
+	public static final int DEFAULT_MEMORY_PAGES = 512;
+
+	/** No limit on the tuples returned. */
+	public static final int NO_LIMIT = -1;
+
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int limit;
+    private final int memoryPages;
+
+	private transient ArrayList<Entry> sorted; // the tuples, when they fit in memory
+	private transient int next; // the next of them to return
+	private transient List<SpillFile> runs; // the runs of the last merge, when they do not
+	private transient LoserTree merge;
+	private transient int returned;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -27,28 +54,70 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
-        this.child = child;
-        td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+		this(new int[] {orderbyField}, new boolean[] {asc}, child);
     }
-    
+
+	/**
+	 * Creates a new OrderBy node over the tuples from the iterator, sorted on
+	 * several fields: by the first, then the tuples that are equal on it by
+	 * the second, and so on.
+	 *
+	 * @param orderbyFields
+	 *            the fields to which the sort is applied, most significant
+	 *            first.
+	 * @param asc
+	 *            whether the sort order of each field is ascending.
+	 * @param child
+	 *            the tuples to sort.
+	 */
+	public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+		this(orderbyFields, asc, child, NO_LIMIT, DEFAULT_MEMORY_PAGES);
+	}
+
+	/**
+	 * @param limit the number of tuples to return, the first in the order,
+	 *        or {@link #NO_LIMIT}
+	 * @param memoryPages the pages of tuples of the child, as laid out on a
+	 *        HeapPage, the sort may keep in memory
+	 */
+	public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child, int limit, int memoryPages) {
+		if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+			throw new IllegalArgumentException("a sort needs one order for each of its fields");
+		if (memoryPages < 2) throw new IllegalArgumentException("memoryPages must be at least 2");
+		if (limit < 0 && limit != NO_LIMIT) throw new IllegalArgumentException("limit must not be negative");
+		this.child = child;
+		this.td = child.getTupleDesc();
+		this.orderByFields = orderbyFields.clone();
+		this.asc = asc.clone();
+		this.limit = limit;
+		this.memoryPages = memoryPages;
+	}
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(orderByFields[0]);
     }
-    
+
+	/** @return the fields the sort is applied to, most significant first */
+	public int[] getOrderByFields() {
+		return orderByFields.clone();
+	}
+
+	/** @return whether the sort order of each of the fields is ascending */
+	public boolean[] getAscending() {
+		return asc.clone();
+	}
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,36 +125,167 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+		int memoryTuples = memoryPages * HeapPage.getNumTuples(td);
+		if (limit != NO_LIMIT && limit <= memoryTuples) topN();
+		else sort(memoryTuples);
+		returned = 0;
         super.open();
     }
 
+	/** Pick the first limit tuples of the child out with a heap of the worst of them. */
+	private void topN() throws DbException, TransactionAbortedException {
+		PriorityQueue<Entry> worst = new PriorityQueue<>(Math.max(limit, 1), Collections.reverseOrder());
+		long seq = 0;
+		while (child.hasNext()) {
+			Tuple t = child.next();
+			if (limit == 0) continue;
+			Entry e = new Entry(key(t), seq++, t);
+			if (worst.size() < limit) worst.add(e);
+			else if (e.compareTo(worst.peek()) < 0) {
+				worst.poll();
+				worst.add(e);
+			}
+		}
+		sorted = new ArrayList<>(worst);
+		Collections.sort(sorted);
+		next = 0;
+	}
+
+	/** Read the child into sorted runs, and merge them down to few enough for one last merge. */
+	private void sort(int memoryTuples) throws DbException, TransactionAbortedException {
+		ArrayList<Entry> run = new ArrayList<>();
+		runs = new ArrayList<>();
+		long seq = 0;
+		while (child.hasNext()) {
+			Tuple t = child.next();
+			run.add(new Entry(key(t), seq++, t));
+			if (run.size() == memoryTuples) {
+				runs.add(spill(run));
+				run.clear();
+			}
+		}
+		if (runs.isEmpty()) {
+			Collections.sort(run);
+			sorted = run;
+			next = 0;
+			return;
+		}
+		if (!run.isEmpty()) runs.add(spill(run));
+		run = null;
+
+		// a merge reads a page of each of its runs at a time, and writes one
+		// a pass merges neighbouring runs, to keep equal keys in order
+		int fanIn = Math.max(2, memoryPages - 1);
+		while (runs.size() > fanIn) {
+			List<SpillFile> merged = new ArrayList<>();
+			for (int i = 0; i < runs.size(); i += fanIn) {
+				List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+				if (group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+				SpillFile file = new SpillFile(td);
+				LoserTree tree = new LoserTree(group);
+				for (Entry e = tree.poll(); e != null; e = tree.poll()) file.add(e.tuple);
+				tree.close();
+				for (SpillFile f : group) f.delete();
+				merged.add(file);
+			}
+			runs = merged;
+		}
+		merge = new LoserTree(runs);
+	}
+
+	/** Sort the run and write it out. */
+	private SpillFile spill(ArrayList<Entry> run) throws DbException {
+		Collections.sort(run);
+		SpillFile file = new SpillFile(td);
+		for (Entry e : run) file.add(e.tuple);
+		return file;
+	}
+
+	/**
+	 * @return the normalized key of the tuple: for each sort field, an int
+	 *         as four big-endian bytes with the sign bit flipped, or a string
+	 *         as two big-endian bytes for every char, a NUL char as 0,0,1,
+	 *         followed by 0,0,0; with every byte of the field inverted if it
+	 *         is sorted in descending order
+	 */
+	private byte[] key(Tuple t) {
+		int length = 0;
+		for (int field : orderByFields) {
+			Field f = t.getField(field);
+			if (f instanceof IntField) length += 4;
+			else {
+				String s = ((StringField) f).getValue();
+				length += 2 * s.length() + 3;
+				for (int i = 0; i < s.length(); i++)
+					if (s.charAt(i) == 0) length++;
+			}
+		}
+		byte[] key = new byte[length];
+		int at = 0;
+		for (int k = 0; k < orderByFields.length; k++) {
+			int start = at;
+			Field f = t.getField(orderByFields[k]);
+			if (f instanceof IntField) {
+				int v = ((IntField) f).getValue() ^ Integer.MIN_VALUE;
+				key[at++] = (byte) (v >>> 24);
+				key[at++] = (byte) (v >>> 16);
+				key[at++] = (byte) (v >>> 8);
+				key[at++] = (byte) v;
+			} else {
+				String s = ((StringField) f).getValue();
+				for (int i = 0; i < s.length(); i++) {
+					char c = s.charAt(i);
+					key[at++] = (byte) (c >>> 8);
+					key[at++] = (byte) c;
+					if (c == 0) key[at++] = 1;
+				}
+				at += 3;
+			}
+			if (!asc[k])
+				for (int i = start; i < at; i++) key[i] = (byte) ~key[i];
+		}
+		return key;
+	}
+
     public void close() {
         super.close();
-        it = null;
+		child.close();
+		if (merge != null) merge.close();
+		if (runs != null)
+			for (SpillFile f : runs) f.delete();
+		merge = null;
+		runs = null;
+		sorted = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+		if (sorted != null) next = 0;
+		else {
+			merge.close();
+			merge = new LoserTree(runs);
+		}
+		returned = 0;
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+		if (limit != NO_LIMIT && returned == limit) return null;
+		Entry e;
+		if (sorted != null) e = next < sorted.size() ? sorted.get(next++) : null;
+		else e = merge != null ? merge.poll() : null;
+		if (e == null) return null;
+		returned++;
+		return e.tuple;
     }
 
     @Override
@@ -98,26 +298,110 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
+	/** A tuple with its key, and its place in the child to keep equal keys in order. */
+	private static class Entry implements Comparable<Entry> {
+		final byte[] key;
+		final long seq;
+		final Tuple tuple;
 
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+		Entry(byte[] key, long seq, Tuple tuple) {
+			this.key = key;
+			this.seq = seq;
+			this.tuple = tuple;
+		}
 
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+		public int compareTo(Entry o) {
+			int c = compareKeys(key, o.key);
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
+
+	/** @return the order of two normalized keys, compared as unsigned bytes */
+	static int compareKeys(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			if (a[i] != b[i]) return (a[i] & 0xff) - (b[i] & 0xff);
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * Merges sorted runs: the leaves are the heads of the runs, and every
+	 * inner node holds the run that lost the match there, so that replacing
+	 * the winner takes one match per level. Runs that are equal on a key are
+	 * taken in the order they were written.
+	 */
+	private class LoserTree {
+		private final DbIterator[] sources;
+		private final byte[][] heads; // the key of the head of each run, null once it is exhausted
+		private final Tuple[] tuples;
+		private final int[] tree; // tree[0] is the winner, tree[1..k-1] the losers of the matches
+
+		LoserTree(List<SpillFile> runs) throws DbException, TransactionAbortedException {
+			int k = runs.size();
+			sources = new DbIterator[k];
+			heads = new byte[k][];
+			tuples = new Tuple[k];
+			tree = new int[Math.max(k, 1)];
+			for (int i = 0; i < k; i++) {
+				sources[i] = runs.get(i).iterator();
+				sources[i].open();
+				advance(i);
+			}
+			tree[0] = build(1);
+		}
+
+		/** @return the winner of the subtree of the node, leaving the losers in it */
+		private int build(int node) {
+			int k = sources.length;
+			if (node >= k) return node - k;
+			int a = build(2 * node), b = build(2 * node + 1);
+			if (beats(a, b)) {
+				tree[node] = b;
+				return a;
+			}
+			tree[node] = a;
+			return b;
+		}
+
+		private boolean beats(int a, int b) {
+			if (heads[a] == null) return false;
+			if (heads[b] == null) return true;
+			int c = compareKeys(heads[a], heads[b]);
+			return c != 0 ? c < 0 : a < b;
+		}
+
+		private void advance(int run) throws DbException, TransactionAbortedException {
+			if (sources[run].hasNext()) {
+				tuples[run] = sources[run].next();
+				heads[run] = key(tuples[run]);
+			} else {
+				tuples[run] = null;
+				heads[run] = null;
+			}
+		}
+
+		/** @return the least tuple at the heads of the runs, with its key, or null if all are exhausted */
+		Entry poll() throws DbException, TransactionAbortedException {
+			if (sources.length == 0) return null;
+			int winner = tree[0];
+			if (heads[winner] == null) return null;
+			Entry e = new Entry(heads[winner], 0, tuples[winner]);
+			advance(winner);
+			for (int node = (winner + sources.length) / 2; node > 0; node /= 2) {
+				if (beats(tree[node], winner)) {
+					int loser = winner;
+					winner = tree[node];
+					tree[node] = loser;
+				}
+			}
+			tree[0] = winner;
+			return e;
+		}
+
+		void close() {
+			for (DbIterator source : sources) source.close();
+		}
+	}
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
 }
@@ -56,4 +56,14 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record that holds this page, or 0 if
+     * none does.  The log must be durable up to that record before the page
+     * is written to disk.
+     */
+    public long getLsn();
+
+    /** Set the LSN of the last log record that holds this page. */
+    public void setLsn(long lsn);
 }
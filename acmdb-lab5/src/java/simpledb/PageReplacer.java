@@ -0,0 +1,53 @@
+package simpledb;
+
+import java.util.function.Predicate;
+
+/**
+ * PageReplacer keeps the replacement bookkeeping of the pages resident in
+ * a BufferPool and decides which of them should be evicted next.
+ * <p>
+ * Implementations must do O(1) work in {@link #access}, since it is called
+ * on every buffer pool hit. They are not thread-safe; the BufferPool guards
+ * each replacer with the same lock as the frames it describes.
+ *
+ * @see BufferPool
+ * @see ReplacementPolicy
+ */
+public interface PageReplacer {
+
+	/** Called when the page becomes resident in the buffer pool. */
+	void admit(PageId pid);
+
+	/** Called on every hit of a resident page. */
+	void access(PageId pid);
+
+	/** Called when the page leaves the buffer pool. */
+	void remove(PageId pid);
+
+	/**
+	 * Choose the page that should be evicted next.
+	 *
+	 * @param evictable tells whether a resident page may be evicted right now
+	 *                  (e.g. it is not dirty)
+	 * @return the page to evict, or null if no resident page is evictable.
+	 *         The page is not removed; the caller must call {@link #remove}.
+	 */
+	PageId victim(Predicate<PageId> evictable);
+
+	/** @return the number of pages tracked by this replacer */
+	int size();
+
+	/** Create a replacer implementing the given policy. */
+	static PageReplacer create(ReplacementPolicy policy) {
+		switch (policy) {
+			case CLOCK:
+				return new ClockReplacer(false);
+			case SCAN_RESISTANT_CLOCK:
+				return new ClockReplacer(true);
+			case LRU_K:
+				return new LruKReplacer(LruKReplacer.DEFAULT_K);
+			default:
+				throw new IllegalArgumentException("Unknown replacement policy " + policy);
+		}
+	}
+}
@@ -9,6 +9,7 @@ public class PlanCache {
     HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
     HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
     HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
+    HashMap<Set<LogicalJoinNode>,String> bestSortedOn = new HashMap<Set<LogicalJoinNode>,String>();
     
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
@@ -23,6 +24,15 @@ public class PlanCache {
         bestCosts.put(s,cost);
         bestCardinalities.put(s,card);
     }
+
+    /** Add a new plan for a particular join set, as {@link #addPlan(Set, double, int, Vector)} does,
+        whose output is in ascending order of a field
+        @param sortedOn the field, as alias.field, the output of the plan is in ascending order of, or null
+    */
+    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order, String sortedOn) {
+        addPlan(s, cost, card, order);
+        bestSortedOn.put(s, sortedOn);
+    }
     
     /** Find the best join order in the cache for the specified plan 
         @param s the set of joins to look up the best order for
@@ -47,4 +57,12 @@ public class PlanCache {
     int getCard(Set<LogicalJoinNode> s) {
         return bestCardinalities.get(s);
     }
+
+    /** Find the field the output of the best join order in the cache for the specified plan is sorted on
+        @param s the set of joins to look up the best order for
+        @return the field, as alias.field, the output of the best order for s is in ascending order of, or null
+    */
+    String getSortedOn(Set<LogicalJoinNode> s) {
+        return bestSortedOn.get(s);
+    }
 }
@@ -0,0 +1,246 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetcher reads pages into the BufferPool ahead of a scan, on background
+ * threads, so that a cold scan does not wait for every page in turn.
+ * <p>
+ * Accesses are tracked per (transaction, table). A transaction that reads
+ * consecutive pages of a HeapFile, or that announced a scan with
+ * {@link BufferPool#hintSequentialScan}, gets the next pages of the file
+ * queued; for a B+ tree scan the right siblings of the leaf being read are
+ * queued, as long as the scan's predicate lets it go on past the leaf before,
+ * so that an index range scan reads no more pages than without prefetching.
+ * A prefetched page is read without any lock, like a page that is
+ * evicted and read again, and is only put into the pool if it is not there
+ * already, so it is the version on disk of a page nobody has changed in
+ * memory.
+ * <p>
+ * A prefetch hit is a request served by a page the prefetcher read, a miss
+ * is a request that had to read a page that was queued for prefetching but
+ * not read yet, and a prefetched page that is evicted before it is used is
+ * counted as wasted.
+ *
+ * @Threadsafe
+ */
+public class Prefetcher {
+
+	/** Pages read ahead of a scan, unless the buffer pool is small. */
+	public static final int DEFAULT_PREFETCH_PAGES = 8;
+
+	/** Consecutive pages read before an unhinted access is taken to be sequential. */
+	static final int SEQUENTIAL_THRESHOLD = 2;
+
+	private static final int THREADS = 2;
+
+	/** Access state of a transaction on one table. */
+	private static class Stream {
+		boolean hinted;
+		IndexPredicate ipred; // of a hinted B+ tree scan, or null
+		int lastPage = -1;
+		int run;
+		int queuedUpTo = -1; // last page queued for prefetching
+	}
+
+	private final BufferPool bufferPool;
+	private final int window;
+	private final ThreadPoolExecutor executor;
+	private final Map<TransactionId, Map<Integer, Stream>> streams;
+	private final Set<PageId> queued; // queued but not read yet
+	private final Set<PageId> prefetched; // read but not requested yet
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong wasted = new AtomicLong();
+
+	/**
+	 * @param bufferPool the pool to read pages into
+	 * @param window the number of pages to read ahead; 0 disables prefetching
+	 */
+	Prefetcher(BufferPool bufferPool, int window) {
+		this.bufferPool = bufferPool;
+		this.window = window;
+		this.executor = new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, "prefetcher");
+					thread.setDaemon(true);
+					return thread;
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+		this.streams = new ConcurrentHashMap<>();
+		this.queued = ConcurrentHashMap.newKeySet();
+		this.prefetched = ConcurrentHashMap.newKeySet();
+	}
+
+	/** @return the number of requests served by a prefetched page */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** @return the number of requests that read a page queued for prefetching */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** @return the number of prefetched pages evicted before they were requested */
+	public long getWasted() {
+		return wasted.get();
+	}
+
+	/** Announce that tid is about to scan the given table from its start. */
+	void hintSequentialScan(TransactionId tid, int tableId) {
+		hintIndexScan(tid, tableId, null);
+	}
+
+	/**
+	 * Announce that tid is about to scan the leaves of the given B+ tree that
+	 * may match ipred, or all of them if ipred is null.
+	 */
+	void hintIndexScan(TransactionId tid, int tableId, IndexPredicate ipred) {
+		if (window == 0) return;
+		Stream stream = streamOf(tid, tableId);
+		synchronized (stream) {
+			stream.hinted = true;
+			stream.ipred = ipred;
+			stream.lastPage = -1;
+			stream.queuedUpTo = -1;
+		}
+	}
+
+	/**
+	 * Called by the BufferPool for a page tid requested that was in the pool.
+	 *
+	 * @return whether this is the first request of a prefetched page
+	 */
+	boolean hit(PageId pid) {
+		if (prefetched.isEmpty() || !prefetched.remove(pid)) return false;
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Called by the BufferPool for a page tid requested that it had to read;
+	 * a queued read of the page is dropped, as it would only read it again.
+	 */
+	void miss(PageId pid) {
+		if (!queued.isEmpty() && queued.remove(pid)) misses.incrementAndGet();
+	}
+
+	/** Called by the BufferPool when a page leaves the pool. */
+	void removed(PageId pid) {
+		if (!prefetched.isEmpty() && prefetched.remove(pid)) wasted.incrementAndGet();
+	}
+
+	/** Forget the streams of a transaction that completed. */
+	void transactionComplete(TransactionId tid) {
+		streams.remove(tid);
+	}
+
+	/** Called by the BufferPool after tid got page; queues the pages expected next. */
+	void accessed(TransactionId tid, Page page) {
+		if (window == 0) return;
+		PageId pid = page.getId();
+		if (pid instanceof HeapPageId) {
+			accessedHeapPage(tid, pid);
+		} else if (pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == BTreePageId.LEAF) {
+			Map<Integer, Stream> tableStreams = streams.get(tid);
+			Stream stream = tableStreams == null ? null : tableStreams.get(pid.getTableId());
+			if (stream == null || !stream.hinted) return;
+			IndexPredicate ipred = stream.ipred;
+			BTreeLeafPage leaf = (BTreeLeafPage) page;
+			if (!scanGoesPast(leaf, ipred)) return;
+			BTreePageId next = leaf.getRightSiblingId();
+			if (next != null && queued.add(next))
+				submit(() -> followLeaves(next, window, ipred));
+		}
+	}
+
+	private void accessedHeapPage(TransactionId tid, PageId pid) {
+		int pageNo = pid.pageNumber();
+		Stream stream = streamOf(tid, pid.getTableId());
+		int from, to;
+		synchronized (stream) {
+			if (pageNo == stream.lastPage + 1) stream.run++;
+			else stream.run = 1;
+			if (pageNo <= stream.lastPage) stream.queuedUpTo = pageNo; // the scan started over
+			stream.lastPage = pageNo;
+			if (!stream.hinted && stream.run < SEQUENTIAL_THRESHOLD) return;
+			from = Math.max(pageNo + 1, stream.queuedUpTo + 1);
+			to = pageNo + window;
+			if (from > to) return;
+			stream.queuedUpTo = to;
+		}
+		int numPages = Database.getCatalog().getDatabaseFile(pid.getTableId()).numPages();
+		for (int p = from; p <= to && p < numPages; p++) {
+			HeapPageId next = new HeapPageId(pid.getTableId(), p);
+			if (queued.add(next))
+				submit(() -> read(next));
+		}
+	}
+
+	private Stream streamOf(TransactionId tid, int tableId) {
+		return streams.computeIfAbsent(tid, key -> new ConcurrentHashMap<>())
+				.computeIfAbsent(tableId, key -> new Stream());
+	}
+
+	private void submit(Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// shutting down; prefetching is only an optimization
+		}
+	}
+
+	/** Read a queued page, unless it was requested meanwhile or is in the pool already. */
+	private Page read(PageId pid) {
+		if (!queued.remove(pid)) return null;
+		try {
+			Page page = bufferPool.prefetchPage(pid);
+			if (page != null) prefetched.add(pid);
+			return page;
+		} catch (RuntimeException e) {
+			// e.g. the table was dropped, or the page no longer exists
+			return null;
+		}
+	}
+
+	/** Read a leaf and then the right siblings the scan will get to, count leaves in all. */
+	private void followLeaves(BTreePageId pid, int count, IndexPredicate ipred) {
+		BTreePageId next = pid;
+		for (int i = 0; i < count && next != null; i++) {
+			if (i > 0 && !queued.add(next)) return; // another walk is ahead of us
+			Page page = read(next);
+			if (page == null) page = bufferPool.cachedPage(next);
+			if (!(page instanceof BTreeLeafPage)) return;
+			BTreeLeafPage leaf = (BTreeLeafPage) page;
+			try {
+				if (!scanGoesPast(leaf, ipred)) return;
+			} catch (RuntimeException e) {
+				return; // the leaf changed under us
+			}
+			next = leaf.getRightSiblingId();
+		}
+	}
+
+	/**
+	 * @return whether a scan for ipred goes on to the right sibling of leaf,
+	 *         i.e. does not stop at one of its keys; see BTreeSearchIterator
+	 */
+	private static boolean scanGoesPast(BTreeLeafPage leaf, IndexPredicate ipred) {
+		if (ipred == null) return true;
+		Predicate.Op op = ipred.getOp();
+		if (op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ
+				&& op != Predicate.Op.EQUALS)
+			return true;
+		Iterator<Tuple> it = leaf.reverseIterator();
+		if (!it.hasNext()) return true;
+		Field lastKey = it.next().getField(leaf.keyField);
+		if (op == Predicate.Op.EQUALS)
+			return lastKey.compare(Predicate.Op.LESS_THAN_OR_EQ, ipred.getField());
+		return lastKey.compare(op, ipred.getField());
+	}
+}
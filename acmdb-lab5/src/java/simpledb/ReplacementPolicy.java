@@ -0,0 +1,19 @@
+package simpledb;
+
+/**
+ * Page replacement policies supported by the BufferPool.
+ *
+ * @see PageReplacer#create
+ */
+public enum ReplacementPolicy {
+	/** CLOCK sweep with a single reference bit, set on admission. */
+	CLOCK,
+	/**
+	 * CLOCK sweep with usage counts where pages are admitted with a zero
+	 * count, so pages touched only once (e.g. by a sequential scan) are the
+	 * first to go, and pages that keep being hit survive several sweeps.
+	 */
+	SCAN_RESISTANT_CLOCK,
+	/** LRU-K with K = {@link LruKReplacer#DEFAULT_K}; scan resistant by nature. */
+	LRU_K,
+}
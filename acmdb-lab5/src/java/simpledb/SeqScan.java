@@ -15,6 +15,7 @@ public class SeqScan implements DbIterator {
     private int tableId;
     private String tableAlias;
     private final DbFileIterator tupleIter;
+    private Permissions tableLock;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -58,6 +59,16 @@ public class SeqScan implements DbIterator {
         return this.tableAlias;
     }
 
+    /** @return the id of the table the operator scans */
+    int getTableId() {
+        return tableId;
+    }
+
+    /** @return the transaction the scan is running as a part of */
+    TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      * @param tableid
@@ -80,8 +91,20 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Lock the whole table when the scan is opened, shared for READ_ONLY and
+     * exclusive for READ_WRITE, rather than every page as it is read. A
+     * snapshot transaction reads without locking, so its scan ignores this.
+     */
+    public void setTableLock(Permissions perm) {
+		this.tableLock = perm;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+		if (tableLock != null && !Database.getBufferPool().getVersionStore().isSnapshot(tid))
+			Database.getBufferPool().lockTable(tid, tableId, tableLock);
+		Database.getBufferPool().hintSequentialScan(tid, tableId);
 		tupleIter.open();
     }
 
@@ -0,0 +1,193 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator implements the relational join operation by
+ * merging its children, which must both be sorted in ascending order of
+ * their join fields, e.g. scans of B+ trees on them or OrderBys. Each child
+ * is read once.
+ * <p>
+ * For an equality predicate, the tuples of child2 with the key of the
+ * current tuple of child1 are held, and every tuple of child1 with that key
+ * is joined with them. For an inequality, the tuples that match a tuple of
+ * one child form a prefix of the other child, which only grows as the first
+ * child goes on: child1 is read one tuple at a time for &gt; and &gt;=, and
+ * child2 for &lt; and &lt;=, and the prefix of the other child read so far
+ * is held. The output is in ascending order of the join field of the child
+ * read one tuple at a time, child1 for equality (see
+ * {@link #getSortedField}).
+ */
+public class SortMergeJoin extends Operator {
+
+	private static final long serialVersionUID = 1L;
+
+	private final JoinPredicate predicate;
+	private DbIterator child1;
+	private DbIterator child2;
+	private final int lenTuple1;
+	private final int lenTuple2;
+	private final TupleDesc joinedTupleDesc;
+	private final boolean drivenByChild1; // whether child1 is read one tuple at a time
+	private final boolean strict; // whether the keys of the prefix are below the driving key, rather than up to it
+
+	// the tuple read one tuple at a time, and the tuples of the other child it matches
+	private transient Tuple driving;
+	private transient ArrayList<Tuple> held;
+	private transient Tuple lookahead; // the next tuple of the other child, not held yet
+	private transient int next; // the held tuple to join with driving next
+	private transient int matches; // the held tuples driving is joined with
+
+	/**
+	 * Constructor. Accepts to children to join and the predicate to join them
+	 * on
+	 *
+	 * @param p
+	 *            The predicate to use to join the children; not NOT_EQUALS
+	 *            or LIKE
+	 * @param child1
+	 *            Iterator for the left(outer) relation to join, in ascending
+	 *            order of its join field
+	 * @param child2
+	 *            Iterator for the right(inner) relation to join, in ascending
+	 *            order of its join field
+	 */
+	public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+		switch (p.getOperator()) {
+		case EQUALS:
+		case GREATER_THAN:
+		case GREATER_THAN_OR_EQ:
+			this.drivenByChild1 = true;
+			break;
+		case LESS_THAN:
+		case LESS_THAN_OR_EQ:
+			this.drivenByChild1 = false;
+			break;
+		default:
+			throw new IllegalArgumentException("a sort-merge join cannot join on " + p.getOperator());
+		}
+		this.strict = p.getOperator() == Predicate.Op.GREATER_THAN || p.getOperator() == Predicate.Op.LESS_THAN;
+		this.predicate = p;
+		this.child1 = child1;
+		this.child2 = child2;
+		this.lenTuple1 = child1.getTupleDesc().numFields();
+		this.lenTuple2 = child2.getTupleDesc().numFields();
+		this.joinedTupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+	}
+
+	public JoinPredicate getJoinPredicate() {
+		return predicate;
+	}
+
+	public String getJoinField1Name() {
+		return child1.getTupleDesc().getFieldName(predicate.getField1());
+	}
+
+	public String getJoinField2Name() {
+		return child2.getTupleDesc().getFieldName(predicate.getField2());
+	}
+
+	public TupleDesc getTupleDesc() {
+		return joinedTupleDesc;
+	}
+
+	/** @return the field of the output that is in ascending order */
+	public int getSortedField() {
+		return drivenByChild1 ? predicate.getField1() : lenTuple1 + predicate.getField2();
+	}
+
+	public void open() throws DbException, NoSuchElementException,
+			TransactionAbortedException {
+		super.open();
+		child1.open();
+		child2.open();
+		start();
+	}
+
+	private void start() throws DbException, TransactionAbortedException {
+		DbIterator other = drivenByChild1 ? child2 : child1;
+		held = new ArrayList<>();
+		lookahead = other.hasNext() ? other.next() : null;
+		driving = null;
+		next = matches = 0;
+	}
+
+	public void close() {
+		super.close();
+		child1.close();
+		child2.close();
+		held = null;
+		driving = lookahead = null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		child1.rewind();
+		child2.rewind();
+		start();
+	}
+
+	/**
+	 * Returns the next tuple generated by the join, or null if there are no
+	 * more tuples: the tuples of child1 and child2 that satisfy the predicate,
+	 * concatenated.
+	 *
+	 * @return The next matching tuple.
+	 * @see JoinPredicate#filter
+	 */
+	protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+		DbIterator drivingChild = drivenByChild1 ? child1 : child2;
+		DbIterator other = drivenByChild1 ? child2 : child1;
+		int drivingField = drivenByChild1 ? predicate.getField1() : predicate.getField2();
+		int otherField = drivenByChild1 ? predicate.getField2() : predicate.getField1();
+		while (next == matches) {
+			if (!drivingChild.hasNext()) return null;
+			Tuple previous = driving;
+			driving = drivingChild.next();
+			Field key = driving.getField(drivingField);
+			next = 0;
+			if (predicate.getOperator() == Predicate.Op.EQUALS) {
+				if (previous != null && compare(previous.getField(drivingField), key) == 0) continue;
+				// the tuples with the previous key are of no more use
+				held.clear();
+				while (lookahead != null && compare(lookahead.getField(otherField), key) < 0)
+					lookahead = other.hasNext() ? other.next() : null;
+			}
+			while (lookahead != null) {
+				int c = compare(lookahead.getField(otherField), key);
+				if (predicate.getOperator() == Predicate.Op.EQUALS ? c != 0 : strict ? c >= 0 : c > 0)
+					break;
+				held.add(lookahead);
+				lookahead = other.hasNext() ? other.next() : null;
+			}
+			matches = held.size();
+		}
+
+		Tuple tuple1 = drivenByChild1 ? driving : held.get(next);
+		Tuple tuple2 = drivenByChild1 ? held.get(next) : driving;
+		next++;
+		Tuple joinedTuple = new Tuple(joinedTupleDesc);
+		for (int i = 0; i < lenTuple1; i++) joinedTuple.setField(i, tuple1.getField(i));
+		for (int i = 0; i < lenTuple2; i++) joinedTuple.setField(i + lenTuple1, tuple2.getField(i));
+		return joinedTuple;
+	}
+
+	/** @return a negative number, zero or a positive number as a is below, equal to or above b */
+	private static int compare(Field a, Field b) {
+		if (a instanceof IntField && b instanceof IntField)
+			return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+		if (a.compare(Predicate.Op.EQUALS, b)) return 0;
+		return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+	}
+
+	@Override
+	public DbIterator[] getChildren() {
+		return new DbIterator[] {child1, child2};
+	}
+
+	@Override
+	public void setChildren(DbIterator[] children) {
+		child1 = children[0];
+		child2 = children[1];
+	}
+
+}
@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary file of tuples that an operator writes out when its input
+ * does not fit in the memory it may use, e.g. a partition of a hash join.
+ * The file is laid out like a HeapFile, in pages of a header bitmap
+ * followed by tuple slots (see HeapPage), but it is only appended to and
+ * read sequentially, a page at a time, by the operator that made it, past
+ * the buffer pool. The tuples read back decode their fields from the page
+ * they were read with when the fields are first asked for, as those of a
+ * HeapPage do.
+ * <p>
+ * Tuples are added until the file is read; {@link #iterator} writes out
+ * the last page. {@link #delete} removes the file.
+ */
+class SpillFile {
+
+	private final TupleDesc td;
+	private final int slotsPerPage;
+	private final int headerSize;
+	private final File file;
+	private OutputStream out;
+	private final ByteBuffer page;
+	private final ByteArrayOutputStream fieldBytes;
+	private final DataOutputStream fieldOut;
+	private int slotsUsed; // on the page being filled
+	private int numTuples;
+
+	SpillFile(TupleDesc td) throws DbException {
+		this.td = td;
+		this.slotsPerPage = HeapPage.getNumTuples(td);
+		this.headerSize = HeapPage.getHeaderSize(td);
+		this.page = ByteBuffer.allocate(BufferPool.getPageSize());
+		this.fieldBytes = new ByteArrayOutputStream();
+		this.fieldOut = new DataOutputStream(fieldBytes);
+		try {
+			this.file = File.createTempFile("spill", ".dat");
+			this.out = new FileOutputStream(file);
+		} catch (IOException e) {
+			throw new DbException("could not create a spill file: " + e.getMessage());
+		}
+	}
+
+	void add(Tuple t) throws DbException {
+		if (out == null) throw new IllegalStateException("the spill file has been read");
+		int offset = headerSize + slotsUsed * td.getSize();
+		for (int i = 0; i < td.numFields(); i++) {
+			Field f = t.getField(i);
+			if (f instanceof IntField) {
+				page.putInt(offset, ((IntField) f).getValue());
+			} else {
+				fieldBytes.reset();
+				try {
+					f.serialize(fieldOut);
+				} catch (IOException e) {
+					throw new DbException("could not serialize " + f);
+				}
+				byte[] bytes = fieldBytes.toByteArray();
+				for (int b = 0; b < bytes.length; b++)
+					page.put(offset + b, bytes[b]);
+			}
+			offset += td.getFieldType(i).getLen();
+		}
+		page.put(slotsUsed / 8, (byte) (page.get(slotsUsed / 8) | (1 << (slotsUsed % 8))));
+		slotsUsed++;
+		numTuples++;
+		if (slotsUsed == slotsPerPage) writePage();
+	}
+
+	/** @return the number of tuples added */
+	int numTuples() {
+		return numTuples;
+	}
+
+	/** @return the number of pages the tuples added take */
+	int numPages() {
+		return (numTuples + slotsPerPage - 1) / slotsPerPage;
+	}
+
+	/** @return an iterator over the tuples added, in the order they were added; no more can be added */
+	DbIterator iterator() throws DbException {
+		if (out != null) {
+			try {
+				if (slotsUsed > 0) writePage();
+				out.close();
+			} catch (IOException e) {
+				throw new DbException("could not write a spill file: " + e.getMessage());
+			}
+			out = null;
+		}
+		return new Reader();
+	}
+
+	/** Remove the file; the iterators over it must be closed. */
+	void delete() {
+		try {
+			if (out != null) out.close();
+		} catch (IOException ignored) {}
+		out = null;
+		file.delete();
+	}
+
+	private void writePage() throws DbException {
+		try {
+			out.write(page.array());
+		} catch (IOException e) {
+			throw new DbException("could not write a spill file: " + e.getMessage());
+		}
+		Arrays.fill(page.array(), (byte) 0);
+		slotsUsed = 0;
+	}
+
+	/** Reads the pages of the file one at a time and returns the tuples on them. */
+	private class Reader implements DbIterator {
+
+		private static final long serialVersionUID = 1L;
+
+		private transient DataInputStream in;
+		private transient ByteBuffer data; // the page being read
+		private int slot; // the next slot of it to look at
+		private int tuplesLeft;
+
+		public void open() throws DbException {
+			try {
+				in = new DataInputStream(new FileInputStream(file));
+			} catch (IOException e) {
+				throw new DbException("could not read a spill file: " + e.getMessage());
+			}
+			data = null;
+			slot = slotsPerPage;
+			tuplesLeft = numTuples;
+		}
+
+		public boolean hasNext() {
+			return in != null && tuplesLeft > 0;
+		}
+
+		public Tuple next() throws DbException {
+			if (!hasNext()) throw new NoSuchElementException();
+			while (true) {
+				if (slot == slotsPerPage) {
+					byte[] bytes = new byte[BufferPool.getPageSize()];
+					try {
+						in.readFully(bytes);
+					} catch (IOException e) {
+						throw new DbException("could not read a spill file: " + e.getMessage());
+					}
+					data = ByteBuffer.wrap(bytes);
+					slot = 0;
+				}
+				int i = slot++;
+				if (((data.get(i / 8) >> (i % 8)) & 1) == 0) continue;
+				tuplesLeft--;
+				return new Tuple(td, data, headerSize + i * td.getSize());
+			}
+		}
+
+		public void rewind() throws DbException {
+			close();
+			open();
+		}
+
+		public TupleDesc getTupleDesc() {
+			return td;
+		}
+
+		public void close() {
+			try {
+				if (in != null) in.close();
+			} catch (IOException ignored) {}
+			in = null;
+			data = null;
+		}
+	}
+}
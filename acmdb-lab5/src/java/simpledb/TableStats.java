@@ -98,7 +98,8 @@ public class TableStats {
 		this.ioCostPerPage = ioCostPerPage;
 		TupleDesc tupleDesc = Database.getCatalog().getTupleDesc(tableid);
 		DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
-		DbFileIterator iter = dbFile.iterator(new TransactionId());
+		TransactionId tid = new TransactionId();
+		DbFileIterator iter = dbFile.iterator(tid);
 		this.numPages = dbFile.numPages();
 		this.histograms = new ArrayList<>();
 		this.minVal = new ArrayList<>();
@@ -145,6 +146,8 @@ public class TableStats {
 				}
 			}
 			iter.close();
+			// the scan may have locked the whole table
+			Database.getBufferPool().transactionComplete(tid);
 		} catch (Exception e){
 			e.printStackTrace();
 		}
@@ -169,6 +172,11 @@ public class TableStats {
         return ioCostPerPage * numPages;
     }
 
+    /** @return the number of pages of the table, which a full scan reads */
+    public int numPages() {
+        return numPages;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -221,6 +229,26 @@ public class TableStats {
         	return ((StringHistogram) histogram).estimateSelectivity(op, ((StringField) constant).getValue());
     }
 
+    /**
+     * Estimate the selectivity of the join predicate <tt>field op
+     * otherField</tt> between the table and another, both integer fields.
+     *
+     * @param field
+     *            The field of this table on the left of op
+     * @param op
+     *            The logical operation in the predicate
+     * @param other
+     *            The statistics of the table on the right of op
+     * @param otherField
+     *            The field of the other table on the right of op
+     * @return The estimated fraction of pairs of tuples of the tables that
+     *         satisfy the predicate
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op, TableStats other, int otherField) {
+        return ((IntHistogram) histograms.get(field)).estimateSelectivity(op,
+                (IntHistogram) other.histograms.get(otherField));
+    }
+
     /**
      * return the total number of tuples in this table
      * */
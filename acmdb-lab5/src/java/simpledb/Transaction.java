@@ -25,6 +25,17 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction running on a snapshot: its scans of heap tables
+     * see the transactions that committed before it started, and itself,
+     * and lock no pages. Its writes lock like any other, and a delete of a
+     * tuple that changed since the snapshot aborts it.
+     */
+    public void startSnapshot() {
+        start();
+        Database.getBufferPool().getVersionStore().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -43,20 +54,9 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write commit / abort records
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
-            }
-
-            try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            //log the dirty pages and the commit / abort record, roll back
+            //an abort, and release locks
+            Database.getBufferPool().transactionComplete(tid, !abort);
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
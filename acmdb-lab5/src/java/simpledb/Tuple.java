@@ -1,12 +1,19 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
 import java.util.Iterator;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may keep the raw bytes of its slot and decode a
+ * field only the first time it is asked for.
  */
 public class Tuple implements Serializable {
 
@@ -15,6 +22,8 @@ public class Tuple implements Serializable {
     private TupleDesc tupleDesc;
     private final Field[] fields;
     private RecordId recordId;
+    private transient ByteBuffer data; // raw bytes of the fields not decoded yet
+    private transient int offset;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -29,6 +38,17 @@ public class Tuple implements Serializable {
 		this.fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple whose fields are decoded from data, starting at the
+     * given offset, when they are first asked for. data must not change while
+     * the tuple may still decode from it; see {@link #decodeAll}.
+     */
+    Tuple(TupleDesc td, ByteBuffer data, int offset) {
+		this(td);
+		this.data = data;
+		this.offset = offset;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -78,7 +98,32 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return this.fields[i];
+		Field f = this.fields[i];
+		if (f == null && data != null) {
+			try {
+				f = tupleDesc.getFieldType(i).parse(data, offset + tupleDesc.getFieldOffset(i));
+			} catch (ParseException e) {
+				throw new IllegalStateException("parsing error!", e);
+			}
+			this.fields[i] = f;
+		}
+        return f;
+    }
+
+    /**
+     * Decode all fields that are not decoded yet and forget the raw bytes,
+     * e.g. because they are about to change.
+     */
+    void decodeAll() {
+		if (data == null) return;
+		for (int i = 0; i < fields.length; i++)
+			getField(i);
+		data = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+		decodeAll();
+		out.defaultWriteObject();
     }
 
     /**
@@ -93,7 +138,7 @@ public class Tuple implements Serializable {
         // some code goes here
         StringBuffer stringBuffer = new StringBuffer();
         for(int i = 0; i < fields.length; i++){
-        	String fieldString = this.fields[i].toString() + (i == fields.length-1 ? "\n" : "\t");
+        	String fieldString = getField(i).toString() + (i == fields.length-1 ? "\n" : "\t");
         	stringBuffer.append(fieldString);
 		}
         return stringBuffer.toString();
@@ -115,6 +160,7 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td)
     {
         // some code goes here
+		decodeAll();
 		this.tupleDesc = td;
     }
 
@@ -128,7 +174,7 @@ public class Tuple implements Serializable {
 
 		@Override
 		public Field next() {
-			return fields[pos++];
+			return getField(pos++);
 		}
 	}
 
@@ -10,6 +10,7 @@ public class TupleDesc implements Serializable {
 
 	private int numFields;
 	private TDItem[] tdAr;
+	private transient int[] fieldOffsets; // computed on first use
 
     /**
      * A help class to facilitate organizing the information of each field
@@ -181,9 +182,26 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        int siz = 0;
-		for (TDItem tdItem : tdAr) siz += tdItem.fieldType.getLen();
-        return siz;
+        return fieldOffsets()[numFields];
+    }
+
+    /**
+     * @return the offset (in bytes) of the ith field within a tuple
+     *         corresponding to this TupleDesc
+     */
+    public int getFieldOffset(int i) {
+        return fieldOffsets()[i];
+    }
+
+    private int[] fieldOffsets() {
+		int[] offsets = fieldOffsets;
+		if (offsets == null) {
+			offsets = new int[tdAr.length + 1];
+			for (int i = 0; i < tdAr.length; i++)
+				offsets[i + 1] = offsets[i] + tdAr[i].fieldType.getLen();
+			fieldOffsets = offsets;
+		}
+		return offsets;
     }
 
     /**
@@ -0,0 +1,400 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * VersionStore keeps the versions of the tuples of heap tables, so that
+ * snapshot transactions, see {@link Transaction#startSnapshot}, read
+ * without locking pages and never block or abort a writer.
+ * <p>
+ * A HeapPage holds only the current version of each slot. Every insert and
+ * delete on a heap page goes through the store, which records a version for
+ * the slot: the transaction that created it and the one that deleted it,
+ * and a copy of the tuple once it is deleted from the page. The versions
+ * of a slot form a chain, newest first; a used slot without a chain holds a
+ * tuple every snapshot sees. A transaction's versions refer to one shared
+ * record of it, which gets the commit timestamp, from a counter of commits,
+ * when the transaction commits, so all its versions become visible at once.
+ * <p>
+ * A snapshot sees the versions created by the transactions that committed
+ * before it started, or by itself, and not deleted by one of them. A
+ * snapshot transaction may also write, taking locks like any writer; a
+ * delete of a tuple that a transaction that committed after the snapshot
+ * started has deleted or replaced aborts it, so that the first updater wins.
+ * <p>
+ * The pages and the chains are guarded by a latch per page, one of a fixed
+ * set: writers change a page and its chains together under it, and readers
+ * copy the tuples they see under it. Latch order: a latch may be held while
+ * taking a BufferPool partition monitor, never the other way.
+ * <p>
+ * Versions that no snapshot can see any more are collected on a background
+ * thread once enough have piled up since the last collection.
+ * <p>
+ * While no snapshot is running or starting, a write to a page without
+ * chains records no version: the writer only notes the slot, and the tuple
+ * a delete takes off the page, in a list of its own. A snapshot that starts
+ * turns the lists of the running writers into versions before it takes its
+ * timestamp, so it sees the page as if they had been versioned all along,
+ * and the writes that follow are versioned until no snapshot is left.
+ * <p>
+ * Pages are versioned in memory only: after a restart no transaction is
+ * running, and every tuple on disk is seen by every snapshot.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+	/** Commit timestamp of a transaction that has not committed, or has aborted. */
+	private static final long RUNNING = Long.MAX_VALUE;
+	private static final long ABORTED = Long.MAX_VALUE - 1;
+
+	/** Versions at which a collection is started, at least. */
+	static final int GC_THRESHOLD = 4096;
+
+	private static final int LATCHES = 256;
+
+	/** A transaction that wrote versions, and when it committed. */
+	private static class Writer {
+		final TransactionId tid;
+		volatile long commitTs = RUNNING;
+
+		Writer(TransactionId tid) {
+			this.tid = tid;
+		}
+
+		boolean committedBy(long snapshot) {
+			return commitTs <= snapshot;
+		}
+
+		boolean isSettled() {
+			return commitTs != RUNNING;
+		}
+	}
+
+	/** A write made without a version, to be versioned if a snapshot starts. */
+	private static class Change {
+		final PageId pid;
+		final int slot;
+		final Tuple deleted; // null for an insert
+
+		Change(PageId pid, int slot, Tuple deleted) {
+			this.pid = pid;
+			this.slot = slot;
+			this.deleted = deleted;
+		}
+	}
+
+	/** A version of the tuple in one slot. */
+	private static class Version {
+		final Writer creator; // null for a tuple older than any snapshot
+		Writer deleter; // null, or of the delete that is running or was aborted or committed
+		Tuple tuple; // a copy, or null if this version is the one on the page
+		Version older;
+
+		Version(Writer creator, Tuple tuple) {
+			this.creator = creator;
+			this.tuple = tuple;
+		}
+
+		boolean isCreationAborted() {
+			return creator != null && creator.commitTs == ABORTED;
+		}
+
+		/** @return whether the version is not deleted, or its deletion was aborted */
+		boolean isLive() {
+			return !isCreationAborted() && (deleter == null || deleter.commitTs == ABORTED);
+		}
+
+		boolean isVisible(TransactionId tid, long snapshot) {
+			boolean created = creator == null || creator.committedBy(snapshot) || creator.tid.equals(tid);
+			boolean deleted = deleter != null && (deleter.committedBy(snapshot) || deleter.tid.equals(tid));
+			return created && !deleted;
+		}
+	}
+
+	private final Object[] latches;
+	private final Map<PageId, Map<Integer, Version>> pages; // chain of each slot, by page
+	private final Map<TransactionId, Writer> writers;
+	private final Map<TransactionId, Long> snapshots; // changed under the monitor
+	private final AtomicInteger snapshotCount = new AtomicInteger(); // running or starting
+	private final Map<TransactionId, List<Change>> unversioned; // by running writer, each guarded by itself
+	private long clock; // timestamp of the last commit //protected by this
+	private final AtomicInteger versions = new AtomicInteger();
+	private volatile int nextCollection = GC_THRESHOLD;
+	private final AtomicBoolean collectionQueued = new AtomicBoolean();
+	private final ThreadPoolExecutor collector;
+
+	public VersionStore() {
+		latches = new Object[LATCHES];
+		for (int i = 0; i < LATCHES; i++)
+			latches[i] = new Object();
+		pages = new ConcurrentHashMap<>();
+		writers = new ConcurrentHashMap<>();
+		snapshots = new ConcurrentHashMap<>();
+		unversioned = new ConcurrentHashMap<>();
+		collector = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+			Thread thread = new Thread(runnable, "version collector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		collector.allowCoreThreadTimeOut(true);
+	}
+
+	/** @return the latch that guards the page and its versions */
+	Object latch(PageId pid) {
+		return latches[Math.floorMod(pid.hashCode(), LATCHES)];
+	}
+
+	/** Start a snapshot for tid, which sees the transactions that committed so far. */
+	public void beginSnapshot(TransactionId tid) {
+		snapshotCount.incrementAndGet(); // from now on every write is versioned
+		synchronized (this) {
+			for (Map.Entry<TransactionId, List<Change>> entry : unversioned.entrySet()) {
+				List<Change> changes = entry.getValue();
+				synchronized (changes) {
+					if (changes.isEmpty()) continue;
+					Writer writer = writer(entry.getKey());
+					for (Change change : changes) {
+						synchronized (latch(change.pid)) {
+							if (change.deleted == null) versionInsert(writer, change.pid, change.slot);
+							else versionDelete(writer, change.pid, change.slot, change.deleted);
+						}
+					}
+					changes.clear();
+				}
+			}
+			snapshots.put(tid, clock);
+		}
+	}
+
+	/** @return whether tid reads from a snapshot */
+	public boolean isSnapshot(TransactionId tid) {
+		return snapshots.containsKey(tid);
+	}
+
+	/** @return the number of versions kept */
+	public int getVersionCount() {
+		return versions.get();
+	}
+
+	private Writer writer(TransactionId tid) {
+		return writers.computeIfAbsent(tid, Writer::new);
+	}
+
+	/** @return the version of the slot that is on the page or was last deleted from it, or null */
+	private static Version liveVersion(Map<Integer, Version> chains, int slot) {
+		for (Version version = chains == null ? null : chains.get(slot); version != null; version = version.older)
+			if (version.isLive()) return version;
+		return null;
+	}
+
+	/**
+	 * @return the list to note a write of tid to the page in, if no snapshot
+	 *         is running or starting and the page has no chains the write
+	 *         would leave behind; else null, and the write is versioned
+	 */
+	private List<Change> unversionedChanges(TransactionId tid, PageId pid) {
+		if (snapshotCount.get() > 0 || pages.containsKey(pid)) return null;
+		return unversioned.computeIfAbsent(tid, key -> new ArrayList<>());
+	}
+
+	/** Record that writer put a tuple in the slot. Called with the latch of the page held. */
+	private void versionInsert(Writer writer, PageId pid, int slot) {
+		Map<Integer, Version> chains = pages.computeIfAbsent(pid, key -> new HashMap<>());
+		Version version = new Version(writer, null);
+		version.older = chains.put(slot, version);
+		versions.incrementAndGet();
+	}
+
+	/**
+	 * Record that writer deleted the tuple, of which copy is a copy, from the
+	 * slot. Called with the latch of the page held.
+	 */
+	private void versionDelete(Writer writer, PageId pid, int slot, Tuple copy) {
+		Map<Integer, Version> chains = pages.computeIfAbsent(pid, key -> new HashMap<>());
+		Version live = liveVersion(chains, slot);
+		if (live == null) {
+			// the tuple is older than any snapshot
+			live = new Version(null, null);
+			live.older = chains.put(slot, live);
+			versions.incrementAndGet();
+		}
+		live.deleter = writer;
+		if (live.tuple == null) live.tuple = copy;
+	}
+
+	/** Insert t into the page on behalf of tid, as a version of its own. */
+	void insertTuple(TransactionId tid, HeapPage page, Tuple t) throws DbException {
+		List<Change> changes = unversionedChanges(tid, page.getId());
+		if (changes != null) {
+			synchronized (changes) {
+				// a snapshot that started since has either seen the list or is seen here
+				if (snapshotCount.get() == 0) {
+					page.insertTuple(t);
+					changes.add(new Change(page.getId(), t.getRecordId().tupleno(), null));
+					return;
+				}
+			}
+		}
+		synchronized (latch(page.getId())) {
+			page.insertTuple(t);
+			versionInsert(writer(tid), page.getId(), t.getRecordId().tupleno());
+		}
+	}
+
+	/**
+	 * Delete t from the page on behalf of tid, keeping a copy of it for the
+	 * snapshots that still see it.
+	 *
+	 * @throws TransactionAbortedException if tid reads from a snapshot that
+	 *         does not see the tuple in the slot of t, which a transaction
+	 *         that committed since has deleted or put there
+	 */
+	void deleteTuple(TransactionId tid, HeapPage page, Tuple t) throws DbException, TransactionAbortedException {
+		int slot = t.getRecordId().tupleno();
+		List<Change> changes = unversionedChanges(tid, page.getId());
+		if (changes != null) {
+			synchronized (changes) {
+				if (snapshotCount.get() == 0) {
+					Tuple copy = page.isSlotUsed(slot) ? page.detachedTuple(slot) : null;
+					page.deleteTuple(t); // throws if the slot is empty
+					changes.add(new Change(page.getId(), slot, copy));
+					return;
+				}
+			}
+		}
+		synchronized (latch(page.getId())) {
+			Map<Integer, Version> chains = pages.get(page.getId());
+			Version live = liveVersion(chains, slot);
+			Long snapshot = snapshots.get(tid);
+			if (snapshot != null && (!page.isSlotUsed(slot) || live != null && !live.isVisible(tid, snapshot)))
+				throw new TransactionAbortedException();
+			Tuple copy = page.isSlotUsed(slot) ? page.detachedTuple(slot) : null;
+			page.deleteTuple(t); // throws if the slot is empty
+			versionDelete(writer(tid), page.getId(), slot, copy);
+		}
+	}
+
+	/**
+	 * @return the tuples of the page that the snapshot of tid sees, which are
+	 *         its own copies
+	 */
+	List<Tuple> visibleTuples(TransactionId tid, HeapPage page) {
+		Long snapshot = snapshots.get(tid);
+		if (snapshot == null) throw new IllegalStateException("transaction has no snapshot");
+		List<Tuple> visible = new ArrayList<>();
+		synchronized (latch(page.getId())) {
+			Map<Integer, Version> chains = pages.get(page.getId());
+			for (int slot = 0; slot < page.numSlots; slot++) {
+				Version version = chains == null ? null : chains.get(slot);
+				if (version == null) {
+					if (page.isSlotUsed(slot)) visible.add(page.detachedTuple(slot));
+					continue;
+				}
+				while (version != null && !version.isVisible(tid, snapshot))
+					version = version.older;
+				if (version == null) continue;
+				if (version.tuple == null) {
+					if (page.isSlotUsed(slot)) visible.add(page.detachedTuple(slot));
+				} else {
+					Tuple copy = new Tuple(version.tuple.getTupleDesc());
+					for (int i = 0; i < copy.getTupleDesc().numFields(); i++)
+						copy.setField(i, version.tuple.getField(i));
+					copy.setRecordId(version.tuple.getRecordId());
+					visible.add(copy);
+				}
+			}
+		}
+		return visible;
+	}
+
+	/**
+	 * Make the versions tid created and deleted visible to the snapshots
+	 * that start from now on if it committed, or never if it aborted, once
+	 * its pages hold what it committed or have been rolled back; and end its
+	 * snapshot.
+	 */
+	void transactionComplete(TransactionId tid, boolean commit) {
+		synchronized (this) {
+			// a snapshot starting now versions the writes of tid first, or not at all
+			Writer writer = writers.remove(tid);
+			if (writer != null) writer.commitTs = commit ? ++clock : ABORTED;
+			if (snapshots.remove(tid) != null) snapshotCount.decrementAndGet();
+			unversioned.remove(tid);
+		}
+		if (versions.get() >= nextCollection && collectionQueued.compareAndSet(false, true))
+			collector.execute(this::collect);
+	}
+
+	/** @return the oldest snapshot that is still running, or the one that would start now */
+	private synchronized long horizon() {
+		long horizon = clock;
+		for (long snapshot : snapshots.values())
+			horizon = Math.min(horizon, snapshot);
+		return horizon;
+	}
+
+	/** Drop the versions that no snapshot sees any more. */
+	public void collect() {
+		collectionQueued.set(false);
+		long horizon = horizon();
+		for (PageId pid : pages.keySet()) {
+			synchronized (latch(pid)) {
+				Map<Integer, Version> chains = pages.get(pid);
+				if (chains == null) continue;
+				for (Iterator<Map.Entry<Integer, Version>> it = chains.entrySet().iterator(); it.hasNext(); ) {
+					Map.Entry<Integer, Version> chain = it.next();
+					Version head = collect(chain.getValue(), horizon);
+					if (head == null) it.remove();
+					else chain.setValue(head);
+				}
+				if (chains.isEmpty()) pages.remove(pid);
+			}
+		}
+		nextCollection = Math.max(GC_THRESHOLD, 2 * versions.get());
+	}
+
+	/**
+	 * Drop the versions of a chain that no snapshot from horizon on sees:
+	 * those whose creation was aborted, and those older than the newest
+	 * version created before horizon, which every such snapshot sees or
+	 * sees deleted. The version left alone goes as well once its deletion
+	 * is settled before horizon, as the page then tells all snapshots alike
+	 * whether the slot holds it.
+	 *
+	 * @return the head of what is left of the chain, or null
+	 */
+	private Version collect(Version chain, long horizon) {
+		Version head = null, last = null;
+		int kept = 0, dropped = 0;
+		for (Version version = chain; version != null; version = version.older) {
+			if (version.isCreationAborted()) {
+				dropped++;
+				continue;
+			}
+			if (last == null) head = version;
+			else last.older = version;
+			last = version;
+			kept++;
+			if (version.creator == null || version.creator.committedBy(horizon)) {
+				for (Version older = version.older; older != null; older = older.older)
+					dropped++;
+				break;
+			}
+		}
+		if (last != null) last.older = null;
+		if (kept == 1 && (head.creator == null || head.creator.committedBy(horizon)) && (head.deleter == null
+				|| head.deleter.commitTs == ABORTED || head.deleter.committedBy(horizon))) {
+			head = null;
+			dropped++;
+		}
+		versions.addAndGet(-dropped);
+		return head;
+	}
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The wait-for graph of the LockManager. There is an edge from T1 to T2 while
+ * T1 waits for a lock held by T2. Edges are added as waiters enqueue, and a
+ * cycle through the enqueuing transaction is looked for right away; the
+ * youngest transaction of the cycle is chosen as the victim.
+ * <p>
+ * The graph is only updated on the slow path, by transactions that have to
+ * wait; {@link #involves} lets the fast path skip its monitor.
+ *
+ * @Threadsafe
+ */
+class WaitForGraph {
+
+	/** waiter -> lock it waits for -> transactions blocking it on that lock */
+	private final Map<TransactionId, Map<Lock, Set<TransactionId>>> edges;
+	private final Set<TransactionId> victims;
+
+	WaitForGraph() {
+		// updated under the monitor, but concurrent so that involves() needs no lock
+		edges = new ConcurrentHashMap<>();
+		victims = ConcurrentHashMap.newKeySet();
+	}
+
+	/** @return true if tid waits for some lock or was chosen as a victim */
+	boolean involves(TransactionId tid) {
+		return edges.containsKey(tid) || victims.contains(tid);
+	}
+
+	/**
+	 * Record that tid waits for the given holders of lock, replacing what was
+	 * recorded for tid on that lock before, and look for a deadlock.
+	 *
+	 * @return the victim of the deadlock tid closes, or null if there is none
+	 */
+	synchronized TransactionId waitFor(TransactionId tid, Lock lock, Set<TransactionId> holders) {
+		edges.computeIfAbsent(tid, key -> new HashMap<>()).put(lock, new HashSet<>(holders));
+
+		List<TransactionId> cycle = findCycle(tid);
+		if (cycle == null) return null;
+
+		TransactionId victim = tid;
+		for (TransactionId member : cycle)
+			if (member.getId() > victim.getId()) victim = member;
+		victims.add(victim);
+		return victim;
+	}
+
+	/** Forget that tid waits for lock. */
+	synchronized void stopWaiting(TransactionId tid, Lock lock) {
+		Map<Lock, Set<TransactionId>> waits = edges.get(tid);
+		if (waits == null) return;
+		waits.remove(lock);
+		if (waits.isEmpty()) edges.remove(tid);
+	}
+
+	/** Remove the edges from the waiters of lock to holder, which no longer blocks them. */
+	synchronized void released(Lock lock, TransactionId holder) {
+		for (Map<Lock, Set<TransactionId>> waits : edges.values()) {
+			Set<TransactionId> holders = waits.get(lock);
+			if (holders != null) holders.remove(holder);
+		}
+	}
+
+	/** Remove tid and every edge from or to it, e.g. once it completes. */
+	synchronized void remove(TransactionId tid) {
+		edges.remove(tid);
+		victims.remove(tid);
+		for (Map<Lock, Set<TransactionId>> waits : edges.values())
+			for (Set<TransactionId> holders : waits.values())
+				holders.remove(tid);
+	}
+
+	/** @return true if tid was chosen as the victim of a deadlock */
+	synchronized boolean isVictim(TransactionId tid) {
+		return victims.contains(tid);
+	}
+
+	/** @return the locks tid currently waits for */
+	synchronized Set<Lock> waitedLocks(TransactionId tid) {
+		Map<Lock, Set<TransactionId>> waits = edges.get(tid);
+		return waits == null ? Collections.emptySet() : new HashSet<>(waits.keySet());
+	}
+
+	/**
+	 * Depth-first search for a path from start back to itself.
+	 *
+	 * @return the transactions on the cycle, or null if there is none
+	 */
+	private List<TransactionId> findCycle(TransactionId start) {
+		Deque<TransactionId> path = new ArrayDeque<>();
+		Set<TransactionId> visited = new HashSet<>();
+		return findCycle(start, start, path, visited) ? new ArrayList<>(path) : null;
+	}
+
+	private boolean findCycle(TransactionId start, TransactionId cur,
+							  Deque<TransactionId> path, Set<TransactionId> visited) {
+		path.addLast(cur);
+		Map<Lock, Set<TransactionId>> waits = edges.get(cur);
+		if (waits != null) {
+			for (Set<TransactionId> holders : waits.values()) {
+				for (TransactionId next : holders) {
+					if (next.equals(start)) return true;
+					if (victims.contains(next)) continue; // about to abort, its locks will be freed
+					if (visited.add(next) && findCycle(start, next, path, visited)) return true;
+				}
+			}
+		}
+		path.removeLast();
+		return false;
+	}
+}
@@ -172,6 +172,27 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().pageNumber() == 2 || otherPage.getId().pageNumber() == 2);
 	}
 
+	/**
+	 * A search keeps the lock of the leaf it found, and none of the root pointer
+	 * and the internal pages it passed.
+	 */
+	@Test
+	public void testSearchLocksOnlyLeaf() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+		Field key = new IntField(BTreeUtility.MAX_RAND_VALUE / 2);
+		BTreeLeafPage leaf = bigFile.findLeafPage(tid, new HashMap<PageId, Page>(), Permissions.READ_ONLY, key);
+		assertTrue(leaf.getNumTuples() > 0);
+		assertTrue(Database.getBufferPool().holdsLock(tid, leaf.getId()));
+
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		TransactionId other = new TransactionId();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(other, rootPtrId, Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtr.getRootId()));
+		Database.getBufferPool().transactionComplete(other);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -236,6 +236,67 @@ public class BTreeNextKeyLockingTest extends SimpleDbTestBase {
 		bw1 = null;
 	}
 
+	/**
+	 * A search keeps the keys it read and the key past them locked rather than the
+	 * leaf page: an insert elsewhere in the leaf goes ahead, and one past the last
+	 * key, into the range of the search, waits for it.
+	 */
+	@Test
+	public void searchLocksKeysNotLeaf() throws Exception {
+		// keys 1 to 100, all in the root leaf
+		BTreeFile f = BTreeUtility.createBTreeFile(2, 100, null, null, 0);
+
+		DbFileIterator fit = f.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN, new IntField(98)));
+		fit.open();
+		Tuple last = null;
+		int count = 0;
+		while(fit.hasNext()) {
+			last = fit.next();
+			count++;
+		}
+		fit.close();
+		assertEquals(2, count);
+		assertFalse(Database.getBufferPool().holdsLock(tid, last.getRecordId().getPageId()));
+		assertTrue(Database.getBufferPool().holdsKeyLock(tid, new IndexKey(f.getId(), new IntField(100)), Permissions.READ_ONLY));
+
+		TransactionId other = new TransactionId();
+		Database.getBufferPool().insertTuple(other, f.getId(), BTreeUtility.getBTreeTuple(10, 2));
+		Database.getBufferPool().transactionComplete(other);
+
+		TransactionId tid1 = new TransactionId();
+		BTreeWriter bw1 = new BTreeWriter(tid1, f, 150, 1);
+		bw1.start();
+		Thread.sleep(POLL_INTERVAL);
+		assertFalse(bw1.succeeded());
+
+		Database.getBufferPool().transactionComplete(tid);
+		while(!bw1.succeeded()) {
+			Thread.sleep(POLL_INTERVAL);
+		}
+		Database.getBufferPool().transactionComplete(tid1);
+	}
+
+	/**
+	 * A search of a transaction that has locked many keys keeps the leaf pages it
+	 * reads locked instead.
+	 */
+	@Test
+	public void searchEscalatesToPageLocks() throws Exception {
+		BTreeFile f = BTreeUtility.createBTreeFile(2, 3 * BTreeFile.KEY_LOCKS_BEFORE_ESCALATION, null, null, 0);
+
+		DbFileIterator fit = f.indexIterator(tid, new IndexPredicate(Op.LESS_THAN_OR_EQ,
+				new IntField(2 * BTreeFile.KEY_LOCKS_BEFORE_ESCALATION)));
+		fit.open();
+		Tuple last = null;
+		while(fit.hasNext()) {
+			last = fit.next();
+		}
+		fit.close();
+		assertEquals(2 * BTreeFile.KEY_LOCKS_BEFORE_ESCALATION, ((IntField) last.getField(0)).getValue());
+		assertTrue(Database.getBufferPool().keyLockCount(tid) < 2 * BTreeFile.KEY_LOCKS_BEFORE_ESCALATION);
+		assertTrue(Database.getBufferPool().holdsLock(tid, last.getRecordId().getPageId()));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
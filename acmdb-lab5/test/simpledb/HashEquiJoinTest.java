@@ -67,6 +67,103 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for HashEquiJoin.getNext() with duplicate keys on both sides:
+   * every pair is returned, and a rewind returns them again.
+   */
+  @Test public void eqJoinDuplicateKeys() throws Exception {
+    DbIterator left = TestUtil.createTupleList(width1,
+        new int[] { 1, 1,
+                    2, 2,
+                    1, 3 });
+    DbIterator right = TestUtil.createTupleList(width2,
+        new int[] { 1, 4, 4,
+                    3, 5, 5,
+                    1, 6, 6 });
+    DbIterator expected = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 1, 1, 4, 4,
+                    1, 1, 1, 6, 6,
+                    1, 3, 1, 4, 4,
+                    1, 3, 1, 6, 6 });
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, left, right);
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Counts the rows a HashEquiJoin of two tuple lists on their first fields
+   * returns, and checks them against a nested loops count.
+   */
+  private void validateSpillingJoin(int[] keys1, int[] keys2, int memoryPages) throws Exception {
+    int[] values1 = new int[keys1.length * width1];
+    for (int i = 0; i < keys1.length; i++) {
+      values1[i * width1] = keys1[i];
+      values1[i * width1 + 1] = i;
+    }
+    int[] values2 = new int[keys2.length * width2];
+    for (int i = 0; i < keys2.length; i++) {
+      values2[i * width2] = keys2[i];
+      values2[i * width2 + 1] = i;
+      values2[i * width2 + 2] = -i;
+    }
+    long expectedRows = 0, expectedSum = 0;
+    for (int i = 0; i < keys1.length; i++) {
+      for (int j = 0; j < keys2.length; j++) {
+        if (keys1[i] != keys2[j]) continue;
+        expectedRows++;
+        expectedSum += i * 31L + j;
+      }
+    }
+
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(width1, values1),
+        TestUtil.createTupleList(width2, values2), memoryPages);
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      long rows = 0, sum = 0;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        assertEquals(t.getField(0), t.getField(width1));
+        rows++;
+        sum += ((IntField) t.getField(1)).getValue() * 31L + ((IntField) t.getField(width1 + 1)).getValue();
+      }
+      assertEquals(expectedRows, rows);
+      assertEquals(expectedSum, sum);
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when child2 does not fit in the
+   * memory the join may use, so that partitions of both sides are spilled.
+   */
+  @Test public void eqJoinSpilling() throws Exception {
+    java.util.Random random = new java.util.Random(1);
+    int[] keys1 = new int[3000];
+    int[] keys2 = new int[5000];
+    for (int i = 0; i < keys1.length; i++) keys1[i] = random.nextInt(1000);
+    for (int i = 0; i < keys2.length; i++) keys2[i] = random.nextInt(1000);
+    validateSpillingJoin(keys1, keys2, 2);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.getNext() when child2 has more tuples with
+   * one key than fit in memory, so that repartitioning cannot split them.
+   */
+  @Test public void eqJoinSkewedSpilling() throws Exception {
+    int[] keys1 = new int[300];
+    int[] keys2 = new int[1000];
+    for (int i = 0; i < keys1.length; i++) keys1[i] = i % 3 == 0 ? 7 : i;
+    for (int i = 0; i < keys2.length; i++) keys2[i] = i % 10 == 0 ? i : 7;
+    validateSpillingJoin(keys1, keys2, 1);
+  }
+
     private static final int COLUMNS = 2;
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
             int table2Rows)
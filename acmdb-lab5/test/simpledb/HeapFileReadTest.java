@@ -77,6 +77,30 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on a memory mapped HeapFile
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] copied = hf.readPage(pid).getPageData();
+
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertArrayEquals(copied, page.getPageData());
+        assertEquals(484, page.getNumEmptySlots());
+
+        // pages written later are seen through the mapping, also past its old end
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+        assertEquals(485, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        HeapPage appended = new HeapPage(new HeapPageId(hf.getId(), 1), page.getPageData());
+        hf.writePage(appended);
+        assertArrayEquals(page.getPageData(),
+                hf.readPage(new HeapPageId(hf.getId(), 1)).getPageData());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -4,6 +4,10 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -43,6 +47,34 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.writePages(), with a run of adjacent pages and
+     * a page on its own
+     */
+    @Test public void writePages() throws Exception {
+        int[] pageNos = {0, 1, 2, 4};
+        List<Page> pages = new ArrayList<>();
+        for (int pageNo : pageNos) {
+            HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pageNo),
+                    HeapPage.createEmptyPageData());
+            for (int i = 0; i <= pageNo; i++)
+                page.insertTuple(Utility.getHeapTuple(pageNo * 10 + i, 2));
+            pages.add(page);
+        }
+        empty.writePages(pages);
+
+        assertEquals(5, empty.numPages());
+        for (int pageNo : pageNos) {
+            HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pageNo));
+            assertEquals(HeapPage.getNumTuples(empty.getTupleDesc()) - pageNo - 1, page.getNumEmptySlots());
+            Iterator<Tuple> it = page.iterator();
+            for (int i = 0; i <= pageNo; i++)
+                assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(pageNo * 10 + i, 2), it.next()));
+        }
+        HeapPage skipped = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 3));
+        assertEquals(HeapPage.getNumTuples(empty.getTupleDesc()), skipped.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  int[] keys1 = { 5, 17, 17, 40, 99, 200, 500 };
+  ArrayList<ArrayList<Integer>> tuples2;
+  BTreeFile file2;
+  TransactionId tid;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTables() throws Exception {
+    tuples2 = new ArrayList<ArrayList<Integer>>();
+    file2 = BTreeUtility.createRandomBTreeFile(width2, 5000, 300, null, tuples2, 0);
+    tid = new TransactionId();
+  }
+
+  /** @return the tuples {key, i} for the ith key of keys1, with fields named t1.c0 and t1.c1 */
+  private DbIterator scan1() {
+    TupleDesc td = Utility.getTupleDesc(width1, "t1.c");
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < keys1.length; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(keys1[i]));
+      t.setField(1, new IntField(i));
+      tuples.add(t);
+    }
+    return new TupleIterator(td, tuples);
+  }
+
+  /**
+   * Checks that the join returns as many tuples as there are pairs of
+   * keys1 and tuples2 that satisfy op, all of which satisfy it, before and
+   * after a rewind.
+   */
+  private void validateJoin(Predicate.Op op) throws Exception {
+    int expected = 0;
+    for (int key1 : keys1) {
+      for (ArrayList<Integer> t2 : tuples2) {
+        if (new IntField(key1).compare(op, new IntField(t2.get(0)))) expected++;
+      }
+    }
+
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    IndexNestedLoopJoin join = new IndexNestedLoopJoin(pred, scan1(),
+        new BTreeScan(tid, file2.getId(), "t2", null));
+    join.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int rows = 0;
+      while (join.hasNext()) {
+        Tuple t = join.next();
+        assertTrue(pred.filter(t, rightOf(t)));
+        rows++;
+      }
+      assertEquals(expected, rows);
+      join.rewind();
+    }
+    join.close();
+  }
+
+  private Tuple rightOf(Tuple joined) {
+    Tuple t = new Tuple(Utility.getTupleDesc(width2));
+    for (int i = 0; i < width2; i++) t.setField(i, joined.getField(width1 + i));
+    return t;
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, scan1(),
+        new BTreeScan(tid, file2.getId(), "t2", null));
+    assertEquals(width1 + width2, op.getTupleDesc().numFields());
+    assertEquals("t2.null", op.getTupleDesc().getFieldName(width1));
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext() using an = predicate
+   */
+  @Test public void eqJoin() throws Exception {
+    validateJoin(Predicate.Op.EQUALS);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getNext() using &lt; and &gt;=
+   * predicates, which look up the keys past the field of child1
+   */
+  @Test public void rangeJoin() throws Exception {
+    validateJoin(Predicate.Op.LESS_THAN);
+    validateJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+  }
+
+  /**
+   * An index nested loops join must join on the key field of the index
+   */
+  @Test(expected = IllegalArgumentException.class) public void nonKeyJoin() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    new IndexNestedLoopJoin(pred, scan1(), new BTreeScan(tid, file2.getId(), "t2", null));
+  }
+
+  /**
+   * Unit test for JoinOptimizer.instantiateJoin(): an index nested loops
+   * join over a filtered scan of the index applies the filter to its output
+   */
+  @Test public void instantiateFilteredIndexJoin() throws Exception {
+    int expected = 0;
+    for (int key1 : keys1) {
+      for (ArrayList<Integer> t2 : tuples2) {
+        if (key1 == t2.get(0) && t2.get(1) > 150) expected++;
+      }
+    }
+
+    // the fields of the B+ tree have no names, so that its key is t2.null
+    LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "c0", "null", Predicate.Op.EQUALS);
+    lj.algorithm = JoinOptimizer.JoinAlgorithm.INDEX_NESTED_LOOP;
+    DbIterator plan2 = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(150)),
+        new SeqScan(tid, file2.getId(), "t2"));
+    DbIterator join = JoinOptimizer.instantiateJoin(lj, scan1(), plan2);
+    assertTrue(join instanceof Filter);
+    assertTrue(((Filter) join).getChildren()[0] instanceof IndexNestedLoopJoin);
+
+    join.open();
+    int rows = 0;
+    while (join.hasNext()) {
+      Tuple t = join.next();
+      assertEquals(t.getField(0), t.getField(width1));
+      assertTrue(((IntField) t.getField(width1 + 1)).getValue() > 150);
+      rows++;
+    }
+    join.close();
+    assertEquals(expected, rows);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
@@ -174,4 +174,26 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+	
+	/**
+	 * Make sure that the selectivity of a range join between two histograms
+	 * is about the fraction of pairs of their values that satisfy it.
+	 */
+	@Test public void opJoinTest() {
+		IntHistogram h1 = new IntHistogram(10, 1, 100);
+		IntHistogram h2 = new IntHistogram(10, 1, 100);
+		
+		// h1 holds 1..100, h2 only the values above 50
+		for (int c = 1; c <= 100; c++) {
+			h1.addValue(c);
+			if (c > 50) h2.addValue(c);
+		}
+		
+		// Be conservative in case of alternate implementations
+		Assert.assertTrue(h1.estimateSelectivity(Op.LESS_THAN, h2) > 0.65);
+		Assert.assertTrue(h1.estimateSelectivity(Op.LESS_THAN, h2) < 0.85);
+		Assert.assertTrue(h2.estimateSelectivity(Op.LESS_THAN, h1) < 0.35);
+		Assert.assertTrue(h2.estimateSelectivity(Op.GREATER_THAN_OR_EQ, h1) > 0.65);
+		Assert.assertEquals(0.0, h1.estimateSelectivity(Op.LESS_THAN, new IntHistogram(10, 1, 100)), 0.0);
+	}
 }
@@ -621,4 +621,46 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * A join of a few tuples to a large table with a B+ tree on its primary
+     * key should look them up in the index rather than scan the table, and
+     * a join without an index should not.
+     */
+    @Test
+    public void indexJoinChosenTest() throws ParsingException, IOException,
+            DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+
+        BTreeFile unnamed = BTreeUtility.createRandomBTreeFile(3, 20000, null,
+                null, 0);
+        BTreeFile indexed = new BTreeFile(unnamed.getFile(), 0,
+                Utility.getTupleDesc(3, "c"));
+        Database.getCatalog().addTable(indexed, "indexed", "c0");
+        HeapFile small = SystemTestUtil.createRandomHeapFile(3, 10, null,
+                null, "c");
+        Database.getCatalog().addTable(small, "small");
+        stats.put("indexed", new TableStats(indexed.getId(), 1000));
+        stats.put("small", new TableStats(small.getId(), 1000));
+        filterSelectivities.put("s", 1.0);
+        filterSelectivities.put("i", 1.0);
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("s", "i", "c0", "c0", Predicate.Op.EQUALS));
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM small s, indexed i WHERE s.c0 = i.c0;"), nodes);
+        Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.INDEX_NESTED_LOOP, result.get(0).algorithm);
+        Assert.assertEquals("i", result.get(0).t2Alias);
+
+        // c1 is not the key of the tree
+        nodes.clear();
+        nodes.add(new LogicalJoinNode("s", "i", "c0", "c1", Predicate.Op.EQUALS));
+        j = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM small s, indexed i WHERE s.c0 = i.c1;"), nodes);
+        result = j.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(JoinOptimizer.JoinAlgorithm.HASH, result.get(0).algorithm);
+    }
 }
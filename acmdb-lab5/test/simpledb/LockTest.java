@@ -0,0 +1,105 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockTest extends SimpleDbTestBase {
+
+    private Lock lock;
+    private TransactionId t1, t2, t3, t4;
+
+    @Before public void setUpLock() {
+        lock = new Lock(new HeapPageId(-1, 0));
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+        t4 = new TransactionId();
+    }
+
+    /**
+     * Unit test for Lock.tryGrant(): a shared request does not barge past a
+     * queued exclusive request.
+     */
+    @Test public void noBarging() {
+        assertTrue(lock.tryGrant(t1, LockType.SHARED));
+        assertFalse(lock.tryGrant(t2, LockType.EXCLUSIVE));
+        lock.enqueue(t2, LockType.EXCLUSIVE);
+        assertFalse(lock.tryGrant(t3, LockType.SHARED));
+    }
+
+    /**
+     * Unit test for Lock.release(): waiters are granted in FIFO order and a
+     * run of shared requests is granted as one batch.
+     */
+    @Test public void fifoWithSharedBatching() {
+        assertTrue(lock.tryGrant(t1, LockType.EXCLUSIVE));
+        Lock.Request r2 = lock.enqueue(t2, LockType.SHARED);
+        Lock.Request r3 = lock.enqueue(t3, LockType.SHARED);
+        Lock.Request r4 = lock.enqueue(t4, LockType.EXCLUSIVE);
+
+        assertTrue(lock.release(t1));
+        assertTrue(r2.granted);
+        assertTrue(r3.granted);
+        assertFalse(r4.granted);
+        assertEquals(2, lock.blockers(r4).size());
+
+        lock.release(t2);
+        assertFalse(r4.granted);
+        lock.release(t3);
+        assertTrue(r4.granted);
+        assertTrue(lock.isHeldBy(t4));
+        assertFalse(lock.hasWaiters());
+    }
+
+    /**
+     * Unit test for Lock.enqueue(): an upgrade goes before other waiters.
+     */
+    @Test public void upgradeFirst() {
+        assertTrue(lock.tryGrant(t1, LockType.SHARED));
+        assertTrue(lock.tryGrant(t2, LockType.SHARED));
+        Lock.Request r3 = lock.enqueue(t3, LockType.EXCLUSIVE);
+        assertFalse(lock.tryGrant(t1, LockType.EXCLUSIVE));
+        Lock.Request r1 = lock.enqueue(t1, LockType.EXCLUSIVE);
+
+        lock.release(t2);
+        assertTrue(r1.granted);
+        assertFalse(r3.granted);
+
+        // a withdrawn request lets the next one in
+        lock.release(t1);
+        assertTrue(r3.granted);
+    }
+
+    /**
+     * Unit test for Lock.tryGrant() with intention modes: IS and IX are
+     * compatible, S waits for IX, and S joined with IX in one holder makes
+     * SIX, which only IS is compatible with.
+     */
+    @Test public void intentionModes() {
+        assertTrue(lock.tryGrant(t1, LockType.INTENTION_SHARED));
+        assertTrue(lock.tryGrant(t2, LockType.INTENTION_EXCLUSIVE));
+        assertFalse(lock.tryGrant(t3, LockType.SHARED));
+        Lock.Request r3 = lock.enqueue(t3, LockType.SHARED);
+
+        lock.release(t2);
+        assertTrue(r3.granted);
+        assertTrue(lock.tryGrant(t3, LockType.INTENTION_EXCLUSIVE));
+        assertEquals(LockType.SHARED_INTENTION_EXCLUSIVE, lock.modeOf(t3));
+        assertFalse(lock.tryGrant(t4, LockType.INTENTION_EXCLUSIVE));
+        assertTrue(lock.tryGrant(t4, LockType.INTENTION_SHARED));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockTest.class);
+    }
+}
@@ -0,0 +1,299 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    private File file;
+    private LogFile log;
+    private HeapPageId pid;
+
+    @Before public void createLog() throws IOException {
+        file = File.createTempFile("log", ".log");
+        file.deleteOnExit();
+        log = new LogFile(file);
+        pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    @After public void deleteLog() {
+        for (File f : file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName())))
+            f.delete();
+    }
+
+    private HeapPage page(int... values) throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        for (int value : values)
+            page.insertTuple(Utility.getHeapTuple(value, 2));
+        return page;
+    }
+
+    /**
+     * An UPDATE record is read back from its LSN with both page images.
+     */
+    @Test public void updateRecord() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long lsn = log.getCurrentLsn();
+        HeapPage before = page(1);
+        HeapPage after = page(1, 2);
+        log.logWrite(tid, before, after);
+        assertTrue(log.getCurrentLsn() > lsn);
+        log.force();
+
+        ByteBuffer record = log.readRecord(lsn);
+        assertNotNull(record);
+        assertEquals(LogFile.UPDATE_RECORD, record.get(LogFile.RECORD_TYPE));
+        assertEquals(tid.getId(), record.getLong(LogFile.RECORD_TID));
+        Page readBefore = log.readPageData(record);
+        Page readAfter = log.readPageData(record);
+        assertEquals(pid, readBefore.getId());
+        assertTrue(Arrays.equals(before.getPageData(), readBefore.getPageData()));
+        assertTrue(Arrays.equals(after.getPageData(), readAfter.getPageData()));
+        assertFalse(record.hasRemaining());
+    }
+
+    /**
+     * A record cut short by a crash ends the log, and the next record, here
+     * the ABORT recovery writes for the transaction, is written in its place.
+     */
+    @Test public void tornRecord() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long updateLsn = log.getCurrentLsn();
+        log.logWrite(tid, page(), page(1));
+        log.force();
+        File segment = log.segmentFileOf(updateLsn);
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(segment.length() - 10);
+        }
+
+        LogFile reopened = new LogFile(file);
+        reopened.recover();
+        assertEquals(updateLsn + LogFile.RECORD_OVERHEAD, reopened.getCurrentLsn());
+        ByteBuffer abort = reopened.readRecord(updateLsn);
+        assertEquals(LogFile.ABORT_RECORD, abort.get(LogFile.RECORD_TYPE));
+        assertEquals(tid.getId(), abort.getLong(LogFile.RECORD_TID));
+
+        // a corrupted byte is caught by the checksum
+        TransactionId other = new TransactionId();
+        reopened.logXactionBegin(other);
+        reopened.logWrite(other, page(), page(3));
+        reopened.force();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(segment.length() - 100);
+            raf.write(raf.read() ^ 1);
+        }
+        assertNull(reopened.readRecord(updateLsn + 2 * LogFile.RECORD_OVERHEAD));
+    }
+
+    /**
+     * Truncating the log at a checkpoint deletes the segments before the
+     * first record that is still needed, and keeps the LSNs of the records
+     * that remain.
+     */
+    @Test public void truncateKeepsLsns() throws Exception {
+        log = new LogFile(file, 2 * BufferPool.getPageSize());
+        TransactionId done = new TransactionId();
+        log.logXactionBegin(done);
+        long doneUpdate = log.getCurrentLsn();
+        log.logWrite(done, page(), page(1));
+        log.logCommit(done);
+        log.pageWritten(pid); // as the buffer pool does
+
+        TransactionId active = new TransactionId();
+        log.logXactionBegin(active);
+        long activeUpdate = log.getCurrentLsn();
+        log.logWrite(active, page(1), page(1, 2)); // reaches into the next segment
+        log.force();
+        assertTrue(log.segmentFileOf(doneUpdate).exists());
+        long lsnBefore = log.getCurrentLsn();
+
+        log.logCheckpoint();
+        assertFalse(log.segmentFileOf(doneUpdate).exists());
+        assertTrue(log.getCurrentLsn() > lsnBefore);
+        ByteBuffer record = log.readRecord(activeUpdate);
+        assertNotNull(record);
+        assertEquals(active.getId(), record.getLong(LogFile.RECORD_TID));
+    }
+
+    /** @return the page of table read from disk, without its first tuple */
+    private static HeapPage withoutFirstTuple(HeapFile table, HeapPageId pid) throws Exception {
+        return withoutFirstTuple(table.readPage(pid));
+    }
+
+    /** @return a copy of page without its first tuple */
+    private static HeapPage withoutFirstTuple(Page page) throws Exception {
+        HeapPage copy = new HeapPage((HeapPageId) page.getId(), page.getPageData());
+        copy.deleteTuple(copy.iterator().next());
+        return copy;
+    }
+
+    private static boolean onDisk(HeapFile table, Page page) {
+        return Arrays.equals(page.getPageData(), table.readPage(page.getId()).getPageData());
+    }
+
+    /**
+     * A rollback writes the before image of a stolen page back and logs it
+     * as a COMPENSATION record.
+     */
+    @Test public void rollbackRestoresStolenPage() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        HeapPageId stolen = new HeapPageId(table.getId(), 1);
+        Page before = table.readPage(stolen);
+        HeapPage after = withoutFirstTuple(table, stolen);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        table.writePage(after);
+        long compensationLsn = log.getCurrentLsn();
+        log.logAbort(tid);
+
+        assertTrue(onDisk(table, before));
+        assertFalse(log.isLive(tid));
+        ByteBuffer compensation = log.readRecord(compensationLsn);
+        assertEquals(LogFile.COMPENSATION_RECORD, compensation.get(LogFile.RECORD_TYPE));
+        assertTrue(Arrays.equals(before.getPageData(), log.readPageData(compensation).getPageData()));
+    }
+
+    /**
+     * Recovery redoes the committed page that was never written and undoes
+     * the page a transaction that was running at the crash had stolen,
+     * though that update is older than the last checkpoint.
+     */
+    @Test public void recoverRedoesAndUndoes() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        HeapPageId committed = new HeapPageId(table.getId(), 0), stolen = new HeapPageId(table.getId(), 1);
+        Page committedBefore = table.readPage(committed), stolenBefore = table.readPage(stolen);
+        HeapPage committedAfter = withoutFirstTuple(table, committed), stolenAfter = withoutFirstTuple(table, stolen);
+
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        log.logWrite(loser, stolenBefore, stolenAfter);
+        table.writePage(stolenAfter);
+        log.logCheckpoint();
+        TransactionId winner = new TransactionId();
+        log.logXactionBegin(winner);
+        log.logWrite(winner, committedBefore, committedAfter);
+        log.logCommit(winner);
+        assertTrue(onDisk(table, committedBefore));
+
+        LogFile reopened = new LogFile(file);
+        reopened.recover();
+        assertTrue(onDisk(table, committedAfter));
+        assertTrue(onDisk(table, stolenBefore));
+        assertFalse(reopened.isLive(loser));
+
+        // recovering again, e.g. after a crash right after recovery, changes nothing
+        new LogFile(file).recover();
+        assertTrue(onDisk(table, committedAfter));
+        assertTrue(onDisk(table, stolenBefore));
+    }
+
+    /**
+     * The second record of a page holds only the bytes that changed, and
+     * recovery redoes it on top of the whole image of the first.
+     */
+    @Test public void deltaRecordIsRedone() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        Page v0 = table.readPage(new HeapPageId(table.getId(), 0));
+        HeapPage v1 = withoutFirstTuple(v0), v2 = withoutFirstTuple(v1);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, v0, v1);
+        long deltaLsn = log.logWrite(tid, v1, v2);
+        log.logCommit(tid);
+        ByteBuffer delta = log.readRecord(deltaLsn);
+        assertEquals(LogFile.DELTA_RECORD, delta.get(LogFile.RECORD_TYPE));
+        assertTrue(delta.capacity() < 100);
+
+        new LogFile(file).recover();
+        assertTrue(onDisk(table, v2));
+    }
+
+    /**
+     * Redo on several threads replays the DELTA records of each page in
+     * order, on top of the version of the page read from disk.
+     */
+    @Test public void parallelRedo() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 5000, null, null);
+        int pages = table.numPages();
+        List<HeapPage> last = new ArrayList<>();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        for (int pageNo = 0; pageNo < pages; pageNo++) {
+            HeapPageId pid = new HeapPageId(table.getId(), pageNo);
+            Page v0 = table.readPage(pid);
+            HeapPage v1 = withoutFirstTuple(v0), v2 = withoutFirstTuple(v1), v3 = withoutFirstTuple(v2);
+            log.logWrite(tid, v0, v1);
+            table.writePage(v1);
+            log.pageWritten(pid); // as the buffer pool does
+            log.logWrite(tid, v1, v2);
+            log.logWrite(tid, v2, v3);
+            last.add(v3);
+        }
+        log.logCommit(tid);
+
+        LogFile reopened = new LogFile(file);
+        reopened.setRedoThreads(4);
+        reopened.recover();
+        for (HeapPage page : last)
+            assertTrue(onDisk(table, page));
+    }
+
+    /** A rollback undoes the records of a stolen page newest first, from its version on disk. */
+    @Test public void rollbackUndoesDeltaRecords() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        Page v0 = table.readPage(new HeapPageId(table.getId(), 1));
+        HeapPage v1 = withoutFirstTuple(v0), v2 = withoutFirstTuple(v1);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, v0, v1);
+        table.writePage(v1);
+        log.logWrite(tid, v1, v2);
+        table.writePage(v2);
+        log.logAbort(tid);
+        assertTrue(onDisk(table, v0));
+    }
+
+    /** The first record of a page after a checkpoint holds its whole image again. */
+    @Test public void wholeImageAfterCheckpoint() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, page(), page(1));
+        long deltaLsn = log.logWrite(tid, page(1), page(1, 2));
+        log.logCheckpoint();
+        long updateLsn = log.logWrite(tid, page(1, 2), page(1, 2, 3));
+        log.force();
+        assertEquals(LogFile.DELTA_RECORD, log.readRecord(deltaLsn).get(LogFile.RECORD_TYPE));
+        assertEquals(LogFile.UPDATE_RECORD, log.readRecord(updateLsn).get(LogFile.RECORD_TYPE));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
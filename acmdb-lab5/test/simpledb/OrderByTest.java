@@ -0,0 +1,166 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  /** @return the tuples {random value below range, i} for i up to rows */
+  private List<Tuple> randomTuples(int rows, int range) {
+    TupleDesc td = Utility.getTupleDesc(2);
+    Random random = new Random(rows);
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < rows; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(random.nextInt(range) - range / 2));
+      t.setField(1, new IntField(i));
+      tuples.add(t);
+    }
+    return tuples;
+  }
+
+  /** @return the tuples as strings, to compare them by their fields */
+  private List<String> rows(List<Tuple> tuples) {
+    List<String> rows = new ArrayList<String>();
+    for (Tuple t : tuples) rows.add(t.toString());
+    return rows;
+  }
+
+  /**
+   * Checks that the sort returns the tuples in the order of the comparator,
+   * which keeps tuples it finds equal in the order of the input, before and
+   * after a rewind.
+   */
+  private void validateSort(OrderBy sort, List<Tuple> tuples, Comparator<Tuple> order, int limit)
+      throws Exception {
+    List<Tuple> expected = new ArrayList<Tuple>(tuples);
+    Collections.sort(expected, order);
+    if (limit < expected.size()) expected = expected.subList(0, limit);
+
+    sort.open();
+    for (int pass = 0; pass < 2; pass++) {
+      List<Tuple> actual = new ArrayList<Tuple>();
+      while (sort.hasNext()) actual.add(sort.next());
+      assertEquals(rows(expected), rows(actual));
+      sort.rewind();
+    }
+    sort.close();
+  }
+
+  private static Comparator<Tuple> byInt(final int field, final boolean asc) {
+    return new Comparator<Tuple>() {
+      public int compare(Tuple a, Tuple b) {
+        int c = Integer.compare(((IntField) a.getField(field)).getValue(),
+            ((IntField) b.getField(field)).getValue());
+        return asc ? c : -c;
+      }
+    };
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() on one field, ascending and descending,
+   * in memory
+   */
+  @Test public void sortInMemory() throws Exception {
+    List<Tuple> tuples = randomTuples(1000, 100);
+    TupleDesc td = Utility.getTupleDesc(2);
+    validateSort(new OrderBy(0, true, new TupleIterator(td, tuples)), tuples, byInt(0, true), tuples.size());
+    validateSort(new OrderBy(0, false, new TupleIterator(td, tuples)), tuples, byInt(0, false), tuples.size());
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() on several fields, the second descending
+   */
+  @Test public void sortMultipleFields() throws Exception {
+    List<Tuple> tuples = randomTuples(1000, 10);
+    final Comparator<Tuple> first = byInt(0, true), second = byInt(1, false);
+    Comparator<Tuple> order = new Comparator<Tuple>() {
+      public int compare(Tuple a, Tuple b) {
+        int c = first.compare(a, b);
+        return c != 0 ? c : second.compare(a, b);
+      }
+    };
+    OrderBy sort = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+        new TupleIterator(Utility.getTupleDesc(2), tuples));
+    validateSort(sort, tuples, order, tuples.size());
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() when the tuples do not fit in memory:
+   * they are sorted in runs, which take more than one pass to merge
+   */
+  @Test public void sortExternal() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(2);
+    // a budget of two pages, so that runs are merged two at a time
+    List<Tuple> tuples = randomTuples(HeapPage.getNumTuples(td) * 2 * 9 + 17, 1000);
+    validateSort(new OrderBy(new int[] { 0 }, new boolean[] { true }, new TupleIterator(td, tuples),
+        OrderBy.NO_LIMIT, 2), tuples, byInt(0, true), tuples.size());
+    validateSort(new OrderBy(new int[] { 0 }, new boolean[] { false }, new TupleIterator(td, tuples),
+        OrderBy.NO_LIMIT, 2), tuples, byInt(0, false), tuples.size());
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() with a limit, picked with a heap when it
+   * fits in memory, and out of the external sort otherwise
+   */
+  @Test public void sortWithLimit() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(2);
+    List<Tuple> tuples = randomTuples(HeapPage.getNumTuples(td) * 5, 50);
+    for (int limit : new int[] { 0, 1, 37, HeapPage.getNumTuples(td) * 3 }) {
+      validateSort(new OrderBy(new int[] { 0 }, new boolean[] { false }, new TupleIterator(td, tuples),
+          limit, 2), tuples, byInt(0, false), limit);
+    }
+  }
+
+  /**
+   * Unit test for OrderBy.getNext() on strings, where one is a prefix of
+   * another
+   */
+  @Test public void sortStrings() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE });
+    String[] values = { "b", "ab", "", "a", "abc", "b", "a\u0000", "é", "B" };
+    List<Tuple> tuples = new ArrayList<Tuple>();
+    for (String v : values) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new StringField(v, Type.STRING_LEN));
+      tuples.add(t);
+    }
+    for (final boolean asc : new boolean[] { true, false }) {
+      Comparator<Tuple> order = new Comparator<Tuple>() {
+        public int compare(Tuple a, Tuple b) {
+          int c = ((StringField) a.getField(0)).getValue().compareTo(((StringField) b.getField(0)).getValue());
+          return asc ? c : -c;
+        }
+      };
+      validateSort(new OrderBy(0, asc, new TupleIterator(td, tuples)), tuples, order, tuples.size());
+    }
+  }
+
+  /**
+   * An empty child is sorted into no tuples
+   */
+  @Test public void sortEmpty() throws Exception {
+    OrderBy sort = new OrderBy(0, true, new TupleIterator(Utility.getTupleDesc(2), new ArrayList<Tuple>()));
+    sort.open();
+    assertFalse(sort.hasNext());
+    sort.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageReplacerTest extends SimpleDbTestBase {
+
+    private static HeapPageId pid(int pgNo) {
+        return new HeapPageId(-1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockReplacer: a hit gives the page a second chance.
+     */
+    @Test public void clockSecondChance() {
+        PageReplacer replacer = PageReplacer.create(ReplacementPolicy.CLOCK);
+        for (int i = 0; i < 3; i++)
+            replacer.admit(pid(i));
+        assertEquals(3, replacer.size());
+
+        // every bit is set, so the first sweep clears them and picks page 0
+        assertEquals(pid(0), replacer.victim(p -> true));
+        replacer.remove(pid(0));
+
+        replacer.access(pid(1));
+        assertEquals(pid(2), replacer.victim(p -> true));
+    }
+
+    /**
+     * Unit test for the scan resistant CLOCK: a page that keeps being hit
+     * outlives a scan, while plain CLOCK lets the scan push it out.
+     */
+    @Test public void scanResistantClock() {
+        assertEquals(0, scanSurvivors(ReplacementPolicy.CLOCK));
+        assertEquals(1, scanSurvivors(ReplacementPolicy.SCAN_RESISTANT_CLOCK));
+    }
+
+    private static int scanSurvivors(ReplacementPolicy policy) {
+        PageReplacer replacer = PageReplacer.create(policy);
+        replacer.admit(pid(0));
+        int survivors = 1;
+        for (int i = 1; i < 10; i++) {
+            if (survivors == 1) replacer.access(pid(0));
+            replacer.admit(pid(i));
+            PageId victim = replacer.victim(p -> true);
+            if (victim.equals(pid(0))) survivors = 0;
+            replacer.remove(victim);
+        }
+        return survivors;
+    }
+
+    /**
+     * Unit test for LruKReplacer: pages referenced fewer than K times go first.
+     */
+    @Test public void lruK() {
+        PageReplacer replacer = PageReplacer.create(ReplacementPolicy.LRU_K);
+        replacer.admit(pid(0));
+        replacer.access(pid(0));
+        replacer.admit(pid(1));
+        replacer.access(pid(1));
+
+        // a "scan" over many pages never displaces pages 0 and 1
+        for (int i = 2; i < 100; i++) {
+            replacer.admit(pid(i));
+            PageId victim = replacer.victim(p -> true);
+            assertEquals(pid(i), victim);
+            replacer.remove(victim);
+        }
+
+        // among hot pages the least recently used one goes
+        replacer.access(pid(0));
+        assertEquals(pid(1), replacer.victim(p -> true));
+    }
+
+    /**
+     * Unit test for PageReplacer.victim() when nothing may be evicted.
+     */
+    @Test public void noEvictablePage() {
+        for (ReplacementPolicy policy : ReplacementPolicy.values()) {
+            PageReplacer replacer = PageReplacer.create(policy);
+            replacer.admit(pid(0));
+            replacer.admit(pid(1));
+            assertNull(replacer.victim(p -> false));
+            assertEquals(pid(1), replacer.victim(p -> p.equals(pid(1))));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageReplacerTest.class);
+    }
+}
@@ -0,0 +1,143 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  // the join fields are in ascending order, with repeated keys on both sides
+  int[] keys1 = { 1, 3, 3, 4, 7, 7, 7, 9, 12 };
+  int[] keys2 = { 0, 3, 3, 3, 5, 7, 7, 9, 9, 10 };
+
+  /** @return the tuples {key, i, ...} for the ith key, with fields named prefix0, prefix1, ... */
+  private DbIterator scan(int[] keys, int width, String prefix) {
+    TupleDesc td = Utility.getTupleDesc(width, prefix);
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < keys.length; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(keys[i]));
+      for (int j = 1; j < width; j++) t.setField(j, new IntField(i));
+      tuples.add(t);
+    }
+    return new TupleIterator(td, tuples);
+  }
+
+  /** @return the pairs of keys1 and keys2 that satisfy op */
+  private int expected(Predicate.Op op) {
+    int expected = 0;
+    for (int key1 : keys1) {
+      for (int key2 : keys2) {
+        if (new IntField(key1).compare(op, new IntField(key2))) expected++;
+      }
+    }
+    return expected;
+  }
+
+  /**
+   * Checks that the join returns as many tuples as there are pairs of keys1
+   * and keys2 that satisfy its predicate, all of which satisfy it, in
+   * ascending order of its sorted field, before and after a rewind.
+   */
+  private void validateJoin(DbIterator join, Predicate.Op op) throws Exception {
+    int sortedField = join instanceof SortMergeJoin ? ((SortMergeJoin) join).getSortedField() : 0;
+    join.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int rows = 0;
+      int last = Integer.MIN_VALUE;
+      while (join.hasNext()) {
+        Tuple t = join.next();
+        assertTrue(t.getField(0).compare(op, t.getField(width1)));
+        int sorted = ((IntField) t.getField(sortedField)).getValue();
+        assertTrue(last <= sorted);
+        last = sorted;
+        rows++;
+      }
+      assertEquals(expected(op), rows);
+      join.rewind();
+    }
+    join.close();
+  }
+
+  private SortMergeJoin join(Predicate.Op op) {
+    return new SortMergeJoin(new JoinPredicate(0, op, 0),
+        scan(keys1, width1, "t1.c"), scan(keys2, width2, "t2.c"));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    SortMergeJoin op = join(Predicate.Op.EQUALS);
+    assertEquals(width1 + width2, op.getTupleDesc().numFields());
+    assertEquals("t2.c0", op.getTupleDesc().getFieldName(width1));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getSortedField(): the output is in order of
+   * the field of child2 for &lt; and &lt;=, and of child1 otherwise
+   */
+  @Test public void getSortedField() {
+    assertEquals(0, join(Predicate.Op.EQUALS).getSortedField());
+    assertEquals(0, join(Predicate.Op.GREATER_THAN).getSortedField());
+    assertEquals(width1, join(Predicate.Op.LESS_THAN_OR_EQ).getSortedField());
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate, where both
+   * children repeat keys
+   */
+  @Test public void eqJoin() throws Exception {
+    validateJoin(join(Predicate.Op.EQUALS), Predicate.Op.EQUALS);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using &gt;, &gt;=, &lt; and &lt;=
+   * predicates
+   */
+  @Test public void rangeJoin() throws Exception {
+    validateJoin(join(Predicate.Op.GREATER_THAN), Predicate.Op.GREATER_THAN);
+    validateJoin(join(Predicate.Op.GREATER_THAN_OR_EQ), Predicate.Op.GREATER_THAN_OR_EQ);
+    validateJoin(join(Predicate.Op.LESS_THAN), Predicate.Op.LESS_THAN);
+    validateJoin(join(Predicate.Op.LESS_THAN_OR_EQ), Predicate.Op.LESS_THAN_OR_EQ);
+  }
+
+  /**
+   * A sort-merge join cannot join on != or LIKE
+   */
+  @Test(expected = IllegalArgumentException.class) public void notEqualsJoin() {
+    join(Predicate.Op.NOT_EQUALS);
+  }
+
+  /**
+   * Unit test for JoinOptimizer.instantiateJoin(): a sort-merge join of
+   * unsorted children sorts them first
+   */
+  @Test public void instantiateUnsortedJoin() throws Exception {
+    keys1 = new int[] { 7, 3, 12, 1, 7, 9, 3, 4, 7 };
+    keys2 = new int[] { 9, 3, 10, 0, 7, 3, 5, 9, 3, 7 };
+    LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "c0", "c0", Predicate.Op.LESS_THAN);
+    lj.algorithm = JoinOptimizer.JoinAlgorithm.SORT_MERGE;
+    DbIterator join = JoinOptimizer.instantiateJoin(lj,
+        scan(keys1, width1, "t1.c"), scan(keys2, width2, "t2.c"));
+    assertTrue(join instanceof SortMergeJoin);
+    assertTrue(((SortMergeJoin) join).getChildren()[0] instanceof OrderBy);
+    assertTrue(((SortMergeJoin) join).getChildren()[1] instanceof OrderBy);
+    validateJoin(join, Predicate.Op.LESS_THAN);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
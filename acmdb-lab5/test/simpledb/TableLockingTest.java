@@ -0,0 +1,186 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TableLockingTest extends SimpleDbTestBase {
+
+    /** Time to wait before checking the state of lock contention, in ms */
+    private static final int TIMEOUT = 100;
+
+    /** Wide tuples, so that a table with enough pages to be escalated has few tuples. */
+    private static final int COLUMNS = 64;
+
+    private HeapFile table;
+    private int rows;
+    private TransactionId tid1, tid2;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (COLUMNS * Type.INT_TYPE.getLen() * 8 + 1);
+        rows = (LockManager.PAGE_LOCKS_BEFORE_ESCALATION + 10) * tuplesPerPage;
+        table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, null, null);
+        assertTrue(table.numPages() > LockManager.PAGE_LOCKS_BEFORE_ESCALATION);
+        // room for every page of the table, as the writes are not logged
+        bp = Database.resetBufferPool(2 * table.numPages());
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        bp.transactionComplete(tid1);
+        bp.transactionComplete(tid2);
+    }
+
+    /**
+     * A table lock grants its mode on every page of the table, and the
+     * intention locks of other transactions conflict with it as they should.
+     */
+    @Test public void tableLockCoversPages() throws Exception {
+        PageId p0 = new HeapPageId(table.getId(), 0);
+        PageId p1 = new HeapPageId(table.getId(), 1);
+        bp.lockTable(tid1, table.getId(), Permissions.READ_ONLY);
+        assertTrue(bp.holdsLock(tid1, p1));
+        assertFalse(bp.holdsLock(tid1, p1, Permissions.READ_WRITE));
+
+        // IS is compatible with S, IX is not
+        grabLock(tid2, p0, Permissions.READ_ONLY, true);
+        grabLock(new TransactionId(), p1, Permissions.READ_WRITE, false);
+    }
+
+    /**
+     * A scan of more pages than the escalation threshold ends up holding a
+     * shared lock on the table.
+     */
+    @Test public void scanEscalatesToTableLock() throws Exception {
+        assertEquals(rows, scan(tid1));
+        assertTrue(bp.holdsTableLock(tid1, table.getId(), Permissions.READ_ONLY));
+        assertFalse(bp.holdsTableLock(tid1, table.getId(), Permissions.READ_WRITE));
+        grabLock(tid2, new HeapPageId(table.getId(), 0), Permissions.READ_WRITE, false);
+    }
+
+    /**
+     * The pages written after the page locks were escalated to an exclusive
+     * table lock are restored when the transaction aborts.
+     */
+    @Test public void escalatedWritesRollBack() throws Exception {
+        SeqScan scan = new SeqScan(tid1, table.getId());
+        scan.open();
+        int lastPage = -1;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            if (t.getRecordId().getPageId().pageNumber() == lastPage) continue;
+            lastPage = t.getRecordId().getPageId().pageNumber();
+            bp.deleteTuple(tid1, t);
+        }
+        scan.close();
+        assertTrue(bp.holdsTableLock(tid1, table.getId(), Permissions.READ_WRITE));
+        assertEquals(rows - table.numPages(), scan(tid1));
+
+        bp.transactionComplete(tid1, false);
+        assertEquals(rows, scan(tid2));
+    }
+
+    /**
+     * The planner has a full scan of a large table lock the table when it
+     * is opened.
+     */
+    @Test public void plannerLocksLargeTables() throws Exception {
+        String name = Database.getCatalog().getTableName(table.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), name);
+        lp.addProjectField("null.*", null);
+
+        DbIterator plan = lp.physicalPlan(tid1, stats, false);
+        plan.open();
+        assertTrue(bp.holdsTableLock(tid1, table.getId(), Permissions.READ_ONLY));
+        plan.close();
+    }
+
+    /**
+     * A snapshot reads a large table without locking it, so an insert into
+     * the table runs while the snapshot scan is open.
+     */
+    @Test public void snapshotScanDoesNotBlockInserts() throws Exception {
+        bp.getVersionStore().beginSnapshot(tid1);
+        String name = Database.getCatalog().getTableName(table.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(table.getId(), 1));
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), name);
+        lp.addProjectField("null.*", null);
+
+        DbIterator plan = lp.physicalPlan(tid1, stats, false);
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        assertEquals(rows, count);
+        assertFalse(bp.holdsTableLock(tid1, table.getId(), Permissions.READ_ONLY));
+
+        Tuple t = new Tuple(table.getTupleDesc());
+        for (int i = 0; i < COLUMNS; i++)
+            t.setField(i, new IntField(i));
+        final Exception[] error = new Exception[1];
+        Thread writer = new Thread(() -> {
+            try {
+                bp.insertTuple(tid2, table.getId(), t);
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        });
+        writer.start();
+        writer.join(TIMEOUT);
+        assertFalse(writer.isAlive());
+        assertNull(error[0]);
+        plan.close();
+    }
+
+    /** @return the number of tuples of the table tid sees */
+    private int scan(TransactionId tid) throws Exception {
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
+    /** Try to lock the page in a new thread, and check whether it got the lock after TIMEOUT. */
+    private void grabLock(TransactionId tid, PageId pid, Permissions perm, boolean expected) throws Exception {
+        TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
+        t.start();
+        Thread.sleep(TIMEOUT);
+        assertEquals(expected, t.acquired());
+        assertNull(t.getError());
+        t.stop();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TableLockingTest.class);
+    }
+}
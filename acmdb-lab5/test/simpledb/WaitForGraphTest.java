@@ -0,0 +1,68 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class WaitForGraphTest extends SimpleDbTestBase {
+
+    private WaitForGraph graph;
+    private Lock l0, l1, l2;
+    private TransactionId t1, t2, t3;
+
+    @Before public void setUpGraph() {
+        graph = new WaitForGraph();
+        l0 = new Lock(new HeapPageId(-1, 0));
+        l1 = new Lock(new HeapPageId(-1, 1));
+        l2 = new Lock(new HeapPageId(-1, 2));
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    /**
+     * Unit test for WaitForGraph.waitFor(): the youngest member of a cycle is
+     * the victim, whichever transaction closes it.
+     */
+    @Test public void youngestVictim() {
+        assertNull(graph.waitFor(t3, l1, Collections.singleton(t2)));
+        assertNull(graph.waitFor(t2, l0, Collections.singleton(t1)));
+        assertEquals(t3, graph.waitFor(t1, l2, Collections.singleton(t3)));
+        assertTrue(graph.isVictim(t3));
+        assertFalse(graph.isVictim(t1));
+
+        // the cycle is being broken, so nobody else is chosen
+        assertNull(graph.waitFor(t2, l0, Collections.singleton(t1)));
+    }
+
+    /**
+     * Unit test for WaitForGraph.released(): a released lock no longer
+     * closes a cycle.
+     */
+    @Test public void released() {
+        assertNull(graph.waitFor(t1, l1, Collections.singleton(t2)));
+        graph.released(l1, t2);
+        assertNull(graph.waitFor(t2, l0, Collections.singleton(t1)));
+
+        graph.remove(t1);
+        assertTrue(graph.waitedLocks(t1).isEmpty());
+        assertNull(graph.waitFor(t1, l1, Collections.singleton(t2)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WaitForGraphTest.class);
+    }
+}
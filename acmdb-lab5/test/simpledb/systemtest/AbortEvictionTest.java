@@ -9,7 +9,8 @@ import org.junit.Test;
 
 public class AbortEvictionTest extends SimpleDbTestBase {
     /** Aborts a transaction and ensures that its effects were actually undone.
-     * This requires dirty pages to <em>not</em> get flushed to disk.
+     * The pool is too small to keep the dirty page, so this requires the
+     * abort to undo the page that was stolen.
      */
     @Test public void testDoNotEvictDirtyPages()
             throws IOException, DbException, TransactionAbortedException {
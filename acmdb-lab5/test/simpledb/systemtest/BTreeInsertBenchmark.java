@@ -0,0 +1,75 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Concurrent inserts into a B+ tree against the number of threads. The
+ * tree starts with a few levels of tuples; every thread then runs
+ * transactions that insert a few tuples with keys drawn uniformly from the
+ * whole key range, and retries the aborted ones. Reports the committed
+ * inserts per second and the aborts for each number of threads.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=BTreeInsertBenchmark -Dargs="tuples seconds tuplesPerXact threads..."</tt>.
+ */
+public class BTreeInsertBenchmark {
+
+    private static final int POOL_PAGES = 20 * 1000;
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 100 * 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int tuplesPerXact = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        ArrayList<Integer> threadCounts = new ArrayList<>();
+        for (int i = 3; i < args.length; i++)
+            threadCounts.add(Integer.parseInt(args[i]));
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(1);
+            threadCounts.add(2);
+            threadCounts.add(4);
+            threadCounts.add(8);
+        }
+
+        for (int threads : threadCounts) {
+            BTreeFile tree = BTreeUtility.createRandomBTreeFile(2, tuples, null, null, 0);
+            Database.resetBufferPool(POOL_PAGES);
+            AtomicLong inserts = new AtomicLong(), aborts = new AtomicLong();
+            long deadline = System.nanoTime() + seconds * 1000L * 1000 * 1000;
+
+            ArrayList<Thread> workers = new ArrayList<>();
+            for (int w = 0; w < threads; w++) {
+                Random random = new Random(w);
+                workers.add(new Thread(() -> {
+                    while (System.nanoTime() < deadline) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        try {
+                            try {
+                                for (int i = 0; i < tuplesPerXact; i++)
+                                    Database.getBufferPool().insertTuple(t.getId(), tree.getId(),
+                                            BTreeUtility.getBTreeTuple(random.nextInt(BTreeUtility.MAX_RAND_VALUE), 2));
+                                t.commit();
+                                inserts.addAndGet(tuplesPerXact);
+                            } catch (TransactionAbortedException e) {
+                                t.abort();
+                                aborts.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+            }
+            for (Thread worker : workers)
+                worker.start();
+            for (Thread worker : workers)
+                worker.join();
+            System.out.printf("%2d threads: %8.0f inserts/s %6d aborts%n",
+                    threads, (double) inserts.get() / seconds, aborts.get());
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,89 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+import simpledb.Predicate.Op;
+
+/**
+ * Short transactions on the hot keys of a small B+ tree against the number
+ * of threads. Every transaction looks a few random keys up through the
+ * index and updates every other one it reads, by deleting the tuple and
+ * inserting it again with its second field incremented; aborted
+ * transactions are retried. Reports the committed transactions per second
+ * and the aborts for each number of threads.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=BTreeUpdateBenchmark -Dargs="keys seconds keysPerXact threads..."</tt>.
+ */
+public class BTreeUpdateBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int keysPerXact = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        ArrayList<Integer> threadCounts = new ArrayList<>();
+        for (int i = 3; i < args.length; i++)
+            threadCounts.add(Integer.parseInt(args[i]));
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(1);
+            threadCounts.add(2);
+            threadCounts.add(4);
+            threadCounts.add(8);
+        }
+
+        for (int threads : threadCounts) {
+            BTreeFile tree = BTreeUtility.createBTreeFile(2, keys, null, null, 0);
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 10);
+            AtomicLong commits = new AtomicLong(), aborts = new AtomicLong();
+            long deadline = System.nanoTime() + seconds * 1000L * 1000 * 1000;
+
+            ArrayList<Thread> workers = new ArrayList<>();
+            for (int w = 0; w < threads; w++) {
+                Random random = new Random(w);
+                workers.add(new Thread(() -> {
+                    while (System.nanoTime() < deadline) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        try {
+                            try {
+                                for (int i = 0; i < keysPerXact; i++)
+                                    readAndUpdate(t.getId(), tree, 1 + random.nextInt(keys), i % 2 == 1);
+                                t.commit();
+                                commits.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                t.abort();
+                                aborts.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }));
+            }
+            for (Thread worker : workers)
+                worker.start();
+            for (Thread worker : workers)
+                worker.join();
+            System.out.printf("%2d threads: %8.0f xacts/s %6d aborts%n",
+                    threads, (double) commits.get() / seconds, aborts.get());
+        }
+        System.exit(0);
+    }
+
+    /** Look the key up, and replace its tuple by one with the second field incremented if update is set. */
+    private static void readAndUpdate(TransactionId tid, BTreeFile tree, int key, boolean update)
+            throws Exception {
+        DbFileIterator it = tree.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        Tuple found = it.hasNext() ? it.next() : null;
+        it.close();
+        if (found == null || !update) return;
+        Database.getBufferPool().deleteTuple(tid, found);
+        Tuple updated = new Tuple(found.getTupleDesc());
+        updated.setField(0, found.getField(0));
+        updated.setField(1, new IntField(((IntField) found.getField(1)).getValue() + 1));
+        Database.getBufferPool().insertTuple(tid, tree.getId(), updated);
+    }
+}
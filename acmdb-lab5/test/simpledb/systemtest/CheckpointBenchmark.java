@@ -0,0 +1,104 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import simpledb.*;
+
+/**
+ * Latency of small insert transactions while checkpoints are taken. Writer
+ * threads each insert a few tuples into tables of their own and commit,
+ * and another thread takes a checkpoint at a fixed interval, unless it is
+ * 0. Reports the latency of the transactions, from start to commit, and
+ * the time the checkpoints took.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=CheckpointBenchmark -Dargs="writers tuplesPerXact checkpointMillis seconds"</tt>.
+ */
+public class CheckpointBenchmark {
+
+    private static final int COLUMNS = 2;
+    private static final int TABLES_PER_WRITER = 8;
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int tuplesPerXact = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long checkpointMillis = args.length > 2 ? Long.parseLong(args[2]) : 500;
+        double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 10;
+
+        Database.resetBufferPool(4000);
+        List<List<HeapFile>> tables = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            List<HeapFile> writerTables = new ArrayList<>();
+            for (int j = 0; j < TABLES_PER_WRITER; j++) {
+                File file = File.createTempFile("checkpoint", ".dat");
+                file.deleteOnExit();
+                writerTables.add(Utility.createEmptyHeapFile(file.getPath(), COLUMNS));
+            }
+            tables.add(writerTables);
+        }
+
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        List<List<Long>> latencies = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (List<HeapFile> writerTables : tables) {
+            List<Long> xacts = new ArrayList<>();
+            latencies.add(xacts);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int value = 0; System.nanoTime() < deadline; ) {
+                        long start = System.nanoTime();
+                        Transaction t = new Transaction();
+                        t.start();
+                        for (int i = 0; i < tuplesPerXact; i++)
+                            Database.getBufferPool().insertTuple(t.getId(),
+                                    writerTables.get(i % TABLES_PER_WRITER).getId(),
+                                    Utility.getHeapTuple(value++, COLUMNS));
+                        t.commit();
+                        xacts.add(System.nanoTime() - start);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        List<Long> checkpoints = new ArrayList<>();
+        Thread checkpointer = new Thread(() -> {
+            try {
+                while (System.nanoTime() < deadline) {
+                    Thread.sleep(checkpointMillis);
+                    long start = System.nanoTime();
+                    Database.getLogFile().logCheckpoint();
+                    checkpoints.add(System.nanoTime() - start);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        for (Thread thread : threads)
+            thread.start();
+        if (checkpointMillis > 0) checkpointer.start();
+        for (Thread thread : threads)
+            thread.join();
+        if (checkpointMillis > 0) checkpointer.join();
+
+        List<Long> all = new ArrayList<>();
+        for (List<Long> xacts : latencies)
+            all.addAll(xacts);
+        Collections.sort(all);
+        Collections.sort(checkpoints);
+        System.out.printf("%d writers, %d tuples/xact: %8.0f xacts/s  latency p50 %6.2f ms  p99 %6.2f ms  max %7.2f ms%n",
+                writers, tuplesPerXact, all.size() / seconds, percentile(all, 0.5), percentile(all, 0.99),
+                all.get(all.size() - 1) / 1e6);
+        if (!checkpoints.isEmpty())
+            System.out.printf("%d checkpoints: p50 %7.2f ms  max %7.2f ms%n",
+                    checkpoints.size(), percentile(checkpoints, 0.5), checkpoints.get(checkpoints.size() - 1) / 1e6);
+        System.exit(0);
+    }
+
+    /** @return the given percentile of the sorted nanosecond times, in milliseconds */
+    private static double percentile(List<Long> sorted, double p) {
+        return sorted.get((int) Math.min(sorted.size() - 1, p * sorted.size())) / 1e6;
+    }
+}
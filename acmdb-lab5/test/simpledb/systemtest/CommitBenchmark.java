@@ -0,0 +1,82 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import simpledb.*;
+
+/**
+ * Commit latency and throughput of several writer threads, each inserting
+ * into tables of its own so that they do not wait for each other's locks.
+ * A transaction inserts enough tuples to dirty a number of pages, spread
+ * over one or more tables, and then commits through Transaction.commit,
+ * which logs them and forces the log.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=CommitBenchmark -Dargs="writers pagesPerXact seconds tablesPerXact"</tt>.
+ */
+public class CommitBenchmark {
+
+    private static final int COLUMNS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int pagesPerXact = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+        int tablesPerXact = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, 4 * writers * pagesPerXact));
+        int tuplesPerXact = pagesPerXact * BufferPool.getPageSize() * 8
+                / (Utility.getTupleDesc(COLUMNS).getSize() * 8 + 1);
+        List<List<HeapFile>> tables = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            List<HeapFile> writerTables = new ArrayList<>();
+            for (int j = 0; j < tablesPerXact; j++) {
+                File file = File.createTempFile("commit", ".dat");
+                file.deleteOnExit();
+                writerTables.add(Utility.createEmptyHeapFile(file.getPath(), COLUMNS));
+            }
+            tables.add(writerTables);
+        }
+
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        List<List<Long>> latencies = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (List<HeapFile> writerTables : tables) {
+            List<Long> commits = new ArrayList<>();
+            latencies.add(commits);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int value = 0; System.nanoTime() < deadline; ) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        for (int i = 0; i < tuplesPerXact; i++)
+                            Database.getBufferPool().insertTuple(t.getId(),
+                                    writerTables.get(i % tablesPerXact).getId(),
+                                    Utility.getHeapTuple(value++, COLUMNS));
+                        long start = System.nanoTime();
+                        t.commit();
+                        commits.add(System.nanoTime() - start);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] all = latencies.stream().flatMap(List::stream).mapToLong(Long::longValue).toArray();
+        Arrays.sort(all);
+        System.out.printf("writers=%d pages/xact=%d tables/xact=%d: %8.1f commits/s %10.1f pages/s"
+                        + "  commit latency p50=%.2f ms p99=%.2f ms%n",
+                writers, pagesPerXact, tablesPerXact, all.length / elapsed, all.length * pagesPerXact / elapsed,
+                all[all.length / 2] / 1e6, all[Math.min(all.length - 1, all.length * 99 / 100)] / 1e6);
+        for (List<HeapFile> writerTables : tables)
+            for (HeapFile table : writerTables)
+                table.getFreeSpaceMap().getFile().delete();
+    }
+}
@@ -0,0 +1,206 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Runs one SeqScan per thread against the buffer pool and checks that every
+ * scan sees the whole table. Prints the scan throughput for one thread and
+ * for several threads, to see whether read-mostly workloads scale with cores.
+ */
+public class ConcurrentScanTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+    private static final int ROWS = 20000;
+    private static final int SCANS_PER_THREAD = 50;
+
+    /** Scans the given table SCANS_PER_THREAD times, each in its own transaction. */
+    private static class ScanThread extends Thread {
+        private final int tableId;
+        private final AtomicReference<Throwable> error;
+
+        ScanThread(int tableId, AtomicReference<Throwable> error) {
+            this.tableId = tableId;
+            this.error = error;
+        }
+
+        @Override public void run() {
+            try {
+                for (int i = 0; i < SCANS_PER_THREAD; i++) {
+                    TransactionId tid = new TransactionId();
+                    SeqScan scan = new SeqScan(tid, tableId, "");
+                    scan.open();
+                    int count = 0;
+                    while (scan.hasNext()) {
+                        scan.next();
+                        count++;
+                    }
+                    scan.close();
+                    Database.getBufferPool().transactionComplete(tid);
+                    assertEquals(ROWS, count);
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        }
+    }
+
+    /** Runs one ScanThread per table and returns the elapsed time in ms. */
+    private long runScans(ArrayList<HeapFile> tables) throws Throwable {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        ArrayList<ScanThread> threads = new ArrayList<>();
+        for (HeapFile table : tables)
+            threads.add(new ScanThread(table.getId(), error));
+
+        long start = System.currentTimeMillis();
+        for (ScanThread thread : threads)
+            thread.start();
+        for (ScanThread thread : threads)
+            thread.join();
+        long elapsed = System.currentTimeMillis() - start;
+
+        if (error.get() != null) throw error.get();
+        return elapsed;
+    }
+
+    private void report(String name, int threads, long elapsedMs) {
+        double tuplesPerSec = (double) threads * SCANS_PER_THREAD * ROWS * 1000 / Math.max(1, elapsedMs);
+        System.out.printf("ConcurrentScanTest %s: %d thread(s), %.0f tuples/s%n", name, threads, tuplesPerSec);
+    }
+
+    private ArrayList<HeapFile> createTables(int n) throws IOException, DbException, TransactionAbortedException {
+        ArrayList<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            tables.add(SystemTestUtil.createRandomHeapFile(2, ROWS, null, null));
+        return tables;
+    }
+
+    /** Scans of unrelated tables that all fit in the buffer pool. */
+    @Test public void testUnrelatedTables() throws Throwable {
+        ArrayList<HeapFile> tables = createTables(THREADS);
+        Database.resetBufferPool(1000);
+
+        ArrayList<HeapFile> single = new ArrayList<>();
+        single.add(tables.get(0));
+        runScans(single); // warm up the pool
+        report("unrelated tables", 1, runScans(single));
+        report("unrelated tables", THREADS, runScans(tables));
+    }
+
+    /** Scans of one shared table by every thread. */
+    @Test public void testSharedTable() throws Throwable {
+        HeapFile table = createTables(1).get(0);
+        Database.resetBufferPool(1000);
+
+        ArrayList<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++)
+            tables.add(table);
+        runScans(tables);
+        report("shared table", THREADS, runScans(tables));
+    }
+
+    /** Scans that do not fit in the buffer pool, so partitions evict each other's pages. */
+    @Test public void testEvictionAcrossPartitions() throws Throwable {
+        ArrayList<HeapFile> tables = createTables(THREADS);
+        Database.resetBufferPool(8);
+        report("small pool", THREADS, runScans(tables));
+    }
+
+    /** A HeapFile whose reads of one page wait until they are let go. */
+    private static class SlowHeapFile extends HeapFile {
+        private final PageId slowPage;
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger();
+
+        SlowHeapFile(File f, TupleDesc td, int slowPageNo) {
+            super(f, td);
+            this.slowPage = new HeapPageId(getId(), slowPageNo);
+        }
+
+        @Override public Page readPage(PageId pid) {
+            if (pid.equals(slowPage)) {
+                reads.incrementAndGet();
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * A hit on a partition does not wait for a page of the partition being
+     * read from disk, and a second request of that page waits for the read
+     * rather than reading the page again.
+     */
+    @Test public void testHitDuringMiss() throws Throwable {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, ROWS, 1000, null, null);
+        HeapPageId cached = new HeapPageId(Utility.openHeapFile(2, f).getId(), 0);
+        int slowPageNo = 1;
+        while (Math.floorMod(new HeapPageId(cached.getTableId(), slowPageNo).hashCode(), BufferPool.DEFAULT_PARTITIONS)
+                != Math.floorMod(cached.hashCode(), BufferPool.DEFAULT_PARTITIONS))
+            slowPageNo++;
+        SlowHeapFile table = new SlowHeapFile(f, Utility.getTupleDesc(2), slowPageNo);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(1000);
+        TransactionId tid = new TransactionId();
+        PageId slow = new HeapPageId(table.getId(), slowPageNo);
+        Page page = bp.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Page[] read = new Page[2];
+        ArrayList<Thread> misses = new ArrayList<>();
+        for (int i = 0; i < read.length; i++) {
+            int slot = i;
+            misses.add(new Thread(() -> {
+                try {
+                    read[slot] = bp.getPage(tid, slow, Permissions.READ_ONLY);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        misses.get(0).start();
+        table.reading.await();
+        misses.get(1).start();
+
+        Thread hit = new Thread(() -> {
+            try {
+                assertSame(page, bp.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY));
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            }
+        });
+        hit.start();
+        hit.join(1000);
+        assertFalse(hit.isAlive());
+
+        table.release.countDown();
+        for (Thread miss : misses)
+            miss.join();
+        if (error.get() != null) throw error.get();
+        assertSame(read[0], read[1]);
+        assertEquals(1, table.reads.get());
+        bp.transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ConcurrentScanTest.class);
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Commit throughput of 1, 8 and 64 threads that run empty transactions, so
+ * that the commit is the force of the log. Along with commits per second
+ * it reports how many commits shared each force of the log.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=GroupCommitBenchmark -Dargs="seconds maxWaitMillis maxBatch"</tt>.
+ */
+public class GroupCommitBenchmark {
+
+    private static final int[] COMMITTERS = {1, 8, 64};
+
+    public static void main(String[] args) throws Exception {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 3;
+        long maxWaitMillis = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        int maxBatch = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(maxWaitMillis, maxBatch);
+        for (int committers : COMMITTERS) {
+            long forces = log.getForces();
+            AtomicLong commits = new AtomicLong();
+            long deadline = System.nanoTime() + (long) (seconds * 1e9);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < committers; i++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            t.commit();
+                            commits.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            for (Thread thread : threads) thread.start();
+            for (Thread thread : threads) thread.join();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            forces = log.getForces() - forces;
+            System.out.printf("%3d committers %10.0f commits/s %8.1f commits/force%n",
+                    committers, commits.get() / elapsed, (double) commits.get() / Math.max(1, forces));
+        }
+    }
+}
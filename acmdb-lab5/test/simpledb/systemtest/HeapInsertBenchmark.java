@@ -0,0 +1,98 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.Arrays;
+
+import simpledb.*;
+
+/**
+ * Insert throughput into a large HeapFile whose pages are all full except the
+ * last one. The "page scan" row locks pages from the start of the file until
+ * one has a free slot, as HeapFile.insertTuple did before the FreeSpaceMap;
+ * the "free space map" row goes through HeapFile.insertTuple. The first
+ * insert of the latter also rebuilds the map, which is reported on its own.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=HeapInsertBenchmark -Dargs="pages inserts scanInserts"</tt>.
+ */
+public class HeapInsertBenchmark {
+
+    private static final int COLUMNS = 2;
+    private static final int INSERTS_PER_XACT = 100;
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 100 * 1000;
+        int inserts = args.length > 1 ? Integer.parseInt(args[1]) : 20 * 1000;
+        int scanInserts = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        HeapFile table = createFullTable(pages);
+        System.out.printf("pages=%d%n", table.numPages());
+
+        // the old insert path: try every page in order
+        long start = System.nanoTime();
+        for (int i = 0; i < scanInserts; i++) {
+            TransactionId tid = new TransactionId();
+            Tuple tuple = tuple(table, i);
+            for (int pageNo = 0; ; pageNo++) {
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(
+                        tid, new HeapPageId(table.getId(), pageNo), Permissions.READ_WRITE);
+                if (page.getNumEmptySlots() > 0) {
+                    page.insertTuple(tuple);
+                    page.markDirty(true, tid);
+                    break;
+                }
+            }
+            Database.getBufferPool().transactionComplete(tid, true);
+        }
+        report("page scan", scanInserts, System.nanoTime() - start);
+
+        table.getFreeSpaceMap().getFile().delete();
+        table = Utility.openHeapFile(COLUMNS, table.getFile());
+        TransactionId first = new TransactionId();
+        start = System.nanoTime();
+        Database.getBufferPool().insertTuple(first, table.getId(), tuple(table, 0));
+        Database.getBufferPool().transactionComplete(first, true);
+        System.out.printf("first insert, rebuilding the map: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+        start = System.nanoTime();
+        for (int done = 0; done < inserts; ) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < INSERTS_PER_XACT && done < inserts; i++, done++)
+                Database.getBufferPool().insertTuple(tid, table.getId(), tuple(table, done));
+            Database.getBufferPool().transactionComplete(tid, true);
+        }
+        report("free space map", inserts, System.nanoTime() - start);
+        table.getFreeSpaceMap().getFile().delete();
+    }
+
+    /** Write a table of full pages, with room left on the last one, byte by byte rather than tuple by tuple. */
+    private static HeapFile createFullTable(int pages) throws IOException {
+        File file = File.createTempFile("insert", ".dat");
+        file.deleteOnExit();
+        TupleDesc td = Utility.getTupleDesc(COLUMNS);
+        int slots = BufferPool.getPageSize() * 8 / (td.getSize() * 8 + 1);
+        int headerSize = (slots + 7) / 8;
+
+        byte[] full = new byte[BufferPool.getPageSize()];
+        Arrays.fill(full, 0, headerSize, (byte) 0xFF);
+        byte[] half = new byte[BufferPool.getPageSize()];
+        Arrays.fill(half, 0, slots / 2 / 8, (byte) 0xFF);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            for (int i = 0; i < pages - 1; i++)
+                out.write(full);
+            out.write(half);
+        }
+        return Utility.openHeapFile(COLUMNS, file);
+    }
+
+    private static Tuple tuple(HeapFile table, int value) {
+        Tuple tuple = new Tuple(table.getTupleDesc());
+        for (int i = 0; i < COLUMNS; i++)
+            tuple.setField(i, new IntField(value));
+        return tuple;
+    }
+
+    private static void report(String name, int inserts, long nanos) {
+        System.out.printf("%-16s %8d inserts %10.1f inserts/s %10.3f ms/insert%n",
+                name, inserts, inserts / (nanos / 1e9), nanos / 1e6 / inserts);
+    }
+}
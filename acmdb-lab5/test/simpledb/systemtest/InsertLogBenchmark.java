@@ -0,0 +1,46 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Write amplification of the log under an insert-heavy load: transactions
+ * that each insert a few tuples into one table and commit, with a
+ * checkpoint every so many transactions. Reports the bytes of log written
+ * per transaction and per byte of tuple inserted.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=InsertLogBenchmark -Dargs="xacts tuplesPerXact xactsPerCheckpoint"</tt>.
+ */
+public class InsertLogBenchmark {
+
+    private static final int COLUMNS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int xacts = args.length > 0 ? Integer.parseInt(args[0]) : 10 * 1000;
+        int tuplesPerXact = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int xactsPerCheckpoint = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        File file = File.createTempFile("insertlog", ".dat");
+        file.deleteOnExit();
+        HeapFile table = Utility.createEmptyHeapFile(file.getPath(), COLUMNS);
+        LogFile log = Database.getLogFile();
+        long logged = 0;
+        long start = System.nanoTime();
+        for (int i = 0, value = 0; i < xacts; i++) {
+            if (i % xactsPerCheckpoint == 0) log.logCheckpoint();
+            long lsn = log.getCurrentLsn();
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < tuplesPerXact; j++)
+                Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(value++, COLUMNS));
+            t.commit();
+            logged += log.getCurrentLsn() - lsn;
+        }
+        long elapsed = System.nanoTime() - start;
+        long tupleBytes = (long) xacts * tuplesPerXact * Utility.getTupleDesc(COLUMNS).getSize();
+        System.out.printf("%d xacts of %d tuples: %8.0f log bytes/xact %8.1f log bytes/tuple byte %8.2f us/xact%n",
+                xacts, tuplesPerXact, (double) logged / xacts, (double) logged / tupleBytes, elapsed / 1e3 / xacts);
+        Database.getLogFile().shutdown();
+    }
+}
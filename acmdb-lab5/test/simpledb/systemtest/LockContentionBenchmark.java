@@ -0,0 +1,103 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Contention benchmark for the LockManager: every thread runs transactions
+ * that lock a few random pages of a small table, shared or exclusive, and
+ * retries aborted transactions. Reports commits, abort rate and the p50 and
+ * p99 latency of a lock request.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=LockContentionBenchmark -Dargs="threads pages seconds"</tt>.
+ */
+public class LockContentionBenchmark {
+
+    private static final int PAGES_PER_XACT = 4;
+    private static final double WRITE_RATIO = 0.3;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        // fill the pages with two-int tuples; only the page locks matter
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (2 * 4 * 8 + 1);
+        File file = File.createTempFile("contention", ".dat");
+        file.deleteOnExit();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < pages * tuplesPerPage; i++) {
+            ArrayList<Integer> tuple = new ArrayList<>();
+            tuple.add(i);
+            tuple.add(i);
+            tuples.add(tuple);
+        }
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        HeapFile table = Utility.openHeapFile(2, file);
+        Database.resetBufferPool(Math.max(BufferPool.DEFAULT_PAGES, pages));
+
+        AtomicLong commits = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        List<Long> waits = Collections.synchronizedList(new ArrayList<>());
+        long deadline = System.nanoTime() + seconds * 1000L * 1000 * 1000;
+
+        ArrayList<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            workers.add(new Thread(() -> {
+                Random random = new Random(seed);
+                ArrayList<Long> localWaits = new ArrayList<>();
+                while (System.nanoTime() < deadline) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        for (int i = 0; i < PAGES_PER_XACT; i++) {
+                            PageId pid = new HeapPageId(table.getId(), random.nextInt(table.numPages()));
+                            Permissions perm = random.nextDouble() < WRITE_RATIO
+                                    ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                            long start = System.nanoTime();
+                            Database.getBufferPool().getPage(tid, pid, perm);
+                            localWaits.add(System.nanoTime() - start);
+                        }
+                        Database.getBufferPool().transactionComplete(tid, true);
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        aborts.incrementAndGet();
+                        try {
+                            Database.getBufferPool().transactionComplete(tid, false);
+                        } catch (Exception e2) {
+                            throw new RuntimeException(e2);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                waits.addAll(localWaits);
+            }));
+        }
+        for (Thread worker : workers)
+            worker.start();
+        for (Thread worker : workers)
+            worker.join();
+
+        ArrayList<Long> sorted = new ArrayList<>(waits);
+        Collections.sort(sorted);
+        long total = commits.get() + aborts.get();
+        System.out.printf("threads=%d pages=%d seconds=%d%n", threads, pages, seconds);
+        System.out.printf("commits=%d (%.0f/s) aborts=%d abort rate=%.2f%%%n",
+                commits.get(), (double) commits.get() / seconds, aborts.get(),
+                total == 0 ? 0.0 : 100.0 * aborts.get() / total);
+        if (!sorted.isEmpty())
+            System.out.printf("lock wait p50=%.3f ms p99=%.3f ms%n",
+                    percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6);
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) (p * sorted.size())));
+    }
+}
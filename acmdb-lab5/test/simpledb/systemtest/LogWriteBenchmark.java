@@ -0,0 +1,62 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import simpledb.*;
+
+/**
+ * Cost of UPDATE records: transactions that each log a number of updates of
+ * HeapPages and commit, written to a log file of their own. Reports the
+ * bytes of log and the CPU time spent per update.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=LogWriteBenchmark -Dargs="updates updatesPerXact"</tt>.
+ */
+public class LogWriteBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int updates = args.length > 0 ? Integer.parseInt(args[0]) : 100 * 1000;
+        int updatesPerXact = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        File tableFile = File.createTempFile("logwrite", ".dat");
+        tableFile.deleteOnExit();
+        HeapFile table = Utility.createEmptyHeapFile(tableFile.getPath(), 2);
+        HeapPage before = new HeapPage(new HeapPageId(table.getId(), 0), HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(new HeapPageId(table.getId(), 0), HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(1, 2));
+
+        File logFile = File.createTempFile("logwrite", ".log");
+        logFile.deleteOnExit();
+        LogFile log = new LogFile(logFile);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int pass = 0; pass < 2; pass++) { // the first pass warms up
+            long cpu = threads.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            for (int done = 0; done < updates; ) {
+                TransactionId tid = new TransactionId();
+                log.logXactionBegin(tid);
+                for (int i = 0; i < updatesPerXact && done < updates; i++, done++)
+                    log.logWrite(tid, before, after);
+                log.logCommit(tid);
+            }
+            cpu = threads.getCurrentThreadCpuTime() - cpu;
+            long elapsed = System.nanoTime() - start;
+            if (pass == 1)
+                System.out.printf("%d updates: %8.0f log bytes/update %8.2f us CPU/update %8.2f us/update%n",
+                        updates, (double) segmentBytes(logFile, false) / updates, cpu / 1e3 / updates, elapsed / 1e3 / updates);
+            segmentBytes(logFile, true);
+            log = new LogFile(logFile);
+        }
+    }
+
+    /** @return the bytes in the segment files of the log, which are deleted if so asked */
+    private static long segmentBytes(File logFile, boolean delete) {
+        long bytes = 0;
+        for (File segment : logFile.getParentFile().listFiles((dir, name) -> name.startsWith(logFile.getName() + "."))) {
+            bytes += segment.length();
+            if (delete) segment.delete();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import simpledb.*;
+
+/**
+ * Full scan of a large HeapFile through SeqScan that looks at the first
+ * field of every tuple, like a filter would, with its pages read into a new
+ * array per page miss and with the file memory mapped. Each mode is run a
+ * few times after a warm-up pass, so that both read from the page cache, and
+ * the best pass is reported along with the bytes allocated per tuple.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=MappedScanBenchmark -Dargs="megabytes passes"</tt>.
+ */
+public class MappedScanBenchmark {
+
+    private static final int COLUMNS = 2;
+
+    public static void main(String[] args) throws Exception {
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 2048;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        File file = createTable(megabytes);
+        HeapFile table = Utility.openHeapFile(COLUMNS, file);
+        System.out.printf("pages=%d (%d MB)%n", table.numPages(), megabytes);
+
+        long tuples = scan(table); // warm up the page cache
+        for (boolean mapped : new boolean[] {false, true}) {
+            table.setMemoryMapped(mapped);
+            long best = Long.MAX_VALUE;
+            long allocated = allocatedBytes();
+            for (int i = 0; i < passes; i++) {
+                long start = System.nanoTime();
+                if (scan(table) != tuples) throw new AssertionError("scans disagree");
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            allocated = allocatedBytes() - allocated;
+            System.out.printf("%-8s %10.1f MB/s %12.0f tuples/s %8.1f bytes allocated/tuple%n",
+                    mapped ? "mmap" : "read", megabytes / (best / 1e9), tuples / (best / 1e9),
+                    (double) allocated / passes / tuples);
+        }
+        table.close();
+    }
+
+    private static long scan(HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        long count = 0;
+        while (scan.hasNext()) {
+            if (scan.next().getField(0) == null) throw new AssertionError("missing field");
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid, true);
+        return count;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Write full pages of two-int tuples byte by byte rather than tuple by tuple. */
+    private static File createTable(long megabytes) throws IOException {
+        File file = File.createTempFile("mapped", ".dat");
+        file.deleteOnExit();
+        int slots = BufferPool.getPageSize() * 8 / (Utility.getTupleDesc(COLUMNS).getSize() * 8 + 1);
+        byte[] page = new byte[BufferPool.getPageSize()];
+        Arrays.fill(page, 0, slots / 8, (byte) 0xFF);
+        for (int i = slots / 8 * 8; i < slots; i++)
+            page[i / 8] |= 1 << (i % 8);
+        for (int i = (slots + 7) / 8; i < page.length; i++)
+            page[i] = (byte) i;
+
+        long pages = megabytes * 1024 * 1024 / BufferPool.getPageSize();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            for (long i = 0; i < pages; i++)
+                out.write(page);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb.systemtest;
+
+import java.io.*;
+
+import simpledb.*;
+
+/**
+ * Cold full scans of a HeapFile through SeqScan, each with a new buffer pool
+ * so that every page has to be read again, followed by the prefetch counters
+ * of the pool. A hit is a page the scan found read ahead, a miss a page that
+ * was queued but that the scan had to read itself. The file is in the page
+ * cache of the operating system after the first pass, where reads are about
+ * as cheap as handing them to another thread, so the later passes show the
+ * overhead of prefetching more than its gain.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=PrefetchScanBenchmark -Dargs="tuples passes"</tt>.
+ */
+public class PrefetchScanBenchmark {
+
+    private static final int COLUMNS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000 * 1000;
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        File file = SystemTestUtil.createRandomHeapFileUnopened(COLUMNS, rows,
+                1 << 16, null, null);
+        System.out.printf("pages=%d%n", file.length() / BufferPool.getPageSize());
+
+        for (int i = 0; i < passes; i++) {
+            Database.reset();
+            HeapFile table = Utility.openHeapFile(COLUMNS, file);
+            long start = System.nanoTime();
+            long count = scan(table);
+            long nanos = System.nanoTime() - start;
+            Prefetcher prefetcher = Database.getBufferPool().getPrefetcher();
+            System.out.printf("%8d tuples %8.1f ms  prefetch hits=%d misses=%d wasted=%d%n",
+                    count, nanos / 1e6, prefetcher.getHits(), prefetcher.getMisses(), prefetcher.getWasted());
+        }
+    }
+
+    private static long scan(HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        long count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid, true);
+        return count;
+    }
+}
@@ -0,0 +1,81 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Restart time after a crash against the number of redo threads. Commits
+ * transactions that each insert a few tuples into random tables, with a
+ * checkpoint and a flush of the buffer pool half way through, so that redo
+ * starts some pages from their whole image in the log and others from
+ * their version on disk. It then throws the buffer pool away and recovers
+ * from the same log with each given number of threads; the first recovery
+ * warms up and is not reported.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=RecoveryBenchmark -Dargs="tables xacts tuplesPerXact threads..."</tt>.
+ */
+public class RecoveryBenchmark {
+
+    private static final int COLUMNS = 16;
+    private static final int POOL_PAGES = 50 * 1000;
+
+    public static void main(String[] args) throws Exception {
+        int tables = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int xacts = args.length > 1 ? Integer.parseInt(args[1]) : 50 * 1000;
+        int tuplesPerXact = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        List<Integer> threads = new ArrayList<>();
+        for (int i = 3; i < args.length; i++)
+            threads.add(Integer.parseInt(args[i]));
+        if (threads.isEmpty()) {
+            threads.add(1);
+            threads.add(2);
+            threads.add(4);
+        }
+
+        Database.resetBufferPool(POOL_PAGES);
+        List<HeapFile> files = new ArrayList<>();
+        for (int i = 0; i < tables; i++) {
+            File file = File.createTempFile("recovery", ".dat");
+            file.deleteOnExit();
+            files.add(Utility.createEmptyHeapFile(file.getPath(), COLUMNS));
+        }
+        LogFile log = Database.getLogFile();
+        Random random = new Random(0);
+        long start = System.nanoTime();
+        long firstLsn = -1;
+        for (int i = 0, value = 0; i < xacts; i++) {
+            if (i == xacts / 2) {
+                log.logCheckpoint();
+                Database.getBufferPool().flushAllPages();
+            }
+            Transaction t = new Transaction();
+            t.start();
+            if (firstLsn < 0) firstLsn = log.getCurrentLsn();
+            for (int j = 0; j < tuplesPerXact; j++)
+                Database.getBufferPool().insertTuple(t.getId(), files.get(random.nextInt(tables)).getId(),
+                        Utility.getHeapTuple(value++, COLUMNS));
+            t.commit();
+        }
+        int pages = 0;
+        for (HeapFile file : files)
+            pages += file.numPages();
+        System.out.printf("%d xacts of %d tuples in %.1f s: %.1f MB of log, %d pages%n",
+                xacts, tuplesPerXact, (System.nanoTime() - start) / 1e9,
+                (log.getCurrentLsn() - firstLsn) / 1e6, pages);
+
+        for (int run = -1; run < threads.size(); run++) {
+            int redoThreads = threads.get(Math.max(run, 0));
+            Database.resetBufferPool(POOL_PAGES); // the crash
+            log.setRedoThreads(redoThreads);
+            start = System.nanoTime();
+            log.recover();
+            if (run >= 0)
+                System.out.printf("%d redo threads: recovered in %8.1f ms%n", redoThreads, (System.nanoTime() - start) / 1e6);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Crashes the database, by throwing the buffer pool away, while transactions
+ * have pages that were not written or were stolen, and recovers it from the
+ * log.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+
+    /** Throw the buffer pool away, as a crash would, and recover from the log. */
+    private static void crashAndRecover() throws IOException {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+    }
+
+    /** A commit only forces the log, which redoes the page after the crash. */
+    @Test public void testCommittedInsertIsRedone()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        Transaction t = new Transaction();
+        t.start();
+        EvictionTest.insertRow(f, t);
+        t.commit();
+
+        crashAndRecover();
+        t = new Transaction();
+        t.start();
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /**
+     * A checkpoint does not write the committed page, but redo starts from
+     * it as the checkpoint found it dirty.
+     */
+    @Test public void testCommittedInsertBeforeCheckpointIsRedone()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        Transaction t = new Transaction();
+        t.start();
+        EvictionTest.insertRow(f, t);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        t = new Transaction();
+        assertFalse(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+        crashAndRecover();
+        t = new Transaction();
+        t.start();
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** A page that stayed dirty since the last checkpoint is written by the next. */
+    @Test public void testCheckpointWritesOldDirtyPage()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        Transaction t = new Transaction();
+        t.start();
+        EvictionTest.insertRow(f, t);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+        Database.getLogFile().logCheckpoint();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES); // no recovery
+        t = new Transaction();
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** A page stolen from a transaction that did not finish is undone after the crash. */
+    @Test public void testStolenInsertIsUndone()
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(2);
+
+        Transaction t = new Transaction();
+        t.start();
+        EvictionTest.insertRow(f, t);
+        // the scan steals the dirty page
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+
+        crashAndRecover();
+        t = new Transaction();
+        t.start();
+        assertFalse(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
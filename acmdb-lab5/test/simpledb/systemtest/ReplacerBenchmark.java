@@ -0,0 +1,76 @@
+package simpledb.systemtest;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+import simpledb.HeapPageId;
+import simpledb.PageId;
+import simpledb.PageReplacer;
+import simpledb.ReplacementPolicy;
+
+/**
+ * Measures the replacement bookkeeping done on every BufferPool hit, for pools
+ * of 50, 10k and 1M frames. The LinkedList row is the remove/addLast LRU list
+ * the BufferPool used before PageReplacer was introduced.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=ReplacerBenchmark</tt>.
+ */
+public class ReplacerBenchmark {
+
+    private static final int[] FRAMES = {50, 10 * 1000, 1000 * 1000};
+    private static final long TIME_BUDGET_NS = 1000L * 1000 * 1000;
+
+    public static void main(String[] args) {
+        System.out.printf("%-22s %10s %14s%n", "policy", "frames", "ns per hit");
+        for (int frames : FRAMES) {
+            PageId[] pids = new PageId[frames];
+            for (int i = 0; i < frames; i++)
+                pids[i] = new HeapPageId(0, i);
+            int[] trace = randomTrace(frames);
+
+            for (ReplacementPolicy policy : ReplacementPolicy.values()) {
+                PageReplacer replacer = PageReplacer.create(policy);
+                for (PageId pid : pids)
+                    replacer.admit(pid);
+                report(policy.toString(), frames, timeHits(pids, trace, replacer));
+            }
+            report("LinkedList (old LRU)", frames, timeLinkedListHits(pids, trace));
+        }
+    }
+
+    private static int[] randomTrace(int frames) {
+        Random random = new Random(0);
+        int[] trace = new int[1 << 20];
+        for (int i = 0; i < trace.length; i++)
+            trace[i] = random.nextInt(frames);
+        return trace;
+    }
+
+    private static double timeHits(PageId[] pids, int[] trace, PageReplacer replacer) {
+        for (int i = 0; i < trace.length; i++) // warm up
+            replacer.access(pids[trace[i]]);
+        long start = System.nanoTime();
+        for (int i = 0; i < trace.length; i++)
+            replacer.access(pids[trace[i]]);
+        return (double) (System.nanoTime() - start) / trace.length;
+    }
+
+    private static double timeLinkedListHits(PageId[] pids, int[] trace) {
+        LinkedList<PageId> lruList = new LinkedList<>();
+        for (PageId pid : pids)
+            lruList.addLast(pid);
+        long start = System.nanoTime();
+        int hits = 0;
+        // the old hit path is O(frames), so stop once the time budget is spent
+        while (hits < trace.length && System.nanoTime() - start < TIME_BUDGET_NS) {
+            PageId pid = pids[trace[hits++]];
+            lruList.remove(pid);
+            lruList.addLast(pid);
+        }
+        return (double) (System.nanoTime() - start) / hits;
+    }
+
+    private static void report(String name, int frames, double nsPerHit) {
+        System.out.printf("%-22s %10d %14.1f%n", name, frames, nsPerHit);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Writers against long scans, with the scans locking the pages they read
+ * and with the scans reading snapshots. One thread scans the whole table
+ * over and over, each scan a transaction of its own, while the writer
+ * threads update a tuple of a random page per transaction, by deleting it
+ * and inserting it again, and retry aborted transactions. Reports the
+ * commits and aborts of both for each mode.
+ * <p>
+ * Run with <tt>ant runbench -Dbench=SnapshotScanBenchmark -Dargs="pages writers seconds"</tt>.
+ */
+public class SnapshotScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        int tuplesPerPage = BufferPool.getPageSize() * 8 / (2 * 4 * 8 + 1);
+        File file = File.createTempFile("snapshot", ".dat");
+        file.deleteOnExit();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < pages * tuplesPerPage; i++) {
+            ArrayList<Integer> tuple = new ArrayList<>();
+            tuple.add(i);
+            tuple.add(i);
+            tuples.add(tuple);
+        }
+        HeapFileEncoder.convert(tuples, file, BufferPool.getPageSize(), 2);
+        HeapFile table = Utility.openHeapFile(2, file);
+
+        for (boolean snapshot : new boolean[] { false, true }) {
+            Database.resetBufferPool(2 * pages);
+            AtomicLong scans = new AtomicLong(), scanAborts = new AtomicLong();
+            AtomicLong updates = new AtomicLong(), updateAborts = new AtomicLong();
+            long deadline = System.nanoTime() + seconds * 1000L * 1000 * 1000;
+
+            ArrayList<Thread> threads = new ArrayList<>();
+            threads.add(new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    Transaction t = new Transaction();
+                    if (snapshot) t.startSnapshot();
+                    else t.start();
+                    run(t, () -> {
+                        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+                        scan.open();
+                        while (scan.hasNext())
+                            scan.next();
+                        scan.close();
+                    }, scans, scanAborts);
+                }
+            }));
+            for (int w = 0; w < writers; w++) {
+                Random random = new Random(w);
+                threads.add(new Thread(() -> {
+                    while (System.nanoTime() < deadline) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        run(t, () -> {
+                            HeapPageId pid = new HeapPageId(table.getId(), random.nextInt(pages));
+                            HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+                            Iterator<Tuple> it = page.iterator();
+                            Tuple tuple = it.next();
+                            Database.getBufferPool().deleteTuple(t.getId(), tuple);
+                            Tuple copy = new Tuple(tuple.getTupleDesc());
+                            for (int i = 0; i < 2; i++)
+                                copy.setField(i, tuple.getField(i));
+                            Database.getBufferPool().insertTuple(t.getId(), table.getId(), copy);
+                        }, updates, updateAborts);
+                    }
+                }));
+            }
+            for (Thread thread : threads)
+                thread.start();
+            for (Thread thread : threads)
+                thread.join();
+
+            System.out.printf("%-8s scans: %5d commits %5d aborts   updates: %7d commits (%.0f/s) %5d aborts%n",
+                    snapshot ? "snapshot" : "locking", scans.get(), scanAborts.get(),
+                    updates.get(), (double) updates.get() / seconds, updateAborts.get());
+        }
+        System.exit(0);
+    }
+
+    private interface Work {
+        void run() throws Exception;
+    }
+
+    /** Run the work in t and commit it, or abort it if it cannot go on. */
+    private static void run(Transaction t, Work work, AtomicLong commits, AtomicLong aborts) {
+        try {
+            try {
+                work.run();
+                t.commit();
+                commits.incrementAndGet();
+            } catch (TransactionAbortedException e) {
+                t.abort();
+                aborts.incrementAndGet();
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private static final ArrayList<Integer> MAGIC = new ArrayList<>(Arrays.asList(-42, -43));
+
+    private HeapFile f;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void createTable() throws Exception {
+        tuples = new ArrayList<>();
+        f = SystemTestUtil.createRandomHeapFile(2, 512 * 3, null, tuples);
+    }
+
+    private static Transaction snapshot() {
+        Transaction t = new Transaction();
+        t.startSnapshot();
+        return t;
+    }
+
+    /** @return the first tuple of the table, as t sees it */
+    private Tuple firstTuple(Transaction t) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        Tuple first = scan.next();
+        scan.close();
+        return first;
+    }
+
+    /**
+     * A snapshot reads the page a running writer has inserted into without
+     * waiting for it or locking the page, and does not see the insert, not
+     * even once the writer commits.
+     */
+    @Test public void uncommittedInsertIsNotSeen() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        EvictionTest.insertRow(f, writer);
+
+        Transaction reader = snapshot();
+        SystemTestUtil.matchTuples(f, reader.getId(), tuples);
+        assertFalse(Database.getBufferPool().holdsLock(reader.getId(), new HeapPageId(f.getId(), 0)));
+        writer.commit();
+        SystemTestUtil.matchTuples(f, reader.getId(), tuples);
+        reader.commit();
+
+        tuples.add(MAGIC);
+        Transaction later = snapshot();
+        SystemTestUtil.matchTuples(f, later.getId(), tuples);
+        later.commit();
+    }
+
+    /**
+     * A snapshot still sees a tuple deleted after it started, though a new
+     * tuple has taken its slot since.
+     */
+    @Test public void deletedTupleIsSeenAfterSlotReuse() throws Exception {
+        Transaction reader = snapshot();
+        Tuple deleted = firstTuple(reader);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().deleteTuple(writer.getId(), deleted);
+        EvictionTest.insertRow(f, writer);
+        writer.commit();
+
+        SystemTestUtil.matchTuples(f, reader.getId(), tuples);
+        reader.commit();
+
+        tuples.remove(SystemTestUtil.tupleToList(deleted));
+        tuples.add(MAGIC);
+        Transaction later = snapshot();
+        SystemTestUtil.matchTuples(f, later.getId(), tuples);
+        later.commit();
+    }
+
+    /**
+     * Writes made while no snapshot runs record no versions, and a snapshot
+     * that starts before such a writer commits neither sees its insert nor
+     * misses the tuple it deleted.
+     */
+    @Test public void writesAreVersionedOnlyForSnapshots() throws Exception {
+        VersionStore versions = Database.getBufferPool().getVersionStore();
+        Transaction writer = new Transaction();
+        writer.start();
+        Tuple deleted = firstTuple(writer);
+        Database.getBufferPool().deleteTuple(writer.getId(), deleted);
+        EvictionTest.insertRow(f, writer);
+        assertEquals(0, versions.getVersionCount());
+
+        Transaction reader = snapshot();
+        assertTrue(versions.getVersionCount() > 0);
+        writer.commit();
+        SystemTestUtil.matchTuples(f, reader.getId(), tuples);
+        reader.commit();
+
+        tuples.remove(SystemTestUtil.tupleToList(deleted));
+        tuples.add(MAGIC);
+        Transaction later = snapshot();
+        SystemTestUtil.matchTuples(f, later.getId(), tuples);
+        later.commit();
+    }
+
+    /** A snapshot that deletes a tuple another transaction deleted since it started aborts. */
+    @Test public void firstUpdaterWins() throws Exception {
+        Transaction reader = snapshot();
+        Tuple first = firstTuple(reader);
+
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().deleteTuple(writer.getId(), firstTuple(writer));
+        writer.commit();
+
+        try {
+            Database.getBufferPool().deleteTuple(reader.getId(), first);
+            fail("expected the snapshot to abort");
+        } catch (TransactionAbortedException expected) {
+        }
+        reader.abort();
+    }
+
+    /**
+     * The versions an aborted transaction inserted are never seen, and the
+     * ones it deleted are seen again.
+     */
+    @Test public void abortedChangesAreNotSeen() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        EvictionTest.insertRow(f, writer);
+        Database.getBufferPool().deleteTuple(writer.getId(), firstTuple(writer));
+        Transaction before = snapshot();
+        writer.abort();
+
+        Transaction after = snapshot();
+        SystemTestUtil.matchTuples(f, before.getId(), tuples);
+        SystemTestUtil.matchTuples(f, after.getId(), tuples);
+        before.commit();
+        after.commit();
+    }
+
+    /** The versions go once the snapshots that could see them are done. */
+    @Test public void versionsAreCollected() throws Exception {
+        VersionStore versions = Database.getBufferPool().getVersionStore();
+        Transaction reader = snapshot();
+        Tuple deleted = firstTuple(reader);
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().deleteTuple(writer.getId(), deleted);
+        EvictionTest.insertRow(f, writer);
+        writer.commit();
+
+        versions.collect();
+        assertTrue(versions.getVersionCount() > 0);
+        SystemTestUtil.matchTuples(f, reader.getId(), tuples);
+        reader.commit();
+        versions.collect();
+        assertEquals(0, versions.getVersionCount());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotTest.class);
+    }
+}